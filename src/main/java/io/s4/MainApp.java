@@ -21,6 +21,7 @@ import io.s4.util.S4Util;
 import io.s4.util.Watcher;
 import io.s4.util.clock.Clock;
 import io.s4.util.clock.EventClock;
+import io.s4.util.clock.ReplayClock;
 
 import java.io.File;
 import java.lang.reflect.Method;
@@ -202,7 +203,12 @@ public class MainApp {
         ApplicationContext context = coreContext;        
         
         Clock s4Clock = (Clock) context.getBean("clock");
-        if (s4Clock instanceof EventClock && seedTime > 0) {
+        if (s4Clock instanceof ReplayClock) {
+            ReplayClock s4ReplayClock = (ReplayClock) s4Clock;
+            s4ReplayClock.start(seedTime > 0 ? seedTime
+                    : System.currentTimeMillis());
+            System.out.println("Starting replay clock at " + s4ReplayClock.getCurrentTime());
+        } else if (s4Clock instanceof EventClock && seedTime > 0) {
             EventClock s4EventClock = (EventClock)s4Clock;
             s4EventClock.updateTime(seedTime);
             System.out.println("Intializing event clock time with seed time " + s4EventClock.getCurrentTime());
@@ -26,6 +26,7 @@ public class EventWrapper {
     private List<List<String>> compoundKeyNames = null;
     private Object event;
     private String streamName;
+    private transient long enqueueTime;
 
     public List<CompoundKeyInfo> getCompoundKeys() {
         return compoundKeys;
@@ -43,6 +44,20 @@ public class EventWrapper {
         return compoundKeyNames;
     }
 
+    /**
+     * Returns the <code>System.nanoTime()</code> at which this event was
+     * queued for processing, or 0 if it was not recorded. The value is not
+     * serialized with the event; the container's spill log stores it
+     * alongside.
+     */
+    public long getEnqueueTime() {
+        return enqueueTime;
+    }
+
+    public void setEnqueueTime(long enqueueTime) {
+        this.enqueueTime = enqueueTime;
+    }
+
     public EventWrapper() {
         compoundKeys = new ArrayList<CompoundKeyInfo>();
     }
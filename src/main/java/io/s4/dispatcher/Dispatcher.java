@@ -21,6 +21,8 @@ import io.s4.dispatcher.partitioner.Partitioner;
 import io.s4.dispatcher.partitioner.VariableKeyPartitioner;
 import io.s4.dispatcher.transformer.Transformer;
 import io.s4.emitter.EventEmitter;
+import io.s4.util.clock.Clock;
+import io.s4.util.clock.WallClock;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -37,6 +39,7 @@ public class Dispatcher implements EventDispatcher {
     private String configFilename;
     private boolean debug = false;
     private String loggerName = "s4";
+    private Clock s4Clock = new WallClock();
 
     public final static String PARTITION_INFO_KEY = "S4__PartitionInfo";
 
@@ -64,6 +67,14 @@ public class Dispatcher implements EventDispatcher {
         this.loggerName = loggerName;
     }
 
+    /**
+     * Sets the clock that paces the periodic event count report. Defaults to
+     * a {@link WallClock}.
+     */
+    public void setS4Clock(Clock s4Clock) {
+        this.s4Clock = s4Clock;
+    }
+
     private volatile int eventCount = 0;
     private volatile int rawEventCount = 0;
 
@@ -75,20 +86,22 @@ public class Dispatcher implements EventDispatcher {
 
     public void init() {
 
+        // the report is about events, so it is paced by the S4 clock
         Runnable r = new Runnable() {
-            private long configFileTime = -1;
-
             public void run() {
-                long lastCheckTime = System.currentTimeMillis();
+                long lastCheckTime = s4Clock.getCurrentTime();
                 int lastEventCount = eventCount;
                 int lastRawEventCount = rawEventCount;
                 while (!Thread.currentThread().isInterrupted()) {
                     int eventCount = Dispatcher.this.eventCount;
-                    long currentTime = System.currentTimeMillis();
+                    long currentTime = s4Clock.getCurrentTime();
+                    // rates are per second of clock time
+                    double elapsedSeconds = Math.max(currentTime
+                            - lastCheckTime, 1) / 1000.0;
                     double rate = (eventCount - lastEventCount)
-                            / ((currentTime - lastCheckTime) / 1000.0);
+                            / elapsedSeconds;
                     double rawRate = (rawEventCount - lastRawEventCount)
-                            / ((currentTime - lastCheckTime) / 1000.0);
+                            / elapsedSeconds;
                     lastCheckTime = currentTime;
                     lastEventCount = eventCount;
                     lastRawEventCount = rawEventCount;
@@ -103,6 +116,21 @@ public class Dispatcher implements EventDispatcher {
                         }
                     }
 
+                    s4Clock.waitForTime(currentTime + 15000);
+                }
+
+            }
+        };
+        Thread t = new Thread(r);
+        t.start();
+
+        // the config file changes in wall time, and must be noticed even when
+        // no events move the S4 clock
+        Runnable configChecker = new Runnable() {
+            private long configFileTime = -1;
+
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
                     configCheck();
 
                     try {
@@ -111,7 +139,6 @@ public class Dispatcher implements EventDispatcher {
                         Thread.currentThread().interrupt();
                     }
                 }
-
             }
 
             private void configCheck() {
@@ -136,8 +163,8 @@ public class Dispatcher implements EventDispatcher {
                 }
             }
         };
-        Thread t = new Thread(r);
-        t.start();
+        Thread configCheckThread = new Thread(configChecker);
+        configCheckThread.start();
     }
 
     @Override
@@ -15,8 +15,6 @@
  */
 package io.s4.dispatcher.partitioner;
 
-import io.s4.schema.Schema;
-import io.s4.schema.Schema.Property;
 import io.s4.schema.SchemaContainer;
 
 import java.util.ArrayList;
@@ -33,7 +31,6 @@ public class DefaultPartitioner implements Partitioner, VariableKeyPartitioner {
     private Hasher hasher;
     private Set<String> streamNameSet;
     private String delimiter = ":";
-    private boolean fastPath = false;
 
     public void setDelimiter(String delimiter) {
         this.delimiter = delimiter;
@@ -100,113 +97,37 @@ public class DefaultPartitioner implements Partitioner, VariableKeyPartitioner {
         // have to compute key value and
         // partition based on hash of that value
 
-        Schema schema = schemaContainer.getSchema(event.getClass());
-
         if (debug) {
-            System.out.println(schema);
+            System.out.println(schemaContainer.getSchema(event.getClass()));
         }
 
-        List<CompoundKeyInfo> partitionInfoList = new ArrayList<CompoundKeyInfo>();
-
-        // fast path for single top-level key
-        if (fastPath
-                || (compoundKeyNames.size() == 1 && compoundKeyNames.get(0)
-                                                                    .size() == 1)) {
-            String simpleKeyName = compoundKeyNames.get(0).get(0);
-            if (debug) {
-                System.out.println("Using fast path!");
-            }
-            fastPath = true;
-            KeyInfo keyInfo = new KeyInfo();
-            Property property = schema.getProperties().get(simpleKeyName);
-            if (property == null) {
-                return null;
-            }
-
-            Object value = null;
-            try {
-                value = property.getGetterMethod().invoke(event);
-            } catch (Exception e) {
-                if (debug) {
-                    e.printStackTrace();
-                }
-            }
-
-            if (value == null) {
-                if (debug) {
-                    System.out.println("Fast path: Null value encountered");
-                }
-                return null;
-            }
-            keyInfo.addElementToPath(simpleKeyName);
-            String stringValue = String.valueOf(value);
-            keyInfo.setValue(stringValue);
-            CompoundKeyInfo partitionInfo = new CompoundKeyInfo();
-            partitionInfo.addKeyInfo(keyInfo);
-            int partitionId = (int) (hasher.hash(stringValue) % partitionCount);
-            partitionInfo.setPartitionId(partitionId);
-            partitionInfo.setCompoundValue(stringValue);
-            partitionInfoList.add(partitionInfo);
+        KeyExtractor keyExtractor = KeyExtractor.getExtractor(event.getClass(),
+                                                              compoundKeyNames);
+        if (keyExtractor == null) {
             if (debug) {
-                System.out.printf("Value %s, partition id %d\n",
-                                  stringValue,
-                                  partitionInfo.getPartitionId());
+                System.out.println("Key not found in " + event.getClass());
             }
-            return partitionInfoList;
+            return null;
         }
 
-        List<List<KeyInfo>> valueLists = new ArrayList<List<KeyInfo>>();
-        int maxSize = 0;
-
-        for (List<String> simpleKeyPath : compoundKeyNames) {
-            List<KeyInfo> keyInfoList = new ArrayList<KeyInfo>();
-            KeyInfo keyInfo = new KeyInfo();
-            keyInfoList = getKeyValues(event,
-                                       schema,
-                                       simpleKeyPath,
-                                       0,
-                                       keyInfoList,
-                                       keyInfo);
-            if (keyInfoList == null || keyInfoList.size() == 0) {
-                if (debug) {
-                    System.out.println("Null value encountered");
-                }
-                return null; // do no partitioning if any simple key's value
-                             // resolves to null
-            }
-            valueLists.add(keyInfoList);
-            maxSize = Math.max(maxSize, keyInfoList.size());
-
+        List<CompoundKeyInfo> partitionInfoList = keyExtractor.getCompoundKeyInfos(event,
+                                                                                   delimiter);
+        if (partitionInfoList == null) {
             if (debug) {
-                printKeyInfoList(keyInfoList);
+                System.out.println("Null value encountered");
             }
+            return null; // do no partitioning if any simple key's value
+                         // resolves to null
         }
 
-        for (int i = 0; i < maxSize; i++) {
-            String compoundValue = "";
-            CompoundKeyInfo partitionInfo = new CompoundKeyInfo();
-            for (List<KeyInfo> keyInfoList : valueLists) {
-                if (i < keyInfoList.size()) {
-                    compoundValue += (compoundValue.length() > 0 ? delimiter
-                            : "") + keyInfoList.get(i).getValue();
-                    partitionInfo.addKeyInfo(keyInfoList.get(i));
-                } else {
-                    compoundValue += (compoundValue.length() > 0 ? delimiter
-                            : "")
-                            + keyInfoList.get(keyInfoList.size() - 1)
-                                         .getValue();
-                    partitionInfo.addKeyInfo(keyInfoList.get(keyInfoList.size() - 1));
-                }
-            }
-
+        for (CompoundKeyInfo partitionInfo : partitionInfoList) {
             // get the partition id
-            int partitionId = (int) (hasher.hash(compoundValue) % partitionCount);
+            int partitionId = (int) (hasher.hash(partitionInfo.getCompoundValue()) % partitionCount);
             partitionInfo.setPartitionId(partitionId);
-            partitionInfo.setCompoundValue(compoundValue);
-            partitionInfoList.add(partitionInfo);
             if (debug) {
+                printKeyInfoList(partitionInfo.getKeyInfoList());
                 System.out.printf("Value %s, partition id %d\n",
-                                  compoundValue,
+                                  partitionInfo.getCompoundValue(),
                                   partitionInfo.getPartitionId());
             }
         }
@@ -239,68 +160,6 @@ public class DefaultPartitioner implements Partitioner, VariableKeyPartitioner {
         }
     }
 
-    private List<KeyInfo> getKeyValues(Object record, Schema schema,
-                                       List<String> keyNameElements,
-                                       int elementIndex,
-                                       List<KeyInfo> keyInfoList,
-                                       KeyInfo keyInfo) {
-        String keyElement = keyNameElements.get(elementIndex);
-        Property property = schema.getProperties().get(keyElement);
-        if (property == null) {
-            return null;
-        }
-
-        keyInfo.addElementToPath(keyElement);
-
-        Object value = null;
-        try {
-            value = property.getGetterMethod().invoke(record);
-        } catch (Exception e) {
-            if (debug) {
-                System.out.println("key element is " + keyElement);
-                e.printStackTrace();
-            }
-        }
-
-        if (value == null) {
-            return null; // return a null KeyInfo list if we hit a null value
-        }
-        if (property.isList()) {
-            List list = (List) value;
-            // TODO: handle case where key does not include property of
-            // component type
-            Schema componentSchema = property.getComponentProperty()
-                                             .getSchema();
-            int listLength = list.size();
-            for (int i = 0; i < listLength; i++) {
-                Object listEntry = list.get(i);
-                KeyInfo keyInfoForListEntry = keyInfo.copy();
-                keyInfoForListEntry.addElementToPath(i);
-                Object partialList = getKeyValues(listEntry,
-                                                  componentSchema,
-                                                  keyNameElements,
-                                                  elementIndex + 1,
-                                                  keyInfoList,
-                                                  keyInfoForListEntry);
-                if (partialList == null) {
-                    return null;
-                }
-            }
-        } else if (property.getSchema() != null) {
-            return getKeyValues(value,
-                                property.getSchema(),
-                                keyNameElements,
-                                elementIndex + 1,
-                                keyInfoList,
-                                keyInfo);
-        } else {
-            keyInfo.setValue(String.valueOf(value));
-            keyInfoList.add(keyInfo);
-        }
-
-        return keyInfoList;
-    }
-
     public static void main(String args[]) {
         DefaultPartitioner dp1 = new DefaultPartitioner();
         DefaultPartitioner dp2 = new DefaultPartitioner();
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.dispatcher.partitioner;
+
+import io.s4.dispatcher.partitioner.KeyInfo.KeyPathElement;
+import io.s4.dispatcher.partitioner.KeyInfo.KeyPathElementIndex;
+import io.s4.dispatcher.partitioner.KeyInfo.KeyPathElementName;
+import io.s4.schema.PropertyAccessor;
+import io.s4.schema.Schema;
+import io.s4.schema.Schema.Property;
+import io.s4.schema.SchemaContainer;
+import io.s4.util.ClassCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Extracts the values of a set of key paths from events of a given class.
+ * <p>
+ * Each key path (such as <code>array1/val1</code>) is resolved once against
+ * the event class's {@link Schema} into a chain of getters, so that extracting
+ * keys from an event does not look up schemas or properties by name. Extractors
+ * are cached per event class and key paths; use {@link #getExtractor}.
+ */
+public class KeyExtractor {
+    private static Logger logger = Logger.getLogger("s4");
+    // shared, since index path elements are never modified
+    private static final KeyPathElementIndex[] INDEX_ELEMENTS = new KeyPathElementIndex[64];
+    static {
+        for (int i = 0; i < INDEX_ELEMENTS.length; i++) {
+            INDEX_ELEMENTS[i] = new KeyPathElementIndex(i);
+        }
+    }
+    // cached for key paths that do not resolve against the event class
+    private static final KeyExtractor UNRESOLVED = new KeyExtractor(new Step[0][]);
+
+    // per event class, extractors keyed by key path list or compound key;
+    // the cache does not keep event classes from being unloaded
+    private static ClassCache<ConcurrentHashMap<Object, KeyExtractor>> extractors = new ClassCache<ConcurrentHashMap<Object, KeyExtractor>>();
+
+    private Step[][] paths;
+
+    private KeyExtractor(Step[][] paths) {
+        this.paths = paths;
+    }
+
+    /**
+     * Returns the extractor of the specified key paths, each a list of
+     * property names, or null if a path does not resolve to a simple value
+     * for the event class.
+     */
+    public static KeyExtractor getExtractor(Class<?> eventClass,
+                                            List<List<String>> keyNames) {
+        ConcurrentHashMap<Object, KeyExtractor> classExtractors = getClassExtractors(eventClass);
+        KeyExtractor extractor = classExtractors.get(keyNames);
+        if (extractor == null) {
+            extractor = compile(eventClass, keyNames);
+            classExtractors.put(keyNames, extractor);
+        }
+        return (extractor == UNRESOLVED) ? null : extractor;
+    }
+
+    /**
+     * Returns the extractor of the key paths of a compound key as returned by
+     * {@link CompoundKeyInfo#getCompoundKey()}, such as
+     * <code>array1/val1,query</code>, or null if a path does not resolve to
+     * a simple value for the event class.
+     */
+    public static KeyExtractor getExtractor(Class<?> eventClass,
+                                            String compoundKey) {
+        ConcurrentHashMap<Object, KeyExtractor> classExtractors = getClassExtractors(eventClass);
+        KeyExtractor extractor = classExtractors.get(compoundKey);
+        if (extractor == null) {
+            List<List<String>> keyNames = new ArrayList<List<String>>();
+            StringTokenizer keyTokenizer = new StringTokenizer(compoundKey, ",");
+            while (keyTokenizer.hasMoreTokens()) {
+                List<String> keyNameElements = new ArrayList<String>();
+                StringTokenizer st = new StringTokenizer(keyTokenizer.nextToken(),
+                                                         "/");
+                while (st.hasMoreTokens()) {
+                    keyNameElements.add(st.nextToken());
+                }
+                keyNames.add(keyNameElements);
+            }
+            extractor = compile(eventClass, keyNames);
+            classExtractors.put(compoundKey, extractor);
+        }
+        return (extractor == UNRESOLVED) ? null : extractor;
+    }
+
+    private static ConcurrentHashMap<Object, KeyExtractor> getClassExtractors(Class<?> eventClass) {
+        ConcurrentHashMap<Object, KeyExtractor> classExtractors = extractors.get(eventClass);
+        if (classExtractors == null) {
+            classExtractors = extractors.putIfAbsent(eventClass,
+                                                     new ConcurrentHashMap<Object, KeyExtractor>());
+        }
+        return classExtractors;
+    }
+
+    private static KeyExtractor compile(Class<?> eventClass,
+                                        List<List<String>> keyNames) {
+        Schema eventSchema = SchemaContainer.lookup(eventClass);
+        Step[][] paths = new Step[keyNames.size()][];
+        for (int i = 0; i < paths.length; i++) {
+            List<String> keyNameElements = keyNames.get(i);
+            if (keyNameElements.isEmpty()) {
+                return UNRESOLVED;
+            }
+            Step[] path = new Step[keyNameElements.size()];
+            // a single top-level key is always used as a whole, as the
+            // partitioner always did, even if it is a list or has a schema
+            // of its own (a Date, say)
+            boolean wholeValue = (paths.length == 1 && path.length == 1);
+            Schema schema = eventSchema;
+            for (int j = 0; j < path.length; j++) {
+                Property property = (schema == null) ? null
+                        : schema.getProperties().get(keyNameElements.get(j));
+                if (property == null || property.getGetterMethod() == null) {
+                    return UNRESOLVED;
+                }
+
+                boolean isLast = (j == path.length - 1);
+                if (wholeValue) {
+                    path[j] = new Step(keyNameElements.get(j), property, false);
+                    continue;
+                }
+                if (property.isList()) {
+                    if (isLast) {
+                        return UNRESOLVED;
+                    }
+                    schema = property.getComponentProperty().getSchema();
+                } else if (property.getSchema() != null) {
+                    if (isLast) {
+                        return UNRESOLVED;
+                    }
+                    schema = property.getSchema();
+                } else if (!isLast) {
+                    return UNRESOLVED;
+                }
+                path[j] = new Step(keyNameElements.get(j),
+                                   property,
+                                   property.isList());
+            }
+            paths[i] = path;
+        }
+        return new KeyExtractor(paths);
+    }
+
+    /**
+     * Extracts the compound keys of an event. A key path that goes through a
+     * list yields one value per list element; the event then has one compound
+     * key per element of the longest list, with shorter lists repeating their
+     * last value. The partition ids of the returned compound keys are not set.
+     * 
+     * @return the compound keys, or null if any key value is null
+     */
+    public List<CompoundKeyInfo> getCompoundKeyInfos(Object event,
+                                                     String delimiter) {
+        List<CompoundKeyInfo> compoundKeyInfos = new ArrayList<CompoundKeyInfo>();
+
+        // single key, no lists: the common case
+        if (paths.length == 1 && paths[0].length == 1) {
+            Step step = paths[0][0];
+            Object value = step.get(event);
+            if (value == null) {
+                return null;
+            }
+            KeyInfo keyInfo = new KeyInfo();
+            keyInfo.keyPath.add(step.pathElement);
+            String stringValue = String.valueOf(value);
+            keyInfo.setValue(stringValue);
+            CompoundKeyInfo compoundKeyInfo = new CompoundKeyInfo();
+            compoundKeyInfo.addKeyInfo(keyInfo);
+            compoundKeyInfo.setCompoundValue(stringValue);
+            compoundKeyInfos.add(compoundKeyInfo);
+            return compoundKeyInfos;
+        }
+
+        List<List<KeyInfo>> valueLists = new ArrayList<List<KeyInfo>>(paths.length);
+        int maxSize = 0;
+        List<KeyPathElement> keyPath = new ArrayList<KeyPathElement>();
+        for (Step[] path : paths) {
+            List<KeyInfo> keyInfoList = new ArrayList<KeyInfo>();
+            keyPath.clear();
+            if (!collect(event, path, 0, keyPath, keyInfoList)
+                    || keyInfoList.isEmpty()) {
+                return null;
+            }
+            valueLists.add(keyInfoList);
+            maxSize = Math.max(maxSize, keyInfoList.size());
+        }
+
+        StringBuilder compoundValue = new StringBuilder();
+        for (int i = 0; i < maxSize; i++) {
+            compoundValue.setLength(0);
+            CompoundKeyInfo compoundKeyInfo = new CompoundKeyInfo();
+            for (List<KeyInfo> keyInfoList : valueLists) {
+                KeyInfo keyInfo = keyInfoList.get(Math.min(i,
+                                                           keyInfoList.size() - 1));
+                if (compoundValue.length() > 0) {
+                    compoundValue.append(delimiter);
+                }
+                compoundValue.append(keyInfo.getValue());
+                compoundKeyInfo.addKeyInfo(keyInfo);
+            }
+            compoundKeyInfo.setCompoundValue(compoundValue.toString());
+            compoundKeyInfos.add(compoundKeyInfo);
+        }
+        return compoundKeyInfos;
+    }
+
+    // adds a KeyInfo per value reached from record along path[stepIndex...],
+    // returning false if a value on the way is null
+    private boolean collect(Object record, Step[] path, int stepIndex,
+                            List<KeyPathElement> keyPath,
+                            List<KeyInfo> keyInfoList) {
+        Step step = path[stepIndex];
+        Object value = step.get(record);
+        if (value == null) {
+            return false;
+        }
+        keyPath.add(step.pathElement);
+
+        if (step.isList) {
+            List<?> list = (List<?>) value;
+            for (int i = 0; i < list.size(); i++) {
+                keyPath.add((i < INDEX_ELEMENTS.length) ? INDEX_ELEMENTS[i]
+                        : new KeyPathElementIndex(i));
+                boolean found = collect(list.get(i),
+                                        path,
+                                        stepIndex + 1,
+                                        keyPath,
+                                        keyInfoList);
+                keyPath.remove(keyPath.size() - 1);
+                if (!found) {
+                    return false;
+                }
+            }
+        } else if (stepIndex < path.length - 1) {
+            if (!collect(value, path, stepIndex + 1, keyPath, keyInfoList)) {
+                return false;
+            }
+        } else {
+            KeyInfo keyInfo = new KeyInfo();
+            keyInfo.keyPath.addAll(keyPath);
+            keyInfo.setValue(String.valueOf(value));
+            keyInfoList.add(keyInfo);
+        }
+
+        keyPath.remove(keyPath.size() - 1);
+        return true;
+    }
+
+    /**
+     * Appends the value of each key of a compound key of the event, following
+     * the list indexes in its key paths, to <code>values</code>, and the
+     * object holding each value to <code>records</code>, if not null.
+     * 
+     * @return false if a value is null, in which case the lists may hold
+     *         some of the values
+     */
+    public boolean getKeyValues(Object event, CompoundKeyInfo compoundKeyInfo,
+                                List<Object> values, List<Object> records) {
+        List<KeyInfo> keyInfoList = compoundKeyInfo.getKeyInfoList();
+        for (int i = 0; i < keyInfoList.size() && i < paths.length; i++) {
+            Step[] path = paths[i];
+            Object record = event;
+            List<?> list = null;
+            int stepIndex = 0;
+            for (KeyPathElement keyPathElement : keyInfoList.get(i).getKeyPath()) {
+                if (keyPathElement instanceof KeyPathElementIndex) {
+                    record = list.get(((KeyPathElementIndex) keyPathElement).getIndex());
+                    continue;
+                }
+
+                Step step = path[stepIndex++];
+                Object value = step.get(record);
+                if (value == null) {
+                    logger.error("Value for " + step.pathElement.getKeyName()
+                            + " is null!");
+                    return false;
+                }
+                if (step.isList) {
+                    list = (List<?>) value;
+                } else if (stepIndex < path.length) {
+                    record = value;
+                } else {
+                    values.add(value);
+                    if (records != null) {
+                        records.add(record);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private static class Step {
+        private KeyPathElementName pathElement;
+        private PropertyAccessor accessor;
+        private boolean isList;
+
+        /**
+         * @param isList
+         *            whether the path continues into the elements of the list
+         *            this step returns
+         */
+        Step(String keyName, Property property, boolean isList) {
+            this.pathElement = new KeyPathElementName(keyName);
+            this.accessor = property.getAccessor();
+            this.isList = isList;
+        }
+
+        Object get(Object record) {
+            try {
+                return accessor.get(record);
+            } catch (Exception e) {
+                logger.error("Exception getting " + pathElement.getKeyName(), e);
+                return null;
+            }
+        }
+    }
+}
@@ -20,6 +20,9 @@ import static io.s4.util.MetricsName.low_level_listener_badmsg_ct;
 import static io.s4.util.MetricsName.low_level_listener_msg_drop_ct;
 import static io.s4.util.MetricsName.low_level_listener_msg_in_ct;
 import static io.s4.util.MetricsName.low_level_listener_qsz;
+import static io.s4.util.MetricsName.low_level_listener_wait_time_p50;
+import static io.s4.util.MetricsName.low_level_listener_wait_time_p99;
+import static io.s4.util.MetricsName.low_level_listener_wait_time_p999;
 import static io.s4.util.MetricsName.s4_core_exit_ct;
 import io.s4.collector.EventWrapper;
 import io.s4.comm.core.CommEventCallback;
@@ -28,14 +31,18 @@ import io.s4.comm.core.Deserializer;
 import io.s4.comm.core.ListenerProcess;
 import io.s4.logger.Monitor;
 import io.s4.serialize.SerializerDeserializer;
+import io.s4.util.LatencyHistogram;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.log4j.Logger;
@@ -54,6 +61,10 @@ public class CommLayerListener implements EventListener, Runnable {
     private int partitionId = -1;
     private int zkConnected = 1;
     private SerializerDeserializer serDeser;
+    private boolean trackQueueResidency;
+    private List<Dequeuer> dequeuers = new CopyOnWriteArrayList<Dequeuer>();
+    private Map<String, LatencyHistogram> lastQueueWaitHistograms = new HashMap<String, LatencyHistogram>();
+    private long lastPublishTime;
 
     public void setSerDeser(SerializerDeserializer serDeser) {
         this.serDeser = serDeser;
@@ -68,6 +79,14 @@ public class CommLayerListener implements EventListener, Runnable {
         this.maxQueueSize = maxQueueSize;
     }
 
+    /**
+     * Sets whether messages are timestamped when they are queued, so that the
+     * time they wait in the message queue is kept per stream. Off by default.
+     */
+    public void setTrackQueueResidency(boolean trackQueueResidency) {
+        this.trackQueueResidency = trackQueueResidency;
+    }
+
     @Override
     public int getId() {
         return partitionId;
@@ -154,7 +173,9 @@ public class CommLayerListener implements EventListener, Runnable {
         System.out.println("dequeuer number: " + dequeuerCount);
 
         for (int i = 0; i < dequeuerCount; i++) {
-            t = new Thread(new Dequeuer(this, i));
+            Dequeuer dequeuer = new Dequeuer(this, i);
+            dequeuers.add(dequeuer);
+            t = new Thread(dequeuer);
             // t.setPriority(Thread.MIN_PRIORITY);
             t.start();
         }
@@ -192,7 +213,12 @@ public class CommLayerListener implements EventListener, Runnable {
             byte[] message = (byte[]) process.listen();
 
             try {
-                isAddMessageSucceeded = messageQueue.offer(message);
+                if (trackQueueResidency) {
+                    isAddMessageSucceeded = messageQueue.offer(new QueuedMessage(message,
+                                                                                 System.nanoTime()));
+                } else {
+                    isAddMessageSucceeded = messageQueue.offer(message);
+                }
                 if (monitor != null) {
                     monitor.set(low_level_listener_qsz.toString(),
                                 messageQueue.size(),
@@ -206,6 +232,9 @@ public class CommLayerListener implements EventListener, Runnable {
                                           1,
                                           S4_CORE_METRICS.toString());
                     }
+                    if (trackQueueResidency) {
+                        publishQueueWaitTimes();
+                    }
                 }
             } catch (Exception e) {
                 Logger.getLogger("s4")
@@ -220,9 +249,78 @@ public class CommLayerListener implements EventListener, Runnable {
         return messageQueue.take();
     }
 
+    /**
+     * Returns a snapshot of the time, in nanoseconds, messages spent in the
+     * message queue, keyed by stream name. Empty unless queue residency
+     * tracking is on.
+     * 
+     * @see #setTrackQueueResidency(boolean)
+     */
+    public Map<String, LatencyHistogram> getQueueWaitHistograms() {
+        Map<String, LatencyHistogram> histograms = new HashMap<String, LatencyHistogram>();
+        for (Dequeuer dequeuer : dequeuers) {
+            LatencyHistogram.addAll(histograms, dequeuer.queueWaitHistograms);
+        }
+        return histograms;
+    }
+
+    // publishes the percentiles of the last interval, in microseconds, at most
+    // every 10 seconds
+    private void publishQueueWaitTimes() {
+        long currentTime = System.currentTimeMillis();
+        if (currentTime - lastPublishTime < 10000) {
+            return;
+        }
+        lastPublishTime = currentTime;
+
+        Map<String, LatencyHistogram> histograms = getQueueWaitHistograms();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram interval = entry.getValue().copy();
+            LatencyHistogram last = lastQueueWaitHistograms.get(entry.getKey());
+            if (last != null) {
+                interval.subtract(last);
+            }
+            if (interval.getCount() == 0) {
+                continue;
+            }
+            monitor.set(low_level_listener_wait_time_p50.toString(),
+                        (int) (interval.getValueAtPercentile(50) / 1000),
+                        S4_CORE_METRICS.toString(),
+                        "st",
+                        entry.getKey());
+            monitor.set(low_level_listener_wait_time_p99.toString(),
+                        (int) (interval.getValueAtPercentile(99) / 1000),
+                        S4_CORE_METRICS.toString(),
+                        "st",
+                        entry.getKey());
+            monitor.set(low_level_listener_wait_time_p999.toString(),
+                        (int) (interval.getValueAtPercentile(99.9) / 1000),
+                        S4_CORE_METRICS.toString(),
+                        "st",
+                        entry.getKey());
+        }
+        lastQueueWaitHistograms = histograms;
+    }
+
+    /**
+     * A raw message with the <code>System.nanoTime()</code> at which it was
+     * queued.
+     */
+    static class QueuedMessage {
+        private byte[] message;
+        private long enqueueTime;
+
+        QueuedMessage(byte[] message, long enqueueTime) {
+            this.message = message;
+            this.enqueueTime = enqueueTime;
+        }
+    }
+
     class Dequeuer implements Runnable {
         private int id;
         private CommLayerListener rawListener;
+        // only written by this dequeuer's thread
+        Map<String, LatencyHistogram> queueWaitHistograms = new ConcurrentHashMap<String, LatencyHistogram>();
 
         public Dequeuer(CommLayerListener rawListener, int id) {
             this.id = id;
@@ -232,8 +330,14 @@ public class CommLayerListener implements EventListener, Runnable {
         public void run() {
             while (!Thread.interrupted()) {
                 try {
-                    byte[] rawMessage = (byte[]) rawListener.takeMessage();
-                    processMessage(rawMessage);
+                    Object message = rawListener.takeMessage();
+                    if (message instanceof QueuedMessage) {
+                        QueuedMessage queuedMessage = (QueuedMessage) message;
+                        processMessage(queuedMessage.message,
+                                       queuedMessage.enqueueTime);
+                    } else {
+                        processMessage((byte[]) message, 0);
+                    }
                 } catch (InterruptedException ie) {
                     Thread.currentThread().interrupt();
                 }
@@ -241,6 +345,16 @@ public class CommLayerListener implements EventListener, Runnable {
         }
 
         public void processMessage(byte[] rawMessage) {
+            processMessage(rawMessage, 0);
+        }
+
+        /**
+         * @param enqueueTime
+         *            the <code>System.nanoTime()</code> at which the message
+         *            was queued, or 0 if unknown
+         */
+        public void processMessage(byte[] rawMessage, long enqueueTime) {
+            long dequeueTime = (enqueueTime != 0) ? System.nanoTime() : 0;
             // convert the byte array into an event object
             EventWrapper eventWrapper = null;
             try {
@@ -258,6 +372,10 @@ public class CommLayerListener implements EventListener, Runnable {
             }
 
             if (eventWrapper != null) {
+                if (enqueueTime != 0) {
+                    recordQueueWait(eventWrapper.getStreamName(), dequeueTime
+                            - enqueueTime);
+                }
                 for (EventHandler handler : handlers) {
                     try {
                         handler.processEvent(eventWrapper);
@@ -269,6 +387,14 @@ public class CommLayerListener implements EventListener, Runnable {
             }
         }
 
+        private void recordQueueWait(String streamName, long waitTime) {
+            LatencyHistogram histogram = queueWaitHistograms.get(streamName);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                queueWaitHistograms.put(streamName, histogram);
+            }
+            histogram.record(waitTime);
+        }
     }
 
     public class PassThroughDeserializer implements Deserializer {
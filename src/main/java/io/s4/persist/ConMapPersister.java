@@ -15,10 +15,13 @@
  */
 package io.s4.persist;
 
+import io.s4.util.TimingWheel;
 import io.s4.util.clock.Clock;
+import io.s4.util.clock.ClockUtil;
 
-import java.util.Enumeration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -26,6 +29,18 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
+/**
+ * A {@link Persister} backed by a <code>ConcurrentHashMap</code>.
+ * <p>
+ * Entries with a period are indexed by expiry time, in seconds, in a
+ * {@link TimingWheel}, so {@link #cleanOutGarbage()} only looks at the
+ * entries that are due rather than at the whole map. Setting a key to the
+ * value it already holds just refreshes the entry's time; its timer is moved
+ * when it comes due. Replacing or removing an entry cancels its timer.
+ * <p>
+ * Refreshing an entry and removing it once expired both lock the entry, so
+ * an entry that is refreshed is never removed for expiring.
+ */
 public class ConMapPersister implements Persister {
     private AtomicInteger persistCount = new AtomicInteger(0);
     private boolean selfClean = false;
@@ -33,6 +48,7 @@ public class ConMapPersister implements Persister {
     private String loggerName = "s4";
     ConcurrentHashMap<String, CacheEntry> cache;
     Clock s4Clock;
+    TimingWheel<CacheEntry> expiryWheel = new TimingWheel<CacheEntry>(0);
 
     private int startCapacity = 5000;
 
@@ -78,11 +94,8 @@ public class ConMapPersister implements Persister {
                         Logger.getLogger(loggerName).info("Cleaned out "
                                 + cleanCount + " entries; Persister has "
                                 + cache.size() + " entries");
-                        try {
-                            Thread.sleep(cleanWaitTime * 1000);
-                        } catch (InterruptedException ie) {
-                            Thread.currentThread().interrupt();
-                        }
+                        s4Clock.waitForTime(s4Clock.getCurrentTime()
+                                + (cleanWaitTime * 1000));
                     }
                 }
             };
@@ -111,11 +124,46 @@ public class ConMapPersister implements Persister {
 
     public void set(String key, Object value, int period) {
         persistCount.getAndIncrement();
-        CacheEntry ce = new CacheEntry();
+        long currentTime = ClockUtil.getCoarseTime(s4Clock);
+        CacheEntry ce = cache.get(key);
+        if (ce != null && ce.value == value && ce.period == period
+                && ce.refresh(currentTime)) {
+            // the timer of the entry is moved when it comes due
+            return;
+        }
+
+        ce = new CacheEntry();
+        ce.key = key;
         ce.value = value;
         ce.period = period;
-        ce.addTime = s4Clock.getCurrentTime();
-        cache.put(key, ce);
+        ce.addTime = currentTime;
+        CacheEntry replaced = cache.put(key, ce);
+        if (replaced != null || period > 0) {
+            synchronized (expiryWheel) {
+                cancelTimer(replaced);
+                // unless another set has already replaced this entry
+                if (period > 0 && cache.get(key) == ce) {
+                    ce.timer = expiryWheel.schedule(ce.getExpiryTick(), ce);
+                }
+            }
+        }
+    }
+
+    // must hold the expiryWheel lock
+    private void cancelTimer(CacheEntry ce) {
+        if (ce != null && ce.timer != null) {
+            expiryWheel.cancel(ce.timer);
+            ce.timer = null;
+        }
+    }
+
+    public boolean touch(String key) {
+        CacheEntry ce = cache.get(key);
+        if (ce == null) {
+            return false;
+        }
+
+        return ce.refresh(ClockUtil.getCoarseTime(s4Clock));
     }
 
     public Object get(String key) {
@@ -151,17 +199,52 @@ public class ConMapPersister implements Persister {
     }
 
     public void remove(String key) {
-        cache.remove(key);
+        CacheEntry ce = cache.remove(key);
+        if (ce != null && ce.timer != null) {
+            synchronized (expiryWheel) {
+                cancelTimer(ce);
+            }
+        }
     }
 
     public int cleanOutGarbage() {
+        long currentTime = ClockUtil.getCoarseTime(s4Clock);
+        List<CacheEntry> dueEntries = new ArrayList<CacheEntry>();
+        synchronized (expiryWheel) {
+            expiryWheel.advance(currentTime / 1000, dueEntries);
+        }
+
         int count = 0;
-        for (Enumeration en = cache.keys(); en.hasMoreElements();) {
-            String key = (String) en.nextElement();
-            CacheEntry ce = cache.get(key);
-            if (ce != null && ce.isExpired()) {
-                count++;
-                cache.remove(key);
+        List<CacheEntry> refreshedEntries = null;
+        for (CacheEntry ce : dueEntries) {
+            if (cache.get(ce.key) != ce) {
+                // replaced or removed since it was scheduled
+                continue;
+            }
+            // checked under the entry's lock, so a concurrent refresh either
+            // happens first and keeps the entry, or finds it expired
+            synchronized (ce) {
+                if (ce.isExpired()) {
+                    if (cache.remove(ce.key, ce)) {
+                        count++;
+                    }
+                    continue;
+                }
+            }
+            if (refreshedEntries == null) {
+                refreshedEntries = new ArrayList<CacheEntry>();
+            }
+            refreshedEntries.add(ce);
+        }
+
+        if (refreshedEntries != null) {
+            synchronized (expiryWheel) {
+                for (CacheEntry ce : refreshedEntries) {
+                    if (cache.get(ce.key) == ce) {
+                        ce.timer = expiryWheel.schedule(ce.getExpiryTick(),
+                                                        ce);
+                    }
+                }
             }
         }
         return count;
@@ -172,13 +255,34 @@ public class ConMapPersister implements Persister {
     }
 
     public class CacheEntry {
+        String key;
         Object value;
-        long addTime;
+        volatile long addTime;
         int period;
+        // guarded by expiryWheel
+        TimingWheel.Timer<CacheEntry> timer;
+
+        /**
+         * Sets the add time of the entry, unless it has already expired.
+         * 
+         * @return false if the entry has expired
+         */
+        synchronized boolean refresh(long currentTime) {
+            if (isExpired()) {
+                return false;
+            }
+            addTime = currentTime;
+            return true;
+        }
+
+        // expiry time in whole seconds, rounded up
+        long getExpiryTick() {
+            return (addTime + (1000 * (long) period) + 999) / 1000;
+        }
 
         public boolean isExpired() {
             if (period > 0) {
-                if ((addTime + (1000 * (long) period)) <= s4Clock.getCurrentTime()) {
+                if ((addTime + (1000 * (long) period)) <= ClockUtil.getCoarseTime(s4Clock)) {
                     return true;
                 }
             }
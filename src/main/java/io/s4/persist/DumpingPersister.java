@@ -80,20 +80,14 @@ public class DumpingPersister extends ConMapPersister implements Runnable {
 
     public void run() {
         long boundaryInMillis = outputTimeBoundary * 1000;
-        long currentTime = System.currentTimeMillis();
+        long currentTime = s4Clock.getCurrentTime();
         while (!Thread.interrupted()) {
             long currentBoundary = (currentTime / boundaryInMillis)
                     * boundaryInMillis;
-            long interval = ((currentBoundary + boundaryInMillis) - System.currentTimeMillis());
-            if (interval > 0) {
-                try {
-                    Thread.sleep(interval);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                }
-            }
-
-            currentTime = System.currentTimeMillis();
+            // waits in the time of the clock, so a replay dumps at the
+            // boundaries of the replayed time
+            currentTime = s4Clock.waitForTime(currentBoundary
+                    + boundaryInMillis);
 
             try {
                 output();
@@ -16,6 +16,7 @@
 package io.s4.persist;
 
 import io.s4.util.clock.Clock;
+import io.s4.util.clock.ClockUtil;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -76,11 +77,8 @@ public class HashMapPersister implements Persister {
                         Logger.getLogger(loggerName).info("Cleaned out "
                                 + cleanCount + " entries; Persister has "
                                 + cache.size() + " entries");
-                        try {
-                            Thread.sleep(cleanWaitTime * 1000);
-                        } catch (InterruptedException ie) {
-                            Thread.currentThread().interrupt();
-                        }
+                        s4Clock.waitForTime(s4Clock.getCurrentTime()
+                                + (cleanWaitTime * 1000));
                     }
                 }
             };
@@ -115,10 +113,20 @@ public class HashMapPersister implements Persister {
         CacheEntry ce = new CacheEntry();
         ce.value = value;
         ce.period = period;
-        ce.addTime = s4Clock.getCurrentTime();
+        ce.addTime = ClockUtil.getCoarseTime(s4Clock);
         cache.put(key, ce);
     }
 
+    public boolean touch(String key) {
+        CacheEntry ce = cache.get(key);
+        if (ce == null || ce.isExpired()) {
+            return false;
+        }
+
+        ce.addTime = ClockUtil.getCoarseTime(s4Clock);
+        return true;
+    }
+
     public Object get(String key) {
         CacheEntry ce = cache.get(key);
         if (ce == null) {
@@ -187,12 +195,12 @@ public class HashMapPersister implements Persister {
 
     public class CacheEntry {
         Object value;
-        long addTime;
+        volatile long addTime;
         int period;
 
         public boolean isExpired() {
             if (period > 0) {
-                if ((addTime + (1000 * (long) period)) <= s4Clock.getCurrentTime()) {
+                if ((addTime + (1000 * (long) period)) <= ClockUtil.getCoarseTime(s4Clock)) {
                     return true;
                 }
             }
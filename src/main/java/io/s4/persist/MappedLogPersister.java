@@ -0,0 +1,871 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.persist;
+
+import io.s4.serialize.SerializerDeserializer;
+import io.s4.util.S4Util;
+import io.s4.util.clock.Clock;
+import io.s4.util.clock.ClockUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A {@link Persister} whose entries survive a restart.
+ * <p>
+ * Every <code>set</code> and <code>remove</code> is appended as a record to
+ * the active segment, a memory-mapped file of <code>segmentSize</code> bytes
+ * in <code>directory</code>; a new segment is started when it is full. Values
+ * are serialized with the configured {@link SerializerDeserializer}. An
+ * in-memory index maps each key to the location of its latest value, which is
+ * read back from the mapped segment on <code>get</code>.
+ * <p>
+ * Maintenance, run periodically by the self-cleaning thread and also
+ * available as separate calls, drops expired entries, compacts sealed
+ * segments whose live records take less than
+ * <code>compactionThreshold</code> of the segment by copying those records to
+ * the active segment, and writes a checkpoint of the index. A checkpoint is
+ * also written when the JVM exits normally, including through
+ * <code>System.exit</code>.
+ * <p>
+ * On {@link #init()}, the index is loaded from the checkpoint and only the
+ * records appended after it are replayed. Without a usable checkpoint, every
+ * segment is replayed. A record cut short by a crash ends the replay of its
+ * segment.
+ * <p>
+ * Expiry follows the same rules as {@link ConMapPersister}. Add times
+ * refreshed by <code>touch</code> are kept in memory and saved by the next
+ * checkpoint. Writes reach the operating system as they are made, and are
+ * forced to disk by each checkpoint.
+ */
+public class MappedLogPersister implements Persister {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte SET = 1;
+    private static final byte REMOVE = 2;
+    // record layout: body length, checksum of the body, body
+    private static final int RECORD_HEADER_SIZE = 8;
+    // body layout: type, add time, period, key length, key, value
+    private static final int BODY_HEADER_SIZE = 17;
+    private static final int CHECKPOINT_MAGIC = 0x53344350;
+    private static final byte[] NO_VALUE = new byte[0];
+
+    private AtomicInteger persistCount = new AtomicInteger(0);
+    private boolean selfClean = false;
+    private int cleanWaitTime = 40; // 40 seconds by default
+    private String loggerName = "s4";
+    private int startCapacity = 5000;
+    private String directory;
+    private String name;
+    private int segmentSize = 64 * 1024 * 1024;
+    private double compactionThreshold = 0.5;
+    private SerializerDeserializer serDeser;
+    private Clock s4Clock;
+
+    private ConcurrentHashMap<String, Entry> index;
+    // appends and the deletion of segments take the write lock; reads take
+    // the read lock, so a segment is not deleted while it is read
+    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // segments by id, oldest first, guarded by the lock
+    private TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private Segment activeSegment;
+    private Thread cleaner;
+    private Thread checkpointOnExit;
+
+    public MappedLogPersister(Clock s4Clock) {
+        this.s4Clock = s4Clock;
+    }
+
+    public MappedLogPersister() {
+    }
+
+    public void setS4Clock(Clock s4Clock) {
+        this.s4Clock = s4Clock;
+    }
+
+    public void setStartCapacity(int startCapacity) {
+        this.startCapacity = startCapacity;
+    }
+
+    public int getStartCapacity() {
+        return startCapacity;
+    }
+
+    /**
+     * Sets the directory holding the segment files and the checkpoint.
+     * Required.
+     */
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Sets the name of the persister, which prefixes its file names, so that
+     * several persisters can share a directory. Required.
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Sets the size in bytes of new segment files, and so the maximum size
+     * of an entry. Defaults to 64 MB.
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Sets the fraction of a sealed segment that must hold live records for
+     * the segment to be left alone by compaction. Defaults to 0.5.
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Sets the serializer for the values. Required.
+     */
+    public void setSerDeser(SerializerDeserializer serDeser) {
+        this.serDeser = serDeser;
+    }
+
+    public void setSelfClean(boolean selfClean) {
+        this.selfClean = selfClean;
+    }
+
+    public void setCleanWaitTime(int cleanWaitTime) {
+        this.cleanWaitTime = cleanWaitTime;
+    }
+
+    public void setLoggerName(String loggerName) {
+        this.loggerName = loggerName;
+    }
+
+    public void init() {
+        if (serDeser == null) {
+            throw new IllegalStateException("serDeser must be set to use the MappedLogPersister");
+        }
+        if (directory == null) {
+            throw new IllegalStateException("directory must be set to use the MappedLogPersister");
+        }
+        if (name == null) {
+            throw new IllegalStateException("name must be set to use the MappedLogPersister");
+        }
+
+        try {
+            recover();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to open the log of persister "
+                    + name + " in " + directory, ioe);
+        }
+
+        checkpointOnExit = new Thread() {
+            public void run() {
+                try {
+                    checkpoint();
+                } catch (Exception e) {
+                    Logger.getLogger(loggerName)
+                          .error("Unable to checkpoint persister " + name, e);
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(checkpointOnExit);
+
+        if (selfClean) {
+            Runnable r = new Runnable() {
+                public void run() {
+                    while (!Thread.interrupted()) {
+                        int cleanCount = MappedLogPersister.this.cleanOutGarbage();
+                        try {
+                            int compactCount = compact();
+                            checkpoint();
+                            Logger.getLogger(loggerName).info("Cleaned out "
+                                    + cleanCount + " entries, compacted "
+                                    + compactCount
+                                    + " segments; Persister has "
+                                    + index.size() + " entries in "
+                                    + getSegmentCount() + " segments");
+                        } catch (IOException ioe) {
+                            Logger.getLogger(loggerName)
+                                  .error("Unable to compact or checkpoint persister "
+                                                 + name,
+                                         ioe);
+                        }
+                        s4Clock.waitForTime(s4Clock.getCurrentTime()
+                                + (cleanWaitTime * 1000));
+                    }
+                }
+            };
+            cleaner = new Thread(r);
+            cleaner.start();
+            cleaner.setPriority(Thread.MIN_PRIORITY);
+        }
+    }
+
+    /**
+     * Writes a checkpoint and closes the segment files. The persister may
+     * not be used afterwards.
+     */
+    public synchronized void close() throws IOException {
+        // synchronized like compact(), which scans segments without the lock:
+        // the segments are unmapped here
+        if (cleaner != null) {
+            cleaner.interrupt();
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(checkpointOnExit);
+        } catch (IllegalStateException ise) {
+            // the JVM is already exiting
+        }
+        checkpoint();
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int getQueueSize() {
+        return 0;
+    }
+
+    public int getPersistCount() {
+        return persistCount.get();
+    }
+
+    public int getCacheEntryCount() {
+        return index.size();
+    }
+
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void setAsynch(String key, Object value, int period) {
+        // there really is no asynch for the local log
+        set(key, value, period);
+    }
+
+    public void set(String key, Object value, int period) {
+        persistCount.getAndIncrement();
+        byte[] bytes = serDeser.serialize(value);
+        long addTime = ClockUtil.getCoarseTime(s4Clock);
+        lock.writeLock().lock();
+        try {
+            Entry entry = append(SET, key, addTime, period, bytes);
+            entry.segment.liveBytes.addAndGet(entry.recordSize);
+            Entry previous = index.put(key, entry);
+            if (previous != null) {
+                previous.segment.liveBytes.addAndGet(-previous.recordSize);
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to append to the log of persister "
+                                               + name,
+                                       ioe);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean touch(String key) {
+        Entry entry = index.get(key);
+        if (entry == null
+                || entry.isExpired(ClockUtil.getCoarseTime(s4Clock))) {
+            return false;
+        }
+        entry.addTime = ClockUtil.getCoarseTime(s4Clock);
+        return true;
+    }
+
+    public Object get(String key) {
+        byte[] bytes = getBytes(key);
+        if (bytes == null) {
+            return null;
+        }
+        return serDeser.deserialize(bytes);
+    }
+
+    private byte[] getBytes(String key) {
+        lock.readLock().lock();
+        try {
+            Entry entry = index.get(key);
+            if (entry == null
+                    || entry.isExpired(ClockUtil.getCoarseTime(s4Clock))) {
+                return null;
+            }
+            return entry.segment.read(entry.getValuePosition(),
+                                      entry.valueLength);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Map<String, Object> getBulk(String[] keys) {
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        for (String key : keys) {
+            Object value = get(key);
+            if (value != null) {
+                map.put(key, value);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Returns the serialized value for the key.
+     */
+    public Object getObject(String key) {
+        return getBytes(key);
+    }
+
+    public Map<String, Object> getBulkObjects(String[] keys) {
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        for (String key : keys) {
+            byte[] bytes = getBytes(key);
+            if (bytes != null) {
+                map.put(key, bytes);
+            }
+        }
+        return map;
+    }
+
+    public void remove(String key) {
+        lock.writeLock().lock();
+        try {
+            Entry previous = index.remove(key);
+            if (previous == null) {
+                return;
+            }
+            previous.segment.liveBytes.addAndGet(-previous.recordSize);
+            append(REMOVE, key, 0, 0, NO_VALUE);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to append to the log of persister "
+                                               + name,
+                                       ioe);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops expired entries from the index. Their records need no removal
+     * record, as they are expired when replayed as well; compaction writes
+     * one if it drops the record while older records of the key remain.
+     */
+    public int cleanOutGarbage() {
+        int count = 0;
+        long currentTime = ClockUtil.getCoarseTime(s4Clock);
+        for (Map.Entry<String, Entry> mapEntry : index.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            if (entry.isExpired(currentTime)
+                    && index.remove(mapEntry.getKey(), entry)) {
+                entry.segment.liveBytes.addAndGet(-entry.recordSize);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public Set<String> keySet() {
+        return new HashSet<String>(index.keySet());
+    }
+
+    /**
+     * Copies the live records of sparse sealed segments to the active
+     * segment, and deletes those segments.
+     * 
+     * @return the number of segments compacted
+     */
+    public synchronized int compact() throws IOException {
+        List<Segment> sparseSegments = new ArrayList<Segment>();
+        lock.readLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                if (segment != activeSegment
+                        && segment.liveBytes.get() < compactionThreshold
+                                * segment.capacity) {
+                    sparseSegments.add(segment);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        for (Segment segment : sparseSegments) {
+            compact(segment);
+        }
+        return sparseSegments.size();
+    }
+
+    private void compact(Segment segment) throws IOException {
+        // sealed segments do not change, so they are scanned without the lock
+        Record record = new Record();
+        int position = 0;
+        while (segment.readRecord(position, record)) {
+            lock.writeLock().lock();
+            try {
+                if (record.type == SET) {
+                    Entry entry = index.get(record.key);
+                    if (entry != null && entry.segment == segment
+                            && entry.position == position) {
+                        Entry copy = append(SET,
+                                            record.key,
+                                            entry.addTime,
+                                            entry.period,
+                                            segment.read(record.valuePosition,
+                                                         record.valueLength));
+                        copy.segment.liveBytes.addAndGet(copy.recordSize);
+                        index.put(record.key, copy);
+                    } else if (entry == null
+                            && segments.firstKey() < segment.id) {
+                        // the key expired, so the dropped record may be all
+                        // that hides an older record of the key from replay
+                        append(REMOVE, record.key, 0, 0, NO_VALUE);
+                    }
+                } else if (!index.containsKey(record.key)
+                        && segments.firstKey() < segment.id) {
+                    // the removal must still hide the older records of the key
+                    append(REMOVE, record.key, 0, 0, NO_VALUE);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            position += record.size;
+        }
+
+        lock.writeLock().lock();
+        try {
+            segments.remove(segment.id);
+            segment.delete();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forces the segments to disk and writes the index to the checkpoint
+     * file, from which {@link #init()} rebuilds the index after a restart.
+     */
+    public synchronized void checkpoint() throws IOException {
+        // records appended from here on are replayed after the checkpoint, so
+        // the index may change while it is written
+        int segmentId;
+        int position;
+        List<Segment> dirtySegments = new ArrayList<Segment>();
+        lock.writeLock().lock();
+        try {
+            if (segments.isEmpty()) {
+                return;
+            }
+            segmentId = activeSegment.id;
+            position = activeSegment.writePosition;
+            for (Segment segment : segments.values()) {
+                if (segment.dirty) {
+                    dirtySegments.add(segment);
+                    segment.dirty = false;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (Segment segment : dirtySegments) {
+            segment.buffer.force();
+        }
+
+        File file = getCheckpointFile();
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(segmentId);
+            out.writeInt(position);
+            for (Map.Entry<String, Entry> mapEntry : index.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                byte[] keyBytes = mapEntry.getKey().getBytes(UTF8);
+                out.writeInt(keyBytes.length);
+                out.write(keyBytes);
+                out.writeInt(entry.segment.id);
+                out.writeInt(entry.position);
+                out.writeInt(entry.valueLength);
+                out.writeInt(entry.recordSize);
+                out.writeLong(entry.addTime);
+                out.writeInt(entry.period);
+            }
+            out.writeInt(-1);
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            file.delete();
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tempFile + " to "
+                        + file);
+            }
+        }
+    }
+
+    private File getCheckpointFile() {
+        return new File(directory, name + ".checkpoint");
+    }
+
+    private void recover() throws IOException {
+        File dir = new File(directory);
+        dir.mkdirs();
+        String prefix = name + "-";
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String fileName = file.getName();
+                if (!fileName.startsWith(prefix) || !fileName.endsWith(".log")) {
+                    continue;
+                }
+                try {
+                    int id = Integer.parseInt(fileName.substring(prefix.length(),
+                                                                 fileName.length() - 4));
+                    segments.put(id, new Segment(id, file, 0));
+                } catch (NumberFormatException nfe) {
+                    // not a segment of this persister
+                }
+            }
+        }
+
+        index = new ConcurrentHashMap<String, Entry>(startCapacity);
+        if (segments.isEmpty()) {
+            activeSegment = newSegment(0);
+            return;
+        }
+
+        int replaySegmentId = segments.firstKey();
+        int replayPosition = 0;
+        int[] checkpointPosition = loadCheckpoint();
+        if (checkpointPosition != null) {
+            replaySegmentId = checkpointPosition[0];
+            replayPosition = checkpointPosition[1];
+        } else {
+            index.clear();
+        }
+
+        int replayCount = 0;
+        for (Segment segment : segments.tailMap(replaySegmentId).values()) {
+            int position = segment.id == replaySegmentId ? replayPosition : 0;
+            Record record = new Record();
+            while (segment.readRecord(position, record)) {
+                if (record.type == SET
+                        && !isExpired(record.addTime, record.period)) {
+                    index.put(record.key, new Entry(segment,
+                                                    position,
+                                                    record.valueLength,
+                                                    record.size,
+                                                    record.addTime,
+                                                    record.period));
+                } else {
+                    index.remove(record.key);
+                }
+                position += record.size;
+                replayCount++;
+            }
+            segment.writePosition = position;
+        }
+        activeSegment = segments.lastEntry().getValue();
+
+        for (Entry entry : index.values()) {
+            entry.segment.liveBytes.addAndGet(entry.recordSize);
+        }
+        Logger.getLogger(loggerName).info("Persister " + name + " recovered "
+                + index.size() + " entries from " + segments.size()
+                + " segments, replaying " + replayCount + " records"
+                + (checkpointPosition != null ? " after the checkpoint" : ""));
+    }
+
+    /**
+     * Loads the index from the checkpoint.
+     * 
+     * @return the segment id and position from which to replay, or null if
+     *         there is no usable checkpoint
+     */
+    private int[] loadCheckpoint() {
+        File file = getCheckpointFile();
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                return null;
+            }
+            int segmentId = in.readInt();
+            int position = in.readInt();
+            if (!segments.containsKey(segmentId)) {
+                return null;
+            }
+
+            int keyLength;
+            while ((keyLength = in.readInt()) >= 0) {
+                byte[] keyBytes = new byte[keyLength];
+                in.readFully(keyBytes);
+                Segment segment = segments.get(in.readInt());
+                int recordPosition = in.readInt();
+                int valueLength = in.readInt();
+                int recordSize = in.readInt();
+                long addTime = in.readLong();
+                int period = in.readInt();
+                if (segment == null) {
+                    // compacted after the checkpoint was written
+                    return null;
+                }
+                if (segment.id > segmentId
+                        || (segment.id == segmentId && recordPosition >= position)
+                        || isExpired(addTime, period)) {
+                    // appended after the checkpoint position, so replayed
+                    continue;
+                }
+                index.put(new String(keyBytes, UTF8), new Entry(segment,
+                                                                recordPosition,
+                                                                valueLength,
+                                                                recordSize,
+                                                                addTime,
+                                                                period));
+            }
+            return new int[] { segmentId, position };
+        } catch (IOException ioe) {
+            Logger.getLogger(loggerName).warn("Unable to read checkpoint "
+                    + file + "; replaying the whole log", ioe);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ioe) {
+                }
+            }
+        }
+    }
+
+    private boolean isExpired(long addTime, int period) {
+        return period > 0
+                && addTime + (1000 * (long) period) <= ClockUtil.getCoarseTime(s4Clock);
+    }
+
+    // called with the write lock held
+    private Entry append(byte type, String key, long addTime, int period,
+                         byte[] value) throws IOException {
+        byte[] keyBytes = key.getBytes(UTF8);
+        int bodyLength = BODY_HEADER_SIZE + keyBytes.length + value.length;
+        int recordSize = RECORD_HEADER_SIZE + bodyLength;
+        if (recordSize > segmentSize) {
+            throw new IllegalArgumentException("Entry for key " + key
+                    + " takes " + recordSize
+                    + " bytes, more than the segment size " + segmentSize);
+        }
+        if (activeSegment.capacity - activeSegment.writePosition < recordSize) {
+            activeSegment = newSegment(activeSegment.id + 1);
+        }
+
+        byte[] body = new byte[bodyLength];
+        ByteBuffer bodyBuffer = ByteBuffer.wrap(body);
+        bodyBuffer.put(type);
+        bodyBuffer.putLong(addTime);
+        bodyBuffer.putInt(period);
+        bodyBuffer.putInt(keyBytes.length);
+        bodyBuffer.put(keyBytes);
+        bodyBuffer.put(value);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        Segment segment = activeSegment;
+        int position = segment.writePosition;
+        ByteBuffer target = segment.buffer.duplicate();
+        target.position(position);
+        target.putInt(bodyLength);
+        target.putInt((int) crc.getValue());
+        target.put(body);
+        segment.writePosition += recordSize;
+        segment.dirty = true;
+        return new Entry(segment, position, value.length, recordSize, addTime,
+                         period);
+    }
+
+    // called with the write lock held, or during recovery
+    private Segment newSegment(int id) throws IOException {
+        Segment segment = new Segment(id, new File(directory, name + "-" + id
+                + ".log"), segmentSize);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private class Entry {
+        Segment segment;
+        int position;
+        int valueLength;
+        int recordSize;
+        volatile long addTime;
+        int period;
+
+        Entry(Segment segment, int position, int valueLength, int recordSize,
+                long addTime, int period) {
+            this.segment = segment;
+            this.position = position;
+            this.valueLength = valueLength;
+            this.recordSize = recordSize;
+            this.addTime = addTime;
+            this.period = period;
+        }
+
+        // the value is at the end of the record
+        int getValuePosition() {
+            return position + recordSize - valueLength;
+        }
+
+        boolean isExpired(long currentTime) {
+            return period > 0
+                    && addTime + (1000 * (long) period) <= currentTime;
+        }
+    }
+
+    private static class Record {
+        byte type;
+        long addTime;
+        int period;
+        String key;
+        int valuePosition;
+        int valueLength;
+        int size;
+    }
+
+    private static class Segment {
+        int id;
+        File file;
+        RandomAccessFile raf;
+        MappedByteBuffer buffer;
+        int capacity;
+        int writePosition = 0;
+        AtomicLong liveBytes = new AtomicLong(0);
+        boolean dirty = false;
+
+        /**
+         * @param capacity
+         *            the size of a new segment, or 0 to map an existing file
+         *            as it is
+         */
+        Segment(int id, File file, int capacity) throws IOException {
+            this.id = id;
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            if (capacity > 0) {
+                raf.setLength(capacity);
+            }
+            this.capacity = (int) raf.length();
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                          0,
+                                          this.capacity);
+        }
+
+        byte[] read(int position, int length) {
+            byte[] bytes = new byte[length];
+            ByteBuffer source = buffer.duplicate();
+            source.position(position);
+            source.get(bytes);
+            return bytes;
+        }
+
+        /**
+         * Reads the record at a position.
+         * 
+         * @return false if there is no complete record at the position
+         */
+        boolean readRecord(int position, Record record) {
+            if (capacity - position < RECORD_HEADER_SIZE) {
+                return false;
+            }
+            int bodyLength = buffer.getInt(position);
+            if (bodyLength < BODY_HEADER_SIZE
+                    || bodyLength > capacity - position - RECORD_HEADER_SIZE) {
+                return false;
+            }
+            byte[] body = read(position + RECORD_HEADER_SIZE, bodyLength);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                return false;
+            }
+
+            ByteBuffer bodyBuffer = ByteBuffer.wrap(body);
+            record.type = bodyBuffer.get();
+            record.addTime = bodyBuffer.getLong();
+            record.period = bodyBuffer.getInt();
+            int keyLength = bodyBuffer.getInt();
+            if ((record.type != SET && record.type != REMOVE) || keyLength < 0
+                    || keyLength > bodyLength - BODY_HEADER_SIZE) {
+                return false;
+            }
+            record.key = new String(body, BODY_HEADER_SIZE, keyLength, UTF8);
+            record.valuePosition = position + RECORD_HEADER_SIZE
+                    + BODY_HEADER_SIZE + keyLength;
+            record.valueLength = bodyLength - BODY_HEADER_SIZE - keyLength;
+            record.size = RECORD_HEADER_SIZE + bodyLength;
+            return true;
+        }
+
+        void close() throws IOException {
+            // release the mapping now rather than on garbage collection, as
+            // the file cannot be deleted while it is mapped on some platforms
+            S4Util.unmap(buffer);
+            buffer = null;
+            raf.close();
+        }
+
+        void delete() throws IOException {
+            close();
+            file.delete();
+        }
+    }
+}
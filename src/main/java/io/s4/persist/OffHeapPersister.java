@@ -0,0 +1,603 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.persist;
+
+import io.s4.serialize.SerializerDeserializer;
+import io.s4.util.clock.Clock;
+import io.s4.util.clock.ClockUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A {@link Persister} that keeps its entries outside the Java heap, so that
+ * large tables do not add to the old generation and to garbage collection
+ * pauses.
+ * <p>
+ * Values are serialized with the configured {@link SerializerDeserializer}
+ * and stored, with their keys, in chunks carved out of direct
+ * <code>ByteBuffer</code> slabs. As in memcached, each slab is dedicated to a
+ * size class of chunks, with chunk sizes growing by a factor of 1.25, and
+ * freed chunks are reused for entries of the same class. Slabs are never
+ * released. An entry must fit in a single slab.
+ * <p>
+ * The index is a set of open-addressing hash tables over primitive arrays,
+ * each guarded by its own lock, holding the hash, chunk address, add time and
+ * period of each entry. Expiry follows the same rules as
+ * {@link ConMapPersister}.
+ * <p>
+ * Because values are stored serialized, <code>get</code> returns a copy:
+ * changing it does not change the stored value. <code>getObject</code>
+ * returns the serialized bytes.
+ */
+public class OffHeapPersister implements Persister {
+    private static final int MIN_CHUNK_SIZE = 64;
+    // record layout: key length, value length, key chars, value bytes
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private AtomicInteger persistCount = new AtomicInteger(0);
+    private boolean selfClean = false;
+    private int cleanWaitTime = 40; // 40 seconds by default
+    private String loggerName = "s4";
+    private int startCapacity = 5000;
+    private int concurrencyLevel = 16;
+    private int slabSize = 1024 * 1024;
+    private SerializerDeserializer serDeser;
+    private Clock s4Clock;
+    private Segment[] segments;
+    private int segmentShift;
+    private SlabAllocator allocator;
+
+    public OffHeapPersister(Clock s4Clock) {
+        this.s4Clock = s4Clock;
+    }
+
+    public OffHeapPersister() {
+    }
+
+    public void setS4Clock(Clock s4Clock) {
+        this.s4Clock = s4Clock;
+    }
+
+    public void setStartCapacity(int startCapacity) {
+        this.startCapacity = startCapacity;
+    }
+
+    public int getStartCapacity() {
+        return startCapacity;
+    }
+
+    /**
+     * Sets the number of independently locked parts of the index. Rounded up
+     * to a power of two. Defaults to 16.
+     */
+    public void setConcurrencyLevel(int concurrencyLevel) {
+        this.concurrencyLevel = concurrencyLevel;
+    }
+
+    /**
+     * Sets the size in bytes of each slab, and so the maximum size of an
+     * entry. Defaults to 1 MB.
+     */
+    public void setSlabSize(int slabSize) {
+        this.slabSize = slabSize;
+    }
+
+    /**
+     * Sets the serializer for the values. Required.
+     */
+    public void setSerDeser(SerializerDeserializer serDeser) {
+        this.serDeser = serDeser;
+    }
+
+    public void setSelfClean(boolean selfClean) {
+        this.selfClean = selfClean;
+    }
+
+    public void setCleanWaitTime(int cleanWaitTime) {
+        this.cleanWaitTime = cleanWaitTime;
+    }
+
+    public void setLoggerName(String loggerName) {
+        this.loggerName = loggerName;
+    }
+
+    public void init() {
+        if (serDeser == null) {
+            throw new IllegalStateException("serDeser must be set to use the OffHeapPersister");
+        }
+
+        int segmentCount = 1;
+        int segmentBits = 0;
+        while (segmentCount < concurrencyLevel) {
+            segmentCount <<= 1;
+            segmentBits++;
+        }
+        segmentShift = 32 - segmentBits;
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(startCapacity / segmentCount);
+        }
+        allocator = new SlabAllocator(slabSize);
+
+        if (selfClean) {
+            Runnable r = new Runnable() {
+                public void run() {
+                    while (!Thread.interrupted()) {
+                        int cleanCount = OffHeapPersister.this.cleanOutGarbage();
+                        Logger.getLogger(loggerName).info("Cleaned out "
+                                + cleanCount + " entries; Persister has "
+                                + getCacheEntryCount() + " entries in "
+                                + getAllocatedMemory() + " bytes");
+                        s4Clock.waitForTime(s4Clock.getCurrentTime()
+                                + (cleanWaitTime * 1000));
+                    }
+                }
+            };
+            Thread t = new Thread(r);
+            t.start();
+            t.setPriority(Thread.MIN_PRIORITY);
+        }
+    }
+
+    public int getQueueSize() {
+        return 0;
+    }
+
+    public int getPersistCount() {
+        return persistCount.get();
+    }
+
+    public int getCacheEntryCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.size;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of bytes of slabs allocated.
+     */
+    public long getAllocatedMemory() {
+        return allocator.getAllocatedMemory();
+    }
+
+    public void setAsynch(String key, Object value, int period) {
+        // there really is no asynch for the local cache
+        set(key, value, period);
+    }
+
+    public void set(String key, Object value, int period) {
+        persistCount.getAndIncrement();
+        byte[] bytes = serDeser.serialize(value);
+        int recordSize = RECORD_HEADER_SIZE + (2 * key.length()) + bytes.length;
+        if (recordSize > slabSize) {
+            throw new IllegalArgumentException("Entry for key " + key
+                    + " takes " + recordSize + " bytes, more than the slab size "
+                    + slabSize);
+        }
+
+        // the chunk is private until it is in the index, so it is written
+        // without holding the lock
+        long address = allocator.allocate(recordSize);
+        ByteBuffer slab = allocator.getSlab(address);
+        int offset = offsetOf(address);
+        slab.putInt(offset, key.length());
+        slab.putInt(offset + 4, bytes.length);
+        int position = offset + RECORD_HEADER_SIZE;
+        for (int i = 0; i < key.length(); i++, position += 2) {
+            slab.putChar(position, key.charAt(i));
+        }
+        ByteBuffer target = slab.duplicate();
+        target.position(position);
+        target.put(bytes);
+
+        int hash = hash(key);
+        long previousAddress = segmentFor(hash).put(key,
+                                                    hash,
+                                                    address,
+                                                    ClockUtil.getCoarseTime(s4Clock),
+                                                    period);
+        if (previousAddress != -1) {
+            allocator.free(previousAddress);
+        }
+    }
+
+    public boolean touch(String key) {
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.indexOf(key, hash);
+            if (slot == -1
+                    || segment.isExpired(slot,
+                                         ClockUtil.getCoarseTime(s4Clock))) {
+                return false;
+            }
+            segment.addTimes[slot] = ClockUtil.getCoarseTime(s4Clock);
+            return true;
+        }
+    }
+
+    public Object get(String key) {
+        byte[] bytes = getBytes(key);
+        if (bytes == null) {
+            return null;
+        }
+        return serDeser.deserialize(bytes);
+    }
+
+    private byte[] getBytes(String key) {
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.indexOf(key, hash);
+            if (slot == -1
+                    || segment.isExpired(slot,
+                                         ClockUtil.getCoarseTime(s4Clock))) {
+                return null;
+            }
+
+            // copied while the lock keeps the chunk from being reused
+            long address = segment.addresses[slot];
+            ByteBuffer slab = allocator.getSlab(address);
+            int offset = offsetOf(address);
+            byte[] bytes = new byte[slab.getInt(offset + 4)];
+            ByteBuffer source = slab.duplicate();
+            source.position(offset + RECORD_HEADER_SIZE
+                    + (2 * slab.getInt(offset)));
+            source.get(bytes);
+            return bytes;
+        }
+    }
+
+    public Map<String, Object> getBulk(String[] keys) {
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        for (String key : keys) {
+            Object value = get(key);
+            if (value != null) {
+                map.put(key, value);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Returns the serialized value for the key.
+     */
+    public Object getObject(String key) {
+        return getBytes(key);
+    }
+
+    public Map<String, Object> getBulkObjects(String[] keys) {
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        for (String key : keys) {
+            byte[] bytes = getBytes(key);
+            if (bytes != null) {
+                map.put(key, bytes);
+            }
+        }
+        return map;
+    }
+
+    public void remove(String key) {
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        long address;
+        synchronized (segment) {
+            int slot = segment.indexOf(key, hash);
+            if (slot == -1) {
+                return;
+            }
+            address = segment.addresses[slot];
+            segment.delete(slot);
+        }
+        allocator.free(address);
+    }
+
+    public int cleanOutGarbage() {
+        int count = 0;
+        List<Long> expiredAddresses = new ArrayList<Long>();
+        for (Segment segment : segments) {
+            expiredAddresses.clear();
+            synchronized (segment) {
+                long currentTime = ClockUtil.getCoarseTime(s4Clock);
+                int slot = 0;
+                while (slot < segment.hashes.length) {
+                    if (segment.hashes[slot] != 0
+                            && segment.isExpired(slot, currentTime)) {
+                        expiredAddresses.add(segment.addresses[slot]);
+                        // the slot may now hold an entry shifted back into it
+                        segment.delete(slot);
+                    } else {
+                        slot++;
+                    }
+                }
+            }
+            for (Long address : expiredAddresses) {
+                allocator.free(address);
+            }
+            count += expiredAddresses.size();
+        }
+        return count;
+    }
+
+    public Set<String> keySet() {
+        Set<String> keys = new HashSet<String>();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (int slot = 0; slot < segment.hashes.length; slot++) {
+                    if (segment.hashes[slot] != 0) {
+                        keys.add(readKey(segment.addresses[slot]));
+                    }
+                }
+            }
+        }
+        return keys;
+    }
+
+    private String readKey(long address) {
+        ByteBuffer slab = allocator.getSlab(address);
+        int offset = offsetOf(address);
+        char[] chars = new char[slab.getInt(offset)];
+        int position = offset + RECORD_HEADER_SIZE;
+        for (int i = 0; i < chars.length; i++, position += 2) {
+            chars[i] = slab.getChar(position);
+        }
+        return new String(chars);
+    }
+
+    private boolean keyEquals(long address, String key) {
+        ByteBuffer slab = allocator.getSlab(address);
+        int offset = offsetOf(address);
+        if (slab.getInt(offset) != key.length()) {
+            return false;
+        }
+        int position = offset + RECORD_HEADER_SIZE;
+        for (int i = 0; i < key.length(); i++, position += 2) {
+            if (slab.getChar(position) != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // never 0, which marks an empty slot
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9e3779b9;
+        h ^= h >>> 16;
+        return h == 0 ? 1 : h;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments.length == 1 ? segments[0]
+                : segments[hash >>> segmentShift];
+    }
+
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+
+    /**
+     * An open-addressing hash table with linear probing. Removal shifts the
+     * following entries back, so there are no tombstones.
+     */
+    private class Segment {
+        int[] hashes;
+        long[] addresses;
+        long[] addTimes;
+        int[] periods;
+        int size = 0;
+        int mask;
+
+        Segment(int expectedSize) {
+            int capacity = 16;
+            while (capacity * 3 < expectedSize * 4) {
+                capacity <<= 1;
+            }
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            hashes = new int[capacity];
+            addresses = new long[capacity];
+            addTimes = new long[capacity];
+            periods = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        int indexOf(String key, int hash) {
+            for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+                if (hashes[slot] == 0) {
+                    return -1;
+                }
+                if (hashes[slot] == hash && keyEquals(addresses[slot], key)) {
+                    return slot;
+                }
+            }
+        }
+
+        boolean isExpired(int slot, long currentTime) {
+            return periods[slot] > 0
+                    && addTimes[slot] + (1000 * (long) periods[slot]) <= currentTime;
+        }
+
+        /**
+         * @return the address of the chunk replaced, or -1
+         */
+        synchronized long put(String key, int hash, long address,
+                              long addTime, int period) {
+            int slot = indexOf(key, hash);
+            long previousAddress = -1;
+            if (slot == -1) {
+                if ((size + 1) * 4 > hashes.length * 3) {
+                    resize();
+                }
+                slot = hash & mask;
+                while (hashes[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                hashes[slot] = hash;
+                size++;
+            } else {
+                previousAddress = addresses[slot];
+            }
+            addresses[slot] = address;
+            addTimes[slot] = addTime;
+            periods[slot] = period;
+            return previousAddress;
+        }
+
+        void delete(int slot) {
+            int next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                if (hashes[next] == 0) {
+                    break;
+                }
+                // an entry stays if its home slot lies cyclically in
+                // (slot, next]
+                int home = hashes[next] & mask;
+                boolean stays = slot <= next ? (slot < home && home <= next)
+                        : (slot < home || home <= next);
+                if (!stays) {
+                    hashes[slot] = hashes[next];
+                    addresses[slot] = addresses[next];
+                    addTimes[slot] = addTimes[next];
+                    periods[slot] = periods[next];
+                    slot = next;
+                }
+            }
+            hashes[slot] = 0;
+            size--;
+        }
+
+        private void resize() {
+            int[] oldHashes = hashes;
+            long[] oldAddresses = addresses;
+            long[] oldAddTimes = addTimes;
+            int[] oldPeriods = periods;
+            allocate(hashes.length * 2);
+            for (int i = 0; i < oldHashes.length; i++) {
+                if (oldHashes[i] == 0) {
+                    continue;
+                }
+                int slot = oldHashes[i] & mask;
+                while (hashes[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                hashes[slot] = oldHashes[i];
+                addresses[slot] = oldAddresses[i];
+                addTimes[slot] = oldAddTimes[i];
+                periods[slot] = oldPeriods[i];
+            }
+        }
+    }
+
+    /**
+     * Hands out chunks of direct memory. A chunk address is the slab number
+     * in the high 32 bits and the offset in the slab in the low 32 bits.
+     */
+    private static class SlabAllocator {
+        private int slabSize;
+        private int[] chunkSizes;
+        // free chunk addresses, as a stack per size class
+        private long[][] freeChunks;
+        private int[] freeChunkCounts;
+        // the slab array is replaced when it grows, so readers need no lock
+        private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+        private int[] slabClasses = new int[0];
+
+        SlabAllocator(int slabSize) {
+            this.slabSize = slabSize;
+            List<Integer> sizes = new ArrayList<Integer>();
+            int size = Math.min(MIN_CHUNK_SIZE, slabSize);
+            while (size < slabSize) {
+                sizes.add(size);
+                size = Math.max(size + 8, ((int) (size * 1.25) + 7) & ~7);
+            }
+            sizes.add(slabSize);
+            chunkSizes = new int[sizes.size()];
+            for (int i = 0; i < chunkSizes.length; i++) {
+                chunkSizes[i] = sizes.get(i);
+            }
+            freeChunks = new long[chunkSizes.length][16];
+            freeChunkCounts = new int[chunkSizes.length];
+        }
+
+        ByteBuffer getSlab(long address) {
+            return slabs[(int) (address >>> 32)];
+        }
+
+        synchronized long allocate(int size) {
+            int sizeClass = 0;
+            while (chunkSizes[sizeClass] < size) {
+                sizeClass++;
+            }
+            if (freeChunkCounts[sizeClass] == 0) {
+                addSlab(sizeClass);
+            }
+            return freeChunks[sizeClass][--freeChunkCounts[sizeClass]];
+        }
+
+        synchronized void free(long address) {
+            int sizeClass = slabClasses[(int) (address >>> 32)];
+            push(sizeClass, address);
+        }
+
+        synchronized long getAllocatedMemory() {
+            return (long) slabs.length * slabSize;
+        }
+
+        private void addSlab(int sizeClass) {
+            int slabNumber = slabs.length;
+            ByteBuffer[] newSlabs = new ByteBuffer[slabNumber + 1];
+            System.arraycopy(slabs, 0, newSlabs, 0, slabNumber);
+            newSlabs[slabNumber] = ByteBuffer.allocateDirect(slabSize);
+            int[] newSlabClasses = new int[slabNumber + 1];
+            System.arraycopy(slabClasses, 0, newSlabClasses, 0, slabNumber);
+            newSlabClasses[slabNumber] = sizeClass;
+            slabClasses = newSlabClasses;
+            slabs = newSlabs;
+
+            // pushed in reverse so chunks are handed out in address order
+            int chunkSize = chunkSizes[sizeClass];
+            for (int offset = ((slabSize / chunkSize) - 1) * chunkSize; offset >= 0; offset -= chunkSize) {
+                push(sizeClass, ((long) slabNumber << 32) | offset);
+            }
+        }
+
+        private void push(int sizeClass, long address) {
+            long[] stack = freeChunks[sizeClass];
+            if (freeChunkCounts[sizeClass] == stack.length) {
+                long[] newStack = new long[stack.length * 2];
+                System.arraycopy(stack, 0, newStack, 0, stack.length);
+                freeChunks[sizeClass] = stack = newStack;
+            }
+            stack[freeChunkCounts[sizeClass]++] = address;
+        }
+    }
+}
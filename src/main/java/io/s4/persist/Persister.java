@@ -98,6 +98,19 @@ public interface Persister {
      **/
     void set(String key, Object value, int period) throws InterruptedException;
 
+    /**
+     * Restarts the time-to-live of the entry for a specified key, keeping its
+     * value and period.
+     * <p>
+     * This is a cheaper alternative to setting a key to the value it already
+     * holds. An expired entry is not revived.
+     * 
+     * @param key
+     *            the key
+     * @return true if the key had an unexpired entry, false otherwise
+     **/
+    boolean touch(String key) throws InterruptedException;
+
     /**
      * Get the value associated with a specified key.
      * 
@@ -16,20 +16,16 @@
 package io.s4.processor;
 
 import io.s4.dispatcher.partitioner.CompoundKeyInfo;
-import io.s4.dispatcher.partitioner.KeyInfo;
-import io.s4.dispatcher.partitioner.KeyInfo.KeyPathElement;
-import io.s4.dispatcher.partitioner.KeyInfo.KeyPathElementIndex;
-import io.s4.dispatcher.partitioner.KeyInfo.KeyPathElementName;
+import io.s4.dispatcher.partitioner.KeyExtractor;
 import io.s4.persist.Persister;
-import io.s4.schema.Schema;
-import io.s4.schema.Schema.Property;
-import io.s4.schema.SchemaContainer;
+import io.s4.serialize.SerializerDeserializer;
 import io.s4.util.clock.Clock;
+import io.s4.util.clock.ClockUtil;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
 import java.util.StringTokenizer;
 
 import org.apache.log4j.Logger;
@@ -59,14 +55,30 @@ public abstract class AbstractPE implements ProcessingElement {
         }
     }
 
-    private Clock s4Clock;
+    /**
+     * How {@link PrototypeWrapper} chooses the instances to evict when the
+     * number of instances is bounded.
+     */
+    public static enum EvictionType {
+        /** Evict the least recently used instance. */
+        LRU,
+        /**
+         * Evict by recency and frequency of use, see
+         * {@link io.s4.util.TinyLfuEvictionPolicy}.
+         */
+        TINYLFU
+    }
+
+    // fields referring to objects shared by all instances of a prototype are
+    // transient, so they are left out when an instance is spilled
+    private transient Clock s4Clock;
     private int outputFrequency = 1;
     private FrequencyType outputFrequencyType = FrequencyType.EVENTCOUNT;
     private int outputFrequencyOffset = 0;
     private int eventCount = 0;
     private int ttl = -1;
-    private Persister lookupTable;
-    private List<EventAdvice> eventAdviceList = new ArrayList<EventAdvice>();
+    private transient Persister lookupTable;
+    private transient List<EventAdvice> eventAdviceList = new ArrayList<EventAdvice>();
     private List<Object> keyValue;
     private List<Object> keyRecord;
     private String keyValueString;
@@ -76,6 +88,15 @@ public abstract class AbstractPE implements ProcessingElement {
     private long pauseTimeInMillis;
     private boolean logPauses = false;
     private String initMethod = null;
+    private transient OutputScheduler outputScheduler;
+    private transient OutputScheduler.Registration outputRegistration;
+    private int boundaryOutputCount = 0;
+    private int maxInstances = 0;
+    private EvictionType evictionType = EvictionType.LRU;
+    private transient SerializerDeserializer spillSerDeser;
+    private String spillDirectory = System.getProperty("java.io.tmpdir");
+    private int spillSegmentSize = 64 * 1024 * 1024;
+    private int maxSpilledInstances = 0;
     
     public void setSaveKeyRecord(boolean saveKeyRecord) {
         this.saveKeyRecord = saveKeyRecord;
@@ -89,15 +110,26 @@ public abstract class AbstractPE implements ProcessingElement {
         this.pauseTimeInMillis = pauseTimeInMillis;
     }
 
+    public long getPauseTimeInMillis() {
+        return pauseTimeInMillis;
+    }
+
     public void setLogPauses(boolean logPauses) {
         this.logPauses = logPauses;
     }
 
     public void setS4Clock(Clock s4Clock) {
-        synchronized (this) {
-            this.s4Clock = s4Clock;
-            this.notify();
-        }
+        this.s4Clock = s4Clock;
+        initFrequency();
+    }
+
+    /**
+     * Sets the scheduler that runs output on time boundaries. Defaults to
+     * {@link OutputScheduler#getInstance()}.
+     */
+    public void setOutputScheduler(OutputScheduler outputScheduler) {
+        this.outputScheduler = outputScheduler;
+        initFrequency();
     }
 
     /**
@@ -117,17 +149,10 @@ public abstract class AbstractPE implements ProcessingElement {
         return s4Clock;
     }
 
-    private OverloadDispatcher overloadDispatcher;
+    private transient OverloadDispatcher overloadDispatcher;
 
     public AbstractPE() {
-        OverloadDispatcherGenerator oldg = new OverloadDispatcherGenerator(this.getClass());
-        Class<?> overloadDispatcherClass = oldg.generate();
-
-        try {
-            overloadDispatcher = (OverloadDispatcher) overloadDispatcherClass.newInstance();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        overloadDispatcher = OverloadDispatcherGenerator.getDispatcher(this.getClass());
     }
 
     /**
@@ -168,8 +193,13 @@ public abstract class AbstractPE implements ProcessingElement {
         }
     }
 
+    /**
+     * Returns the current time of the S4 clock at its coarse resolution (see
+     * {@link ClockUtil#getCoarseTime(Clock)}), which is cheap enough to call
+     * for every event.
+     */
     public long getCurrentTime() {
-        return s4Clock.getCurrentTime();
+        return ClockUtil.getCoarseTime(s4Clock);
     }
 
     /**
@@ -197,8 +227,6 @@ public abstract class AbstractPE implements ProcessingElement {
         return streamName;
     }
 
-    SchemaContainer schemaContainer = new SchemaContainer();
-
     private void setKeyValue(Object event, CompoundKeyInfo compoundKeyInfo) {
         if (compoundKeyInfo == null) {
             return;
@@ -206,65 +234,22 @@ public abstract class AbstractPE implements ProcessingElement {
 
         keyValue = new ArrayList<Object>();
 
-        Schema schema = schemaContainer.getSchema(event.getClass());
-
-        // get the value for each keyInfo
-        for (KeyInfo keyInfo : compoundKeyInfo.getKeyInfoList()) {
-            Object value = null;
-            Object record = event;
-            List<?> list = null;
-            Property property = null;
-            for (KeyPathElement keyPathElement : keyInfo.getKeyPath()) {
-                if (keyPathElement instanceof KeyPathElementIndex) {
-                    record = list.get(((KeyPathElementIndex) keyPathElement).getIndex());
-                    schema = property.getComponentProperty().getSchema();
-                } else {
-                    String keyPathElementName = ((KeyPathElementName) keyPathElement).getKeyName();
-                    property = schema.getProperties().get(keyPathElementName);
-                    value = null;
-                    try {
-                        value = property.getGetterMethod().invoke(record);
-                    } catch (Exception e) {
-                        Logger.getLogger("s4").error(e);
-                        return;
-                    }
-
-                    if (value == null) {
-                        Logger.getLogger("s4").error("Value for "
-                                + keyPathElementName + " is null!");
-                        return;
-                    }
+        KeyExtractor keyExtractor = KeyExtractor.getExtractor(event.getClass(),
+                                                              compoundKeyInfo.getCompoundKey());
+        if (keyExtractor == null) {
+            Logger.getLogger("s4").error("Key "
+                    + compoundKeyInfo.getCompoundKey() + " not found in "
+                    + event.getClass().getName());
+            return;
+        }
 
-                    if (property.getType().isPrimitive() || property.isNumber()
-                            || property.getType().equals(String.class)) {
-                        keyValue.add(value);
-                        if (saveKeyRecord) {
-                            if (keyRecord == null) {
-                                keyRecord = new ArrayList<Object>();
-                            }
-                            keyRecord.add(record);
-                        }
-                        continue;
-                    } else if (property.isList()) {
-                        try {
-                            list = (List) property.getGetterMethod()
-                                                  .invoke(record);
-                        } catch (Exception e) {
-                            Logger.getLogger("s4").error(e);
-                            return;
-                        }
-                    } else {
-                        try {
-                            record = property.getGetterMethod().invoke(record);
-                        } catch (Exception e) {
-                            Logger.getLogger("s4").error(e);
-                            return;
-                        }
-                        schema = property.getSchema();
-                    }
-                }
-            }
+        if (saveKeyRecord && keyRecord == null) {
+            keyRecord = new ArrayList<Object>();
         }
+        keyExtractor.getKeyValues(event,
+                                  compoundKeyInfo,
+                                  keyValue,
+                                  saveKeyRecord ? keyRecord : null);
     }
 
     /**
@@ -345,6 +330,14 @@ public abstract class AbstractPE implements ProcessingElement {
         this.outputFrequencyOffset = outputFrequencyOffset;
     }
 
+    public int getOutputFrequency() {
+        return outputFrequency;
+    }
+
+    public int getOutputFrequencyOffset() {
+        return outputFrequencyOffset;
+    }
+
     public void setKeys(String[] keys) {
         for (String key : keys) {
             StringTokenizer st = new StringTokenizer(key);
@@ -352,18 +345,24 @@ public abstract class AbstractPE implements ProcessingElement {
         }
     }
 
-    private void initFrequency() {
-        if (outputFrequency < 0) {
+    private synchronized void initFrequency() {
+        // a prototype has at most one schedule, whatever the order and number
+        // of calls to the setters
+        if (outputRegistration != null) {
+            outputRegistration.cancel();
+            outputRegistration = null;
+        }
+
+        if (outputFrequency < 0 || s4Clock == null) {
             return;
         }
 
         if (outputFrequencyType == FrequencyType.TIMEBOUNDARY) {
-            // create a thread that calls output on time boundaries
-            // that are multiples of frequency
-            Runnable r = new OutputInvoker();
-
-            Thread t = new Thread(r);
-            t.start();
+            // call output on time boundaries that are multiples of frequency
+            if (outputScheduler == null) {
+                outputScheduler = OutputScheduler.getInstance();
+            }
+            outputRegistration = outputScheduler.schedule(this, s4Clock);
         }
     }
 
@@ -390,6 +389,95 @@ public abstract class AbstractPE implements ProcessingElement {
         return ttl;
     }
 
+    /**
+     * Sets the maximum number of instances of this PE kept in memory. Once
+     * there are more, instances are evicted as chosen by the eviction type,
+     * and spilled to disk if a spill serializer is set. Defaults to 0, which
+     * leaves the number of instances bounded only by the ttl. In a container
+     * with several workers, each worker gets an even share of the maximum and
+     * evicts only instances of the keys it owns.
+     */
+    public void setMaxInstances(int maxInstances) {
+        this.maxInstances = maxInstances;
+    }
+
+    public int getMaxInstances() {
+        return maxInstances;
+    }
+
+    /**
+     * Sets how the instances to evict are chosen: "lru" (the default) or
+     * "tinylfu".
+     */
+    public void setEvictionType(String evictionType) {
+        this.evictionType = EvictionType.valueOf(evictionType.toUpperCase());
+    }
+
+    public EvictionType getEvictionType() {
+        return evictionType;
+    }
+
+    /**
+     * Sets the serializer used to spill evicted instances to disk. Spilled
+     * instances are restored when their key is seen again, within the ttl.
+     * Without a serializer, evicted instances are dropped.
+     * <p>
+     * Fields of the instance that refer to objects shared with the prototype
+     * should be transient; they are set from the prototype on restore. A
+     * spilled instance takes no part in time boundary output until it is
+     * restored.
+     */
+    public void setSpillSerDeser(SerializerDeserializer spillSerDeser) {
+        this.spillSerDeser = spillSerDeser;
+    }
+
+    public SerializerDeserializer getSpillSerDeser() {
+        return spillSerDeser;
+    }
+
+    /**
+     * Sets the directory in which each prototype creates a uniquely named
+     * directory for the segment files of its spilled instances, so that
+     * processes sharing the directory never touch each other's files.
+     * Defaults to <code>java.io.tmpdir</code>.
+     */
+    public void setSpillDirectory(String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * Sets the size in bytes of each segment file of spilled instances.
+     */
+    public void setSpillSegmentSize(int spillSegmentSize) {
+        this.spillSegmentSize = spillSegmentSize;
+    }
+
+    public int getSpillSegmentSize() {
+        return spillSegmentSize;
+    }
+
+    /**
+     * Sets the maximum number of spilled instances kept on disk. Once there
+     * are more, the instances spilled longest ago are dropped, whether or not
+     * their ttl has passed. Defaults to 0, which keeps at most ten times the
+     * maximum number of instances. Shared between workers like the maximum
+     * number of instances.
+     */
+    public void setMaxSpilledInstances(int maxSpilledInstances) {
+        this.maxSpilledInstances = maxSpilledInstances;
+    }
+
+    public int getMaxSpilledInstances() {
+        if (maxSpilledInstances > 0) {
+            return maxSpilledInstances;
+        }
+        return 10 * maxInstances;
+    }
+
     public List<EventAdvice> advise() {
         return eventAdviceList;
     }
@@ -409,65 +497,59 @@ public abstract class AbstractPE implements ProcessingElement {
      **/
     abstract public void output();
 
-    class OutputInvoker implements Runnable {
-        public void run() {
-            synchronized (AbstractPE.this) {
-                while (s4Clock == null) {
-                    try {
-                        AbstractPE.this.wait();
-                    } catch (InterruptedException ie) {
+    /**
+     * Returns the keys of the PEs of this prototype, for {@link #outputAll}.
+     */
+    Iterator<?> getOutputKeys() {
+        if (lookupTable == null) {
+            return Collections.emptyList().iterator();
+        }
+        return lookupTable.keySet().iterator();
+    }
+
+    /**
+     * Calls <code>output</code> on the PEs of the remaining keys of this
+     * prototype. Called by the {@link OutputScheduler} on time boundaries.
+     * <p>
+     * Every <code>outputsBeforePause</code> outputs, returns so that the
+     * scheduler can resume the same keys once <code>pauseTimeInMillis</code>
+     * has passed, without holding a thread during the pause.
+     * 
+     * @return true if paused with keys left to output
+     */
+    boolean outputAll(Iterator<?> peKeys) {
+        while (peKeys.hasNext()) {
+            String peKey = (String) peKeys.next();
+            AbstractPE pe = null;
+            try {
+                pe = (AbstractPE) lookupTable.get(peKey);
+            } catch (InterruptedException ie) {
+            }
+
+            if (pe == null) {
+                continue;
+            }
+
+            try {
+                pe.output();
+                boundaryOutputCount++;
+            } catch (Exception e) {
+                Logger.getLogger("s4")
+                      .error("Exception calling output() method", e);
+            }
+
+            if (boundaryOutputCount == outputsBeforePause) {
+                boundaryOutputCount = 0;
+                if (peKeys.hasNext()) {
+                    if (logPauses) {
+                        Logger.getLogger("s4").info("Pausing " + getId()
+                                + " at count " + outputsBeforePause + " for "
+                                + pauseTimeInMillis + " milliseconds");
                     }
+                    return true;
                 }
             }
-            int outputCount = 0;
-            long frequencyInMillis = outputFrequency * 1000;
-
-            long currentTime = getCurrentTime();
-            while (!Thread.interrupted()) {
-                long currentBoundary = (currentTime / frequencyInMillis)
-                        * frequencyInMillis;
-                long nextBoundary = currentBoundary + frequencyInMillis;
-                currentTime = s4Clock.waitForTime(nextBoundary
-                        + (outputFrequencyOffset * 1000));
-                if (lookupTable != null) {
-                    Set peKeys = lookupTable.keySet();
-                    for (Iterator it = peKeys.iterator(); it.hasNext();) {
-                        String peKey = (String) it.next();
-                        AbstractPE pe = null;
-                        try {
-                            pe = (AbstractPE) lookupTable.get(peKey);
-                        } catch (InterruptedException ie) {
-                        }
-
-                        if (pe == null) {
-                            continue;
-                        }
-
-                        try {
-                            pe.output();
-                            outputCount++;
-                        } catch (Exception e) {
-                            Logger.getLogger("s4")
-                                  .error("Exception calling output() method", e);
-                        }
-
-                        if (outputCount == outputsBeforePause) {
-                            if (logPauses) {
-                                Logger.getLogger("s4").info("Pausing "
-                                        + getId() + " at count " + outputCount
-                                        + " for " + pauseTimeInMillis
-                                        + " milliseconds");
-                            }
-                            outputCount = 0;
-                            try {
-                                Thread.sleep(pauseTimeInMillis);
-                            } catch (InterruptedException ie) {
-                                Thread.currentThread().interrupt();
-                            }
-                        }
-                    } // end for each pe in lookup table
-                } // end if lookup table is not null
-            }
-        }
+        } // end for each pe in lookup table
+        return false;
     }
 }
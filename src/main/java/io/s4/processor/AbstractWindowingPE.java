@@ -15,7 +15,7 @@
  */
 package io.s4.processor;
 
-import io.s4.schema.Schema;
+import io.s4.schema.PropertyResolver;
 import io.s4.schema.Schema.Property;
 import io.s4.util.SlotUtils;
 
@@ -29,12 +29,12 @@ public abstract class AbstractWindowingPE extends AbstractPE {
     private String slotClassName;
     private int slotSize = 3600; // default one hour
     private int windowSize = slotSize * 24; // default, 24 hours
-    private Map<String, String> timestampFields;
+    private transient Map<String, PropertyResolver> timestampFields;
 
     private long lastTimestamp = -1;
     private Map<Long, Slot> slots;
-    private SlotUtils slotUtils;
-    private Class slotClass;
+    private transient SlotUtils slotUtils;
+    private transient Class slotClass;
 
     public void setSlotClassName(String slotClassName) {
         this.slotClassName = slotClassName;
@@ -57,14 +57,15 @@ public abstract class AbstractWindowingPE extends AbstractPE {
     }
 
     public void setTimestampFields(String[] timestampFieldsArray) {
-        timestampFields = new HashMap<String, String>();
+        timestampFields = new HashMap<String, PropertyResolver>();
         for (String timeStampFieldInfo : timestampFieldsArray) {
             StringTokenizer st = new StringTokenizer(timeStampFieldInfo);
-            timestampFields.put(st.nextToken(), st.nextToken());
+            timestampFields.put(st.nextToken(),
+                                new PropertyResolver(st.nextToken()));
         }
     }
 
-    private OverloadDispatcherSlot overloadDispatcher;
+    private transient OverloadDispatcherSlot overloadDispatcher;
 
     public AbstractWindowingPE() {
     }
@@ -79,31 +80,22 @@ public abstract class AbstractWindowingPE extends AbstractPE {
             throw new RuntimeException(cnfe);
         }
 
-        OverloadDispatcherGenerator oldg = new OverloadDispatcherGenerator(slotClass,
-                                                                           true);
-        Class<?> overloadDispatcherClass = oldg.generate();
-
-        try {
-            overloadDispatcher = (OverloadDispatcherSlot) overloadDispatcherClass.newInstance();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        overloadDispatcher = OverloadDispatcherGenerator.getSlotDispatcher(slotClass);
     }
 
     public void processEvent(Object event) {
         long currentTime = getCurrentTime();
         long maybeCurrentTime = -1;
         if (timestampFields != null) {
-            Schema schema = schemaContainer.getSchema(event.getClass());
-            String fieldName = timestampFields.get(getStreamName());
-            if (fieldName != null) {
-                Property property = schema.getProperties().get(fieldName);
+            PropertyResolver resolver = timestampFields.get(getStreamName());
+            if (resolver != null) {
+                Property property = resolver.resolve(event.getClass());
                 if (property != null
                         && (property.getType().equals(Long.TYPE) || property.getType()
                                                                             .equals(Long.class))) {
                     try {
-                        maybeCurrentTime = (Long) property.getGetterMethod()
-                                                          .invoke(event);
+                        maybeCurrentTime = property.getAccessor()
+                                                   .getLong(event);
                     } catch (Exception e) {
                         throw new RuntimeException(e);
                     }
@@ -17,6 +17,7 @@ package io.s4.processor;
 
 import io.s4.dispatcher.EventDispatcher;
 import io.s4.logger.Monitor;
+import io.s4.schema.PropertyAccessor;
 import io.s4.schema.Schema;
 import io.s4.schema.Schema.Property;
 import io.s4.schema.SchemaContainer;
@@ -26,6 +27,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
@@ -33,12 +35,12 @@ public class JoinPE extends AbstractPE {
     private static Logger logger = Logger.getLogger(JoinPE.class);
     private Map<String, List<String>> eventFields = new HashMap<String, List<String>>();
     private Map<String, Object> eventsToJoin;
-    private EventDispatcher dispatcher;
-    private Monitor monitor;
+    private transient EventDispatcher dispatcher;
+    private transient Monitor monitor;
     private String id = "JoinPE";
     private String outputStreamName;
     private String outputClassName;
-    private Class<?> outputClass;
+    private transient Class<?> outputClass;
 
     public String getId() {
         return id;
@@ -106,7 +108,8 @@ public class JoinPE extends AbstractPE {
 
     }
 
-    private SchemaContainer schemaContainer = new SchemaContainer();
+    // shared by all instances of the pe
+    private transient Map<String, FieldCopier> fieldCopiers = new ConcurrentHashMap<String, FieldCopier>();
 
     public void processEvent(Object event) {
         if (eventsToJoin == null) {
@@ -129,32 +132,10 @@ public class JoinPE extends AbstractPE {
                 throw new RuntimeException(e);
             }
 
-            Schema newEventSchema = schemaContainer.getSchema(newEvent.getClass());
-
             for (String streamName : eventsToJoin.keySet()) {
                 Object partialEvent = eventsToJoin.get(streamName);
-                Schema partialEventSchema = schemaContainer.getSchema(partialEvent.getClass());
-
-                List<String> includeFields = eventFields.get(streamName);
-                if (includeFields.size() == 1
-                        && includeFields.get(0).equals("*")) {
-                    for (Property partialEventProperty : partialEventSchema.getProperties()
-                                                                           .values()) {
-                        copyField(partialEventProperty.getName(),
-                                  partialEventSchema,
-                                  newEventSchema,
-                                  partialEvent,
-                                  newEvent);
-                    }
-                } else {
-                    for (String includeField : includeFields) {
-                        copyField(includeField,
-                                  partialEventSchema,
-                                  newEventSchema,
-                                  partialEvent,
-                                  newEvent);
-                    }
-                }
+                getFieldCopier(streamName, partialEvent.getClass()).copy(partialEvent,
+                                                                         newEvent);
             }
 
             dispatcher.dispatchEvent(outputStreamName, newEvent);
@@ -164,40 +145,97 @@ public class JoinPE extends AbstractPE {
         }
     }
 
-    private void copyField(String propertyName, Schema sourceSchema,
-                           Schema targetSchema, Object source, Object target) {
-        Property sourceProperty = sourceSchema.getProperties()
-                                              .get(propertyName);
-        Property targetProperty = targetSchema.getProperties()
-                                              .get(propertyName);
-
-        if (sourceProperty == null || targetProperty == null
-                || !sourceProperty.getType().equals(targetProperty.getType())) {
-            throw new RuntimeException("Specified property " + propertyName
-                    + " doesn't exist or is not consistent");
+    private FieldCopier getFieldCopier(String streamName, Class<?> sourceClass) {
+        FieldCopier fieldCopier = fieldCopiers.get(streamName);
+        if (fieldCopier == null || fieldCopier.sourceClass != sourceClass) {
+            fieldCopier = new FieldCopier(sourceClass,
+                                          outputClass,
+                                          eventFields.get(streamName));
+            fieldCopiers.put(streamName, fieldCopier);
         }
+        return fieldCopier;
+    }
 
-        try {
-            Object sourceValue = sourceProperty.getGetterMethod()
-                                               .invoke(source);
-            if (sourceValue == null) {
-                return;
-            }
-            if (sourceProperty.getType().isPrimitive()) {
-                if (sourceValue instanceof Number) {
-                    if (((Number) sourceValue).doubleValue() == 0.0) {
-                        return;
+    /**
+     * Copies the included fields of the events of one stream into the output
+     * event. The fields are resolved once, by property ordinal, when the
+     * copier is created.
+     */
+    private static class FieldCopier {
+        private Class<?> sourceClass;
+        private PropertyAccessor[] sourceAccessors;
+        private PropertyAccessor[] targetAccessors;
+        private boolean[] isPrimitive;
+
+        FieldCopier(Class<?> sourceClass, Class<?> targetClass,
+                List<String> includeFields) {
+            this.sourceClass = sourceClass;
+            Schema sourceSchema = SchemaContainer.lookup(sourceClass);
+            Schema targetSchema = SchemaContainer.lookup(targetClass);
+
+            int[] sourceOrdinals;
+            if (includeFields.size() == 1 && includeFields.get(0).equals("*")) {
+                sourceOrdinals = new int[sourceSchema.getPropertyCount()];
+                for (int i = 0; i < sourceOrdinals.length; i++) {
+                    sourceOrdinals[i] = i;
+                }
+            } else {
+                sourceOrdinals = new int[includeFields.size()];
+                for (int i = 0; i < sourceOrdinals.length; i++) {
+                    sourceOrdinals[i] = sourceSchema.getOrdinal(includeFields.get(i));
+                    if (sourceOrdinals[i] < 0) {
+                        throw new RuntimeException("Specified property "
+                                + includeFields.get(i)
+                                + " doesn't exist or is not consistent");
                     }
                 }
-                if (sourceValue instanceof Boolean) {
-                    if (((Boolean) sourceValue).equals(Boolean.FALSE)) {
-                        return;
+            }
+
+            sourceAccessors = new PropertyAccessor[sourceOrdinals.length];
+            targetAccessors = new PropertyAccessor[sourceOrdinals.length];
+            isPrimitive = new boolean[sourceOrdinals.length];
+            for (int i = 0; i < sourceOrdinals.length; i++) {
+                Property sourceProperty = sourceSchema.getProperty(sourceOrdinals[i]);
+                int targetOrdinal = targetSchema.getOrdinal(sourceProperty.getName());
+                Property targetProperty = (targetOrdinal < 0) ? null
+                        : targetSchema.getProperty(targetOrdinal);
+                if (targetProperty == null
+                        || !sourceProperty.getType()
+                                          .equals(targetProperty.getType())) {
+                    throw new RuntimeException("Specified property "
+                            + sourceProperty.getName()
+                            + " doesn't exist or is not consistent");
+                }
+                sourceAccessors[i] = sourceProperty.getAccessor();
+                targetAccessors[i] = targetProperty.getAccessor();
+                isPrimitive[i] = sourceProperty.getType().isPrimitive();
+            }
+        }
+
+        void copy(Object source, Object target) {
+            for (int i = 0; i < sourceAccessors.length; i++) {
+                try {
+                    Object sourceValue = sourceAccessors[i].get(source);
+                    if (sourceValue == null) {
+                        continue;
+                    }
+                    if (isPrimitive[i]) {
+                        if (sourceValue instanceof Number) {
+                            if (((Number) sourceValue).doubleValue() == 0.0) {
+                                continue;
+                            }
+                        }
+                        if (sourceValue instanceof Boolean) {
+                            if (((Boolean) sourceValue).equals(Boolean.FALSE)) {
+                                continue;
+                            }
+                        }
                     }
+                    targetAccessors[i].set(target, sourceValue);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
                 }
             }
-            targetProperty.getSetterMethod().invoke(target, sourceValue);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
         }
     }
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.processor;
+
+import io.s4.util.SpaceSavingSketch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Counts events by stream and compound key for {@link PEContainer}'s
+ * <code>trackByKey</code> option.
+ * <p>
+ * Each stream/key pair is interned to an int id the first time it is seen, and
+ * each writer thread counts into its own stripe of primitive counters, so
+ * counting an event does not allocate or contend. Optionally each stripe also
+ * keeps a {@link SpaceSavingSketch} per id of the hottest key values. Since
+ * the container shards key values among its workers, merging the sketches of
+ * the stripes loses nothing.
+ */
+public class KeyCountTracker {
+    private static Logger logger = Logger.getLogger("s4");
+
+    private ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>> idsByStream = new ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>>();
+    private AtomicReferenceArray<String> names;
+    private int nextId = 0;
+    private int topKeyCount;
+    private AtomicLongArray[] counts;
+    private AtomicReferenceArray<SpaceSavingSketch>[] sketches;
+
+    /**
+     * @param stripeCount
+     *            the number of threads that record counts
+     * @param capacity
+     *            the maximum number of stream/key pairs tracked; pairs seen
+     *            after that are not counted
+     * @param topKeyCount
+     *            the number of hottest key values to keep per stream/key
+     *            pair, or 0 to not keep any
+     */
+    @SuppressWarnings("unchecked")
+    public KeyCountTracker(int stripeCount, int capacity, int topKeyCount) {
+        this.topKeyCount = topKeyCount;
+        names = new AtomicReferenceArray<String>(capacity);
+        counts = new AtomicLongArray[stripeCount];
+        sketches = new AtomicReferenceArray[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            counts[i] = new AtomicLongArray(capacity);
+            if (topKeyCount > 0) {
+                sketches[i] = new AtomicReferenceArray<SpaceSavingSketch>(capacity);
+            }
+        }
+    }
+
+    /**
+     * Returns the id of a stream/key pair, or -1 if the tracker is full.
+     */
+    public int getId(String streamName, String compoundKey) {
+        ConcurrentHashMap<String, Integer> ids = idsByStream.get(streamName);
+        if (ids == null) {
+            idsByStream.putIfAbsent(streamName,
+                                    new ConcurrentHashMap<String, Integer>());
+            ids = idsByStream.get(streamName);
+        }
+        Integer id = ids.get(compoundKey);
+        if (id != null) {
+            return id;
+        }
+
+        synchronized (this) {
+            id = ids.get(compoundKey);
+            if (id != null) {
+                return id;
+            }
+            if (nextId == names.length()) {
+                logger.warn("Not tracking " + streamName + " " + compoundKey
+                        + ": already tracking " + nextId + " stream/key pairs");
+                // remember the pair so that it is not looked up again
+                ids.put(compoundKey, -1);
+                return -1;
+            }
+            id = nextId++;
+            names.set(id, streamName + " " + compoundKey);
+            ids.put(compoundKey, id);
+            return id;
+        }
+    }
+
+    /**
+     * Counts an event. Only one thread may record into a given stripe.
+     * 
+     * @param keyValue
+     *            the value of the compound key, offered to the top keys
+     *            sketch; may be null
+     */
+    public void record(int stripe, int id, String keyValue) {
+        if (id < 0) {
+            return;
+        }
+        AtomicLongArray stripeCounts = counts[stripe];
+        stripeCounts.lazySet(id, stripeCounts.get(id) + 1);
+
+        if (topKeyCount > 0 && keyValue != null) {
+            SpaceSavingSketch sketch = sketches[stripe].get(id);
+            if (sketch == null) {
+                sketch = new SpaceSavingSketch(topKeyCount);
+                sketches[stripe].set(id, sketch);
+            }
+            sketch.offer(keyValue);
+        }
+    }
+
+    /**
+     * Returns the event count of each stream/key pair, keyed by
+     * "<i>stream</i> <i>key</i>".
+     */
+    public Map<String, Long> getCounts() {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (int id = 0; id < names.length(); id++) {
+            String name = names.get(id);
+            if (name == null) {
+                break;
+            }
+            long count = 0;
+            for (AtomicLongArray stripeCounts : counts) {
+                count += stripeCounts.get(id);
+            }
+            result.put(name, count);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the hottest key values of each stream/key pair, highest count
+     * first, keyed by "<i>stream</i> <i>key</i>". Empty if top keys are not
+     * kept.
+     */
+    public Map<String, List<SpaceSavingSketch.Counter>> getTopKeys() {
+        Map<String, List<SpaceSavingSketch.Counter>> result = new HashMap<String, List<SpaceSavingSketch.Counter>>();
+        if (topKeyCount <= 0) {
+            return result;
+        }
+        for (int id = 0; id < names.length(); id++) {
+            String name = names.get(id);
+            if (name == null) {
+                break;
+            }
+            List<SpaceSavingSketch.Counter> counters = new ArrayList<SpaceSavingSketch.Counter>();
+            for (AtomicReferenceArray<SpaceSavingSketch> stripeSketches : sketches) {
+                SpaceSavingSketch sketch = stripeSketches.get(id);
+                if (sketch != null) {
+                    counters.addAll(sketch.getCounters());
+                }
+            }
+            if (counters.isEmpty()) {
+                continue;
+            }
+            SpaceSavingSketch.sort(counters);
+            if (counters.size() > topKeyCount) {
+                counters = new ArrayList<SpaceSavingSketch.Counter>(counters.subList(0,
+                                                                                     topKeyCount));
+            }
+            result.put(name, counters);
+        }
+        return result;
+    }
+}
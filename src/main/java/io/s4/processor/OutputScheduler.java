@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.processor;
+
+import io.s4.util.TimingWheel;
+import io.s4.util.clock.Clock;
+import io.s4.util.clock.DrivenClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the time boundary output of PE prototypes.
+ * <p>
+ * One timer thread per {@link Clock} waits for the next boundary of any
+ * prototype, and the outputs that are due run on a pool with a fixed number of
+ * threads. If a prototype's previous output is still running when its next
+ * boundary comes, that boundary is skipped. A prototype that pauses between
+ * outputs gives up its pool thread during the pause, and the rest of its
+ * output is resumed afterwards.
+ * <p>
+ * The timer waits for the boundaries of a {@link DrivenClock} with callbacks
+ * on the clock; other clocks are taken to follow wall clock time.
+ * <p>
+ * Optionally, prototypes with no output frequency offset are given one derived
+ * from their id, spread over the output period up to a maximum, so that
+ * prototypes with the same frequency do not all output at the same moment.
+ * The offset of a prototype is the same in every process.
+ * <p>
+ * PEs use the process-wide instance returned by {@link #getInstance()} unless
+ * another one is configured with {@link AbstractPE#setOutputScheduler}.
+ */
+public class OutputScheduler {
+    private static Logger logger = Logger.getLogger("s4");
+    private static OutputScheduler instance;
+
+    private int poolSize = 4;
+    private boolean staggerOffsets = false;
+    private int maxStaggerSeconds = 60;
+    private ScheduledThreadPoolExecutor executor;
+    private Map<Clock, ClockTimer> clockTimers = new HashMap<Clock, ClockTimer>();
+
+    public static synchronized OutputScheduler getInstance() {
+        if (instance == null) {
+            instance = new OutputScheduler();
+        }
+        return instance;
+    }
+
+    /**
+     * Sets the number of threads that run outputs. Defaults to 4.
+     */
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * Sets whether prototypes with no output frequency offset get one derived
+     * from their id. Off by default.
+     */
+    public void setStaggerOffsets(boolean staggerOffsets) {
+        this.staggerOffsets = staggerOffsets;
+    }
+
+    /**
+     * Sets the largest offset, in seconds, given when staggering. Offsets are
+     * also kept below the output period. Defaults to 60.
+     */
+    public void setMaxStaggerSeconds(int maxStaggerSeconds) {
+        this.maxStaggerSeconds = maxStaggerSeconds;
+    }
+
+    /**
+     * Schedules the output of a prototype on its time boundaries, as
+     * configured on the prototype.
+     * 
+     * @return a handle that cancels the schedule
+     */
+    public synchronized Registration schedule(AbstractPE prototype, Clock clock) {
+        if (executor == null) {
+            executor = new ScheduledThreadPoolExecutor(poolSize,
+                                                       new NamedThreadFactory("OutputScheduler"));
+        }
+        ClockTimer clockTimer = clockTimers.get(clock);
+        if (clockTimer == null) {
+            clockTimer = new ClockTimer(clock);
+            clockTimers.put(clock, clockTimer);
+            Thread t = new NamedThreadFactory("OutputScheduler-timer").newThread(clockTimer);
+            t.start();
+        }
+        Registration registration = new Registration(prototype, clockTimer);
+        clockTimer.add(registration);
+        return registration;
+    }
+
+    long getOffsetInMillis(AbstractPE prototype, long periodInMillis) {
+        long offsetInMillis = prototype.getOutputFrequencyOffset() * 1000L;
+        if (offsetInMillis == 0 && staggerOffsets) {
+            long window = Math.min(periodInMillis, maxStaggerSeconds * 1000L);
+            String id = prototype.getId();
+            if (window > 0 && id != null) {
+                // whole seconds, like configured offsets
+                long seconds = window / 1000;
+                offsetInMillis = (seconds == 0) ? 0
+                        : ((id.hashCode() & 0x7fffffff) % seconds) * 1000;
+            }
+        }
+        return offsetInMillis;
+    }
+
+    /**
+     * A scheduled prototype.
+     */
+    public class Registration implements Runnable,
+            Comparable<Registration> {
+        private AbstractPE prototype;
+        private ClockTimer clockTimer;
+        private long nextTime = -1;
+        private AtomicBoolean running = new AtomicBoolean(false);
+        private volatile boolean cancelled = false;
+        // the keys left to output after a pause, only used while running
+        private Iterator<?> peKeys;
+
+        Registration(AbstractPE prototype, ClockTimer clockTimer) {
+            this.prototype = prototype;
+            this.clockTimer = clockTimer;
+        }
+
+        public void cancel() {
+            cancelled = true;
+            clockTimer.remove(this);
+        }
+
+        // the first boundary after the specified time, plus the offset
+        long computeNextTime(long currentTime) {
+            long periodInMillis = prototype.getOutputFrequency() * 1000L;
+            if (periodInMillis <= 0) {
+                return Long.MAX_VALUE;
+            }
+            long offsetInMillis = getOffsetInMillis(prototype, periodInMillis);
+            long boundary = ((currentTime - offsetInMillis) / periodInMillis)
+                    * periodInMillis;
+            return boundary + periodInMillis + offsetInMillis;
+        }
+
+        void fire() {
+            if (cancelled) {
+                return;
+            }
+            if (!running.compareAndSet(false, true)) {
+                logger.warn("Skipping output of " + prototype.getId()
+                        + ": the previous output is still running");
+                return;
+            }
+            executor.execute(this);
+        }
+
+        public void run() {
+            boolean paused = false;
+            try {
+                if (peKeys == null) {
+                    peKeys = prototype.getOutputKeys();
+                }
+                paused = prototype.outputAll(peKeys);
+            } catch (Exception e) {
+                logger.error("Exception running output of "
+                        + prototype.getId(), e);
+            } finally {
+                if (paused && !cancelled) {
+                    // still running: resume the same keys after the pause
+                    executor.schedule(this,
+                                      prototype.getPauseTimeInMillis(),
+                                      TimeUnit.MILLISECONDS);
+                } else {
+                    peKeys = null;
+                    running.set(false);
+                }
+            }
+        }
+
+        public int compareTo(Registration other) {
+            return (nextTime < other.nextTime) ? -1
+                    : ((nextTime == other.nextTime) ? 0 : 1);
+        }
+    }
+
+    /**
+     * Waits on a clock for the next boundary of its registrations.
+     */
+    class ClockTimer implements Runnable {
+        private Clock clock;
+        private PriorityQueue<Registration> registrations = new PriorityQueue<Registration>();
+        // the callback pending on a driven clock, and its handle
+        private WakeUp wakeUp;
+        private TimingWheel.Timer<Runnable> wakeUpTimer;
+
+        ClockTimer(Clock clock) {
+            this.clock = clock;
+        }
+
+        synchronized void add(Registration registration) {
+            if (registration.nextTime < 0) {
+                // the timer thread computes the first boundary, as a driven
+                // clock has no time before its first update
+                registration.nextTime = 0;
+            }
+            registrations.add(registration);
+            if (registrations.peek() == registration) {
+                // wait for this earlier time instead
+                notifyAll();
+            }
+        }
+
+        synchronized void remove(Registration registration) {
+            registrations.remove(registration);
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    synchronized (this) {
+                        long currentTime = awaitNextTime();
+                        Registration registration;
+                        while ((registration = registrations.peek()) != null
+                                && registration.nextTime <= currentTime) {
+                            registrations.poll();
+                            if (registration.nextTime > 0) {
+                                registration.fire();
+                            }
+                            registration.nextTime = registration.computeNextTime(currentTime);
+                            registrations.add(registration);
+                        }
+                    }
+                } catch (InterruptedException ie) {
+                    logger.warn("Output scheduler timer is interrupted", ie);
+                    return;
+                } catch (Exception e) {
+                    logger.error("Exception in output scheduler", e);
+                }
+            }
+        }
+
+        /**
+         * Waits, on this timer's monitor, until the clock reaches the time of
+         * the earliest registration, and returns the clock's time. Must be
+         * called while holding this timer's monitor.
+         */
+        private long awaitNextTime() throws InterruptedException {
+            while (true) {
+                if (registrations.isEmpty()) {
+                    wait();
+                    continue;
+                }
+                long nextTime = registrations.peek().nextTime;
+                if (!(clock instanceof DrivenClock)) {
+                    long currentTime = clock.getCurrentTime();
+                    if (currentTime >= nextTime) {
+                        return currentTime;
+                    }
+                    wait(nextTime - currentTime);
+                    continue;
+                }
+
+                DrivenClock drivenClock = (DrivenClock) clock;
+                // a first boundary is computed once the clock has a time
+                long targetTime = Math.max(nextTime, 1);
+                long currentTime = drivenClock.getCurrentTime(false);
+                if (currentTime >= targetTime) {
+                    return currentTime;
+                }
+                if (wakeUp == null || wakeUp.targetTime != targetTime) {
+                    if (wakeUpTimer != null) {
+                        drivenClock.cancel(wakeUpTimer);
+                    }
+                    wakeUp = new WakeUp(targetTime);
+                    wakeUpTimer = drivenClock.schedule(targetTime, wakeUp);
+                    if (wakeUp == null) {
+                        // the clock got there meanwhile, and ran the callback
+                        continue;
+                    }
+                }
+                wait();
+            }
+        }
+
+        /**
+         * Notifies the timer once a driven clock reaches a time.
+         */
+        class WakeUp implements Runnable {
+            private long targetTime;
+
+            WakeUp(long targetTime) {
+                this.targetTime = targetTime;
+            }
+
+            public void run() {
+                synchronized (ClockTimer.this) {
+                    // a callback that was replaced may still run
+                    if (wakeUp == this) {
+                        wakeUp = null;
+                        wakeUpTimer = null;
+                    }
+                    ClockTimer.this.notifyAll();
+                }
+            }
+        }
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+        private String name;
+        private AtomicInteger threadNumber = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + "-" + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
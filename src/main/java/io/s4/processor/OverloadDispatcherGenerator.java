@@ -22,7 +22,8 @@ import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.bcel.Constants;
 import org.apache.bcel.classfile.JavaClass;
@@ -38,6 +39,18 @@ import org.apache.bcel.generic.ObjectType;
 import org.apache.bcel.generic.Type;
 
 public class OverloadDispatcherGenerator {
+    /**
+     * Set the system property <code>s4.dispatcher</code> to this value to
+     * dispatch with {@link ReflectiveOverloadDispatcher} rather than generated
+     * classes.
+     */
+    public static final String REFLECTIVE_DISPATCHER = "reflective";
+
+    // generated dispatchers are stateless, so a single instance per target
+    // class is shared by every PE of that class
+    private static Map<Class<?>, OverloadDispatcher> dispatchers = new ConcurrentHashMap<Class<?>, OverloadDispatcher>();
+    private static Map<Class<?>, OverloadDispatcherSlot> slotDispatchers = new ConcurrentHashMap<Class<?>, OverloadDispatcherSlot>();
+
     private List<Hierarchy> hierarchies = new ArrayList<Hierarchy>();
     private Class<?> targetClass;
     private boolean forSlot = false;
@@ -65,18 +78,80 @@ public class OverloadDispatcherGenerator {
         Collections.sort(hierarchies);
     }
 
+    private static boolean isReflective() {
+        return REFLECTIVE_DISPATCHER.equals(System.getProperty("s4.dispatcher"));
+    }
+
+    /**
+     * Returns the dispatcher for a PE class, generating it the first time the
+     * class is seen.
+     */
+    public static OverloadDispatcher getDispatcher(Class<?> targetClass) {
+        OverloadDispatcher dispatcher = dispatchers.get(targetClass);
+        if (dispatcher == null) {
+            synchronized (dispatchers) {
+                dispatcher = dispatchers.get(targetClass);
+                if (dispatcher == null) {
+                    if (isReflective()) {
+                        dispatcher = new ReflectiveOverloadDispatcher(targetClass);
+                    } else {
+                        dispatcher = (OverloadDispatcher) newInstance(new OverloadDispatcherGenerator(targetClass).generate());
+                    }
+                    dispatchers.put(targetClass, dispatcher);
+                }
+            }
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Returns the dispatcher for a slot class, generating it the first time
+     * the class is seen.
+     */
+    public static OverloadDispatcherSlot getSlotDispatcher(Class<?> slotClass) {
+        OverloadDispatcherSlot dispatcher = slotDispatchers.get(slotClass);
+        if (dispatcher == null) {
+            synchronized (slotDispatchers) {
+                dispatcher = slotDispatchers.get(slotClass);
+                if (dispatcher == null) {
+                    if (isReflective()) {
+                        dispatcher = new ReflectiveOverloadDispatcher(slotClass);
+                    } else {
+                        dispatcher = (OverloadDispatcherSlot) newInstance(new OverloadDispatcherGenerator(slotClass,
+                                                                                                         true).generate());
+                    }
+                    slotDispatchers.put(slotClass, dispatcher);
+                }
+            }
+        }
+        return dispatcher;
+    }
+
+    private static Object newInstance(Class<?> dispatcherClass) {
+        try {
+            return dispatcherClass.newInstance();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public void addHierarchy(Class<?> clazz) {
         hierarchies.add(new Hierarchy(clazz));
     }
 
+    /**
+     * Generates a dispatcher class for the target class. The class is named
+     * after the target class, and defined in its own class loader whose parent
+     * is the target class's loader.
+     */
     public Class<Object> generate() {
-        Random rand = new Random(System.currentTimeMillis());
-        String dispatcherClassName = "OverloadDispatcher"
-                + (Math.abs(rand.nextInt() % 3256));
-
         String interfaceName = "io.s4.processor.OverloadDispatcher";
+        String dispatcherClassName = targetClass.getName()
+                + "$$OverloadDispatcher";
         if (forSlot) {
             interfaceName = "io.s4.processor.OverloadDispatcherSlot";
+            dispatcherClassName = targetClass.getName()
+                    + "$$OverloadDispatcherSlot";
         }
 
         ClassGen cg = new ClassGen(dispatcherClassName,
@@ -219,7 +294,7 @@ public class OverloadDispatcherGenerator {
         il.dispose();
 
         JavaClass jc = cg.getJavaClass();
-        OverloadDispatcherClassLoader cl = new OverloadDispatcherClassLoader();
+        OverloadDispatcherClassLoader cl = new OverloadDispatcherClassLoader(targetClass.getClassLoader());
 
         // debug
         if (classDumpFile != null) {
@@ -301,6 +376,10 @@ public class OverloadDispatcherGenerator {
             super(new URL[] {});
         }
 
+        public OverloadDispatcherClassLoader(ClassLoader parent) {
+            super(new URL[] {}, parent);
+        }
+
         public Class loadClassFromBytes(String name, byte[] bytes) {
             try {
                 return this.loadClass(name);
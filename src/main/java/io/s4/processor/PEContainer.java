@@ -17,40 +17,120 @@ package io.s4.processor;
 
 import static io.s4.util.MetricsName.S4_APP_METRICS;
 import static io.s4.util.MetricsName.S4_CORE_METRICS;
+import static io.s4.util.MetricsName.pecontainer_ctrl_dq_ct;
+import static io.s4.util.MetricsName.pecontainer_ctrl_drop_ct;
+import static io.s4.util.MetricsName.pecontainer_ctrl_exec_elapse_time;
+import static io.s4.util.MetricsName.pecontainer_ctrl_nq_ct;
+import static io.s4.util.MetricsName.pecontainer_ctrl_qsz;
 import static io.s4.util.MetricsName.pecontainer_ev_dq_ct;
 import static io.s4.util.MetricsName.pecontainer_ev_err_ct;
 import static io.s4.util.MetricsName.pecontainer_ev_nq_ct;
 import static io.s4.util.MetricsName.pecontainer_ev_process_ct;
 import static io.s4.util.MetricsName.pecontainer_exec_elapse_time;
+import static io.s4.util.MetricsName.pecontainer_exec_time_p50;
+import static io.s4.util.MetricsName.pecontainer_exec_time_p99;
+import static io.s4.util.MetricsName.pecontainer_exec_time_p999;
 import static io.s4.util.MetricsName.pecontainer_msg_drop_ct;
+import static io.s4.util.MetricsName.pecontainer_msg_shed_ct;
+import static io.s4.util.MetricsName.pecontainer_msg_spill_ct;
 import static io.s4.util.MetricsName.pecontainer_pe_ct;
 import static io.s4.util.MetricsName.pecontainer_qsz;
 import static io.s4.util.MetricsName.pecontainer_qsz_w;
+import static io.s4.util.MetricsName.pecontainer_total_time_p50;
+import static io.s4.util.MetricsName.pecontainer_total_time_p99;
+import static io.s4.util.MetricsName.pecontainer_total_time_p999;
+import static io.s4.util.MetricsName.pecontainer_wait_time_p50;
+import static io.s4.util.MetricsName.pecontainer_wait_time_p99;
+import static io.s4.util.MetricsName.pecontainer_wait_time_p999;
 import io.s4.collector.EventWrapper;
 import io.s4.dispatcher.partitioner.CompoundKeyInfo;
 import io.s4.logger.Monitor;
+import io.s4.serialize.SerializerDeserializer;
+import io.s4.util.LatencyHistogram;
+import io.s4.util.MetricsName;
+import io.s4.util.SpaceSavingSketch;
+import io.s4.util.SpillLog;
 import io.s4.util.clock.Clock;
 import io.s4.util.clock.EventClock;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
-public class PEContainer implements Runnable, AsynchronousEventProcessor {
+public class PEContainer implements AsynchronousEventProcessor {
+    /**
+     * What {@link PEContainer#queueWork} does with an event when the queue is
+     * full.
+     */
+    public static enum OverflowPolicy {
+        /** Drop the event. */
+        DROP,
+        /** Block the producer until there is room, for at most blockTimeout. */
+        BLOCK,
+        /**
+         * Drop events of low-priority streams once the queue is partly full,
+         * keeping the remaining room for higher-priority streams.
+         */
+        SHED,
+        /**
+         * Append the event to a memory-mapped spill log. Spilled events are
+         * processed, in order, once the queue is empty.
+         */
+        SPILL
+    }
+
     private static Logger logger = Logger.getLogger(PEContainer.class);
-    BlockingQueue<EventWrapper> workQueue;
-    private List<PrototypeWrapper> prototypeWrappers = new ArrayList<PrototypeWrapper>();
+    // queued on an idle worker's data queue to wake it up for a control event
+    private static final EventWrapper WAKE_UP = new EventWrapper();
+    // queued behind every worker's events to stop it once they are processed
+    private static final EventWrapper SHUTDOWN = new EventWrapper();
+    private static final String DEFAULT_GROUP = "default";
+    // groups and workers are replaced, not modified, when a group is added
+    private Map<String, WorkerGroup> groupsByName = new LinkedHashMap<String, WorkerGroup>();
+    private volatile WorkerGroup[] groups = new WorkerGroup[0];
+    private volatile Worker[] workers = new Worker[0];
+    private volatile Map<String, WorkerGroup[]> groupsByStream = new HashMap<String, WorkerGroup[]>();
+    private volatile WorkerGroup[] wildcardStreamGroups = new WorkerGroup[0];
+    private boolean started = false;
+    private Thread watcherThread;
+    private List<PrototypeWrapper> prototypeWrappers = new CopyOnWriteArrayList<PrototypeWrapper>();
     private Monitor monitor;
     private Clock s4Clock;
     private int maxQueueSize = 1000;
+    private int maxControlQueueSize = 1000;
+    private int workerCount = 1;
+    private int batchSize = 1;
+    private WorkQueueFactory workQueueFactory = new LinkedWorkQueueFactory();
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+    private long blockTimeout = 100;
+    private Map<String, Integer> streamPriorities = new HashMap<String, Integer>();
+    private int maxStreamPriority = 0;
+    private double shedThreshold = 0.8;
+    private String spillDirectory = System.getProperty("java.io.tmpdir");
+    private int spillLogSize = 64 * 1024 * 1024;
+    private SerializerDeserializer serDeser;
     private boolean trackByKey;
-    private Map<String, Integer> countByEventType = Collections.synchronizedMap(new HashMap<String, Integer>());
+    private int maxTrackedKeys = 1024;
+    private int topKeyCount = 0;
+    private boolean trackQueueResidency;
+    private boolean isolatePrototypes = false;
+    private Map<String, String> prototypeGroups = new HashMap<String, String>();
+    private Map<String, Integer> groupWorkerCounts = new HashMap<String, Integer>();
 
     private ControlEventProcessor controlEventProcessor = null;
 
@@ -58,6 +138,110 @@ public class PEContainer implements Runnable, AsynchronousEventProcessor {
         this.maxQueueSize = maxQueueSize;
     }
 
+    /**
+     * Sets the capacity of each worker's control event queue. Control events
+     * are never subject to the overflow policy; they are dropped if this queue
+     * is full.
+     */
+    public void setMaxControlQueueSize(int maxControlQueueSize) {
+        this.maxControlQueueSize = maxControlQueueSize;
+    }
+
+    /**
+     * Sets the number of threads executing PEs. Each event is routed to the
+     * worker owning the hash of its compound key value, so a given PE instance
+     * is always executed by the same thread and per-key ordering is preserved.
+     * Each worker has its own queue of <code>maxQueueSize</code> events.
+     * <p>
+     * The default of 1 keeps the original single-threaded behavior.
+     */
+    public void setWorkerCount(int workerCount) {
+        this.workerCount = Math.max(1, workerCount);
+    }
+
+    /**
+     * Sets the maximum number of events a worker takes from its queue at once.
+     * The events in a batch are processed in order, and the
+     * <code>pecontainer_*</code> metrics are published once per batch.
+     * <p>
+     * The default of 1 takes a single event at a time.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Sets the factory for the workers' queues. The default creates a
+     * {@link java.util.concurrent.LinkedBlockingQueue} per worker.
+     */
+    public void setWorkQueueFactory(WorkQueueFactory workQueueFactory) {
+        this.workQueueFactory = workQueueFactory;
+    }
+
+    public void setOverflowPolicy(String overflowPolicy) {
+        this.overflowPolicy = OverflowPolicy.valueOf(overflowPolicy.toUpperCase());
+    }
+
+    /**
+     * Sets how long, in milliseconds, a producer may block on a full queue
+     * under the <code>BLOCK</code> overflow policy.
+     */
+    public void setBlockTimeout(long blockTimeout) {
+        this.blockTimeout = blockTimeout;
+    }
+
+    /**
+     * Sets the priority of each stream for the <code>SHED</code> overflow
+     * policy. Streams not listed have priority 0.
+     * <p>
+     * Events of a priority 0 stream are dropped once the queue is
+     * <code>shedThreshold</code> full. The events of the highest-priority
+     * stream may use the whole queue, and the limits for the priorities in
+     * between are spread evenly.
+     */
+    public void setStreamPriorities(Map<String, Integer> streamPriorities) {
+        this.streamPriorities = streamPriorities;
+        for (Integer priority : streamPriorities.values()) {
+            maxStreamPriority = Math.max(maxStreamPriority, priority);
+        }
+    }
+
+    /**
+     * Sets the fraction of the queue that priority 0 streams may fill under
+     * the <code>SHED</code> overflow policy.
+     */
+    public void setShedThreshold(double shedThreshold) {
+        this.shedThreshold = shedThreshold;
+    }
+
+    /**
+     * Sets the directory holding the spill logs for the <code>SPILL</code>
+     * overflow policy. Defaults to <code>java.io.tmpdir</code>. Each log gets
+     * a unique file name, so several nodes may share the directory.
+     */
+    public void setSpillDirectory(String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Sets the size in bytes of each worker's spill log for the
+     * <code>SPILL</code> overflow policy. Events are dropped once the log is
+     * full.
+     */
+    public void setSpillLogSize(int spillLogSize) {
+        this.spillLogSize = spillLogSize;
+    }
+
+    /**
+     * Sets the serializer used to write events to the spill log, and to copy
+     * events queued to more than one group. Required by the
+     * <code>SPILL</code> overflow policy, and when there is more than one
+     * group.
+     */
+    public void setSerDeser(SerializerDeserializer serDeser) {
+        this.serDeser = serDeser;
+    }
+
     public void setMonitor(Monitor monitor) {
         this.monitor = monitor;
     }
@@ -74,11 +258,76 @@ public class PEContainer implements Runnable, AsynchronousEventProcessor {
         this.trackByKey = trackByKey;
     }
 
+    /**
+     * Sets the maximum number of stream/key pairs counted when tracking by
+     * key. Defaults to 1024.
+     */
+    public void setMaxTrackedKeys(int maxTrackedKeys) {
+        this.maxTrackedKeys = maxTrackedKeys;
+    }
+
+    /**
+     * Sets the number of hottest key values kept per stream/key pair when
+     * tracking by key. Defaults to 0, which keeps none.
+     */
+    public void setTopKeyCount(int topKeyCount) {
+        this.topKeyCount = topKeyCount;
+    }
+
+    /**
+     * Sets whether the time events wait in the work queues is also kept per
+     * stream. Off by default, as it costs a map lookup per event.
+     */
+    public void setTrackQueueResidency(boolean trackQueueResidency) {
+        this.trackQueueResidency = trackQueueResidency;
+    }
+
+    /**
+     * Sets whether each prototype gets its own group of workers, so that a
+     * slow PE only delays the events queued for itself. Prototypes assigned
+     * to a group with {@link #setPrototypeGroups} are grouped as configured.
+     * Requires the <code>serDeser</code>, to copy events for each group.
+     * <p>
+     * By default all prototypes share a single group.
+     */
+    public void setIsolatePrototypes(boolean isolatePrototypes) {
+        this.isolatePrototypes = isolatePrototypes;
+    }
+
+    /**
+     * Assigns prototypes, by PE id, to named groups. Each group has its own
+     * workers and queues: an event is queued once for each group with a
+     * prototype interested in it, and a full or slow group does not hold up
+     * the others. Unassigned prototypes go to the default group, unless
+     * prototypes are isolated.
+     * <p>
+     * The groups process an event concurrently, so each group after the
+     * first gets its own copy, made with the <code>serDeser</code>.
+     */
+    public void setPrototypeGroups(Map<String, String> prototypeGroups) {
+        this.prototypeGroups = prototypeGroups;
+    }
+
+    /**
+     * Sets the number of workers of specific groups. Groups not listed have
+     * <code>workerCount</code> workers.
+     */
+    public void setGroupWorkerCounts(Map<String, Integer> groupWorkerCounts) {
+        this.groupWorkerCounts = groupWorkerCounts;
+    }
+
     public void addProcessor(ProcessingElement processor) {
         System.out.println("adding pe: " + processor);
         PrototypeWrapper pw = new PrototypeWrapper(processor, s4Clock);
-        prototypeWrappers.add(pw);
-        adviceLists.add(pw.advise());
+        synchronized (this) {
+            prototypeWrappers.add(pw);
+            // processors may be added after init(), in which case the routing
+            // is updated right away; otherwise init() assigns the groups
+            if (started) {
+                getGroup(getGroupName(pw)).addPrototype(pw);
+                updateGroupRoutes();
+            }
+        }
     }
 
     public void setProcessors(ProcessingElement[] processors) {
@@ -97,17 +346,149 @@ public class PEContainer implements Runnable, AsynchronousEventProcessor {
 
     }
 
-    List<List<EventAdvice>> adviceLists = new ArrayList<List<EventAdvice>>();
-
     public void init() {
-        workQueue = new LinkedBlockingQueue<EventWrapper>(maxQueueSize);
-        for (PrototypeWrapper pw : prototypeWrappers) {
-            adviceLists.add(pw.advise());
+        synchronized (this) {
+            // the default group always exists, and receives the events no
+            // prototype is interested in so that they still drive the clock
+            getGroup(DEFAULT_GROUP);
+            for (PrototypeWrapper pw : prototypeWrappers) {
+                getGroup(getGroupName(pw)).addPrototype(pw);
+            }
+            updateGroupRoutes();
+            started = true;
+            for (WorkerGroup group : groups) {
+                group.start();
+            }
+        }
+        watcherThread = new Thread(new Watcher());
+        watcherThread.start();
+    }
+
+    /**
+     * Stops the workers once they have processed the events queued so far,
+     * including spilled events, waits for them to finish and closes their
+     * spill logs. Events queued during or after the shutdown may not be
+     * processed.
+     */
+    public void shutdown() throws InterruptedException {
+        Worker[] stoppingWorkers;
+        synchronized (this) {
+            if (!started) {
+                return;
+            }
+            started = false;
+            stoppingWorkers = workers;
+        }
+        for (Worker worker : stoppingWorkers) {
+            worker.workQueue.put(SHUTDOWN);
+        }
+        for (Worker worker : stoppingWorkers) {
+            worker.thread.join();
+            if (worker.spillLog != null) {
+                synchronized (worker.spillLog) {
+                    try {
+                        worker.spillLog.close();
+                    } catch (IOException ioe) {
+                        logger.warn("Unable to close spill log "
+                                + worker.spillLog.getFile(), ioe);
+                    }
+                }
+            }
+        }
+        watcherThread.interrupt();
+    }
+
+    private String getGroupName(PrototypeWrapper pw) {
+        String groupName = prototypeGroups.get(pw.getId());
+        if (groupName != null) {
+            return groupName;
+        }
+        if (isolatePrototypes && pw.getId() != null) {
+            return pw.getId();
+        }
+        return DEFAULT_GROUP;
+    }
+
+    /**
+     * Returns the named group, creating it (and starting it, once the
+     * container is started) if it does not exist. Must be called while
+     * holding this container's lock.
+     */
+    private WorkerGroup getGroup(String name) {
+        WorkerGroup group = groupsByName.get(name);
+        if (group == null) {
+            if (!groupsByName.isEmpty() && serDeser == null) {
+                throw new IllegalStateException("serDeser must be set to use more than one worker group");
+            }
+            Integer groupWorkerCount = groupWorkerCounts.get(name);
+            group = new WorkerGroup(name,
+                                    (groupWorkerCount == null) ? workerCount
+                                            : Math.max(1, groupWorkerCount),
+                                    workers.length);
+            groupsByName.put(name, group);
+            groups = groupsByName.values().toArray(new WorkerGroup[0]);
+
+            List<Worker> allWorkers = new ArrayList<Worker>();
+            for (WorkerGroup g : groups) {
+                allWorkers.addAll(Arrays.asList(g.workers));
+            }
+            workers = allWorkers.toArray(new Worker[0]);
+            if (started) {
+                group.start();
+            }
+        }
+        return group;
+    }
+
+    /**
+     * Rebuilds the index from stream name to the groups interested in it.
+     * Must be called while holding this container's lock.
+     */
+    private void updateGroupRoutes() {
+        WorkerGroup defaultGroup = groupsByName.get(DEFAULT_GROUP);
+        Set<String> streamNames = new HashSet<String>();
+        for (WorkerGroup group : groups) {
+            streamNames.addAll(group.routingTable.getStreamNames());
+        }
+
+        Map<String, WorkerGroup[]> newGroupsByStream = new HashMap<String, WorkerGroup[]>();
+        for (String streamName : streamNames) {
+            List<WorkerGroup> targets = new ArrayList<WorkerGroup>();
+            for (WorkerGroup group : groups) {
+                if (!group.routingTable.getRoute(streamName).isEmpty()) {
+                    targets.add(group);
+                }
+            }
+            if (targets.isEmpty()) {
+                targets.add(defaultGroup);
+            }
+            newGroupsByStream.put(streamName,
+                                  targets.toArray(new WorkerGroup[0]));
+        }
+
+        List<WorkerGroup> wildcardTargets = new ArrayList<WorkerGroup>();
+        for (WorkerGroup group : groups) {
+            if (!group.routingTable.getWildcardStreamRoute().isEmpty()) {
+                wildcardTargets.add(group);
+            }
+        }
+        if (wildcardTargets.isEmpty()) {
+            wildcardTargets.add(defaultGroup);
+        }
+
+        groupsByStream = newGroupsByStream;
+        wildcardStreamGroups = wildcardTargets.toArray(new WorkerGroup[0]);
+    }
+
+    /**
+     * Returns the groups interested in a stream. Never empty.
+     */
+    private WorkerGroup[] getGroups(String streamName) {
+        WorkerGroup[] targets = groupsByStream.get(streamName);
+        if (targets == null) {
+            return wildcardStreamGroups;
         }
-        Thread t = new Thread(this, "PEContainer");
-        t.start();
-        t = new Thread(new Watcher());
-        t.start();
+        return targets;
     }
 
     /*
@@ -120,9 +501,32 @@ public class PEContainer implements Runnable, AsynchronousEventProcessor {
     @Override
     public void queueWork(EventWrapper eventWrapper) {
         boolean isAddSucceed = false;
+        eventWrapper.setEnqueueTime(System.nanoTime());
+
+        if (testControlEvent(eventWrapper)) {
+            queueControl(eventWrapper);
+            return;
+        }
 
         try {
-            isAddSucceed = workQueue.offer(eventWrapper);
+            WorkerGroup[] targets = getGroups(eventWrapper.getStreamName());
+            isAddSucceed = true;
+            for (int i = 0; i < targets.length; i++) {
+                WorkerGroup group = targets[i];
+                boolean isGroupAddSucceed = group.offer((i == 0) ? eventWrapper
+                        : copy(eventWrapper));
+                if (!isGroupAddSucceed) {
+                    isAddSucceed = false;
+                }
+                if (monitor != null && groups.length > 1) {
+                    monitor.increment(isGroupAddSucceed ? pecontainer_ev_nq_ct.toString()
+                                              : pecontainer_msg_drop_ct.toString(),
+                                      1,
+                                      S4_CORE_METRICS.toString(),
+                                      "grp",
+                                      group.name);
+                }
+            }
             if (monitor != null) {
                 if (isAddSucceed) {
                     monitor.increment(pecontainer_ev_nq_ct.toString(),
@@ -137,21 +541,180 @@ public class PEContainer implements Runnable, AsynchronousEventProcessor {
                             getQueueSize(),
                             S4_CORE_METRICS.toString());
             }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("metrics name doesn't exist", e);
+        }
+    }
+
+    /**
+     * Queues a control event, in each group, on the control queue of the
+     * worker owning the PE the event refers to. Workers always process their
+     * control queue before their data queue, so control events do not wait
+     * behind data events.
+     */
+    private void queueControl(EventWrapper eventWrapper) {
+        // SinglePERequests address the PE keyed by the first compound key
+        List<CompoundKeyInfo> compoundKeys = eventWrapper.getCompoundKeys();
+        String keyValue = "*";
+        if (compoundKeys != null && !compoundKeys.isEmpty()) {
+            keyValue = compoundKeys.get(0).getCompoundValue();
+        }
+
+        try {
+            boolean isAddSucceed = true;
+            WorkerGroup[] targets = groups;
+            for (int i = 0; i < targets.length; i++) {
+                WorkerGroup group = targets[i];
+                Worker worker = group.workers[group.getWorkerIndex(keyValue)];
+                if (!worker.controlQueue.offer((i == 0) ? eventWrapper
+                        : copy(eventWrapper))) {
+                    isAddSucceed = false;
+                } else if (worker.workQueue.isEmpty()) {
+                    // the worker may be blocked waiting on its data queue
+                    worker.workQueue.offer(WAKE_UP);
+                }
+            }
+            if (monitor != null) {
+                if (isAddSucceed) {
+                    monitor.increment(pecontainer_ctrl_nq_ct.toString(),
+                                      1,
+                                      S4_CORE_METRICS.toString());
+                } else {
+                    monitor.increment(pecontainer_ctrl_drop_ct.toString(),
+                                      1,
+                                      S4_CORE_METRICS.toString());
+                }
+                monitor.set(pecontainer_ctrl_qsz.toString(),
+                            getControlQueueSize(),
+                            S4_CORE_METRICS.toString());
+            }
         } catch (Exception e) {
             logger.error("metrics name doesn't exist", e);
         }
     }
 
+    /**
+     * Returns a copy of the event for another group, whose threads may run
+     * PEs on it while the first group's threads run theirs.
+     */
+    private EventWrapper copy(EventWrapper eventWrapper) {
+        EventWrapper copy = (EventWrapper) serDeser.deserialize(serDeser.serialize(eventWrapper));
+        copy.setEnqueueTime(eventWrapper.getEnqueueTime());
+        return copy;
+    }
+
     // This will always be called by a different thread than the one executing
     // run()
     /*
      * (non-Javadoc)
-     * 
+     *
      * @see io.s4.processor.AsynchronousEventProcessor#getQueueSize()
      */
     @Override
     public int getQueueSize() {
-        return workQueue.size();
+        int queueSize = 0;
+        for (Worker worker : workers) {
+            queueSize += worker.workQueue.size();
+            if (worker.spillLog != null) {
+                queueSize += worker.spillLog.getRecordCount();
+            }
+        }
+        return queueSize;
+    }
+
+    public int getControlQueueSize() {
+        int queueSize = 0;
+        for (Worker worker : workers) {
+            queueSize += worker.controlQueue.size();
+        }
+        return queueSize;
+    }
+
+    /**
+     * Returns a snapshot of the time, in nanoseconds, events spent in the
+     * work queues before being processed, since the container started.
+     */
+    public LatencyHistogram getQueueWaitHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (Worker worker : workers) {
+            histogram.add(worker.queueWaitHistogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns a snapshot of the time, in nanoseconds, from events being queued
+     * to the container having run every PE interested in them, since the
+     * container started.
+     */
+    public LatencyHistogram getContainerTimeHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (Worker worker : workers) {
+            histogram.add(worker.containerTimeHistogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns a snapshot of the execution time, in nanoseconds, of each PE
+     * prototype since the container started, keyed by PE id.
+     */
+    public Map<String, LatencyHistogram> getExecTimeHistograms() {
+        Map<String, LatencyHistogram> histograms = new HashMap<String, LatencyHistogram>();
+        for (Worker worker : workers) {
+            LatencyHistogram.addAll(histograms, worker.execTimeHistograms);
+        }
+        return histograms;
+    }
+
+    /**
+     * Returns a snapshot of the time, in nanoseconds, events spent in the
+     * work queues, keyed by stream name. Empty unless queue residency tracking
+     * is on.
+     * 
+     * @see #setTrackQueueResidency(boolean)
+     */
+    public Map<String, LatencyHistogram> getQueueWaitHistogramsByStream() {
+        Map<String, LatencyHistogram> histograms = new HashMap<String, LatencyHistogram>();
+        for (Worker worker : workers) {
+            LatencyHistogram.addAll(histograms, worker.queueWaitHistogramsByStream);
+        }
+        return histograms;
+    }
+
+    /**
+     * Returns a snapshot of the time, in nanoseconds, events spent in the
+     * work queues of each group, keyed by group name.
+     */
+    public Map<String, LatencyHistogram> getQueueWaitHistogramsByGroup() {
+        Map<String, LatencyHistogram> histograms = new HashMap<String, LatencyHistogram>();
+        for (WorkerGroup group : groups) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            for (Worker worker : group.workers) {
+                histogram.add(worker.queueWaitHistogram);
+            }
+            histograms.put(group.name, histogram);
+        }
+        return histograms;
+    }
+
+    /**
+     * Returns a snapshot of the time, in nanoseconds, from events being queued
+     * to each group having run every PE interested in them, keyed by group
+     * name.
+     */
+    public Map<String, LatencyHistogram> getContainerTimeHistogramsByGroup() {
+        Map<String, LatencyHistogram> histograms = new HashMap<String, LatencyHistogram>();
+        for (WorkerGroup group : groups) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            for (Worker worker : group.workers) {
+                histogram.add(worker.containerTimeHistogram);
+            }
+            histograms.put(group.name, histogram);
+        }
+        return histograms;
     }
 
     /**
@@ -173,163 +736,593 @@ public class PEContainer implements Runnable, AsynchronousEventProcessor {
         return false;
     }
 
-    public void run() {
-        long startTime, endTime;
-        while (true) {
-            EventWrapper eventWrapper = null;
-            try {
-                eventWrapper = workQueue.take();
-                if (s4Clock instanceof EventClock) {
-                    EventClock eventClock = (EventClock) s4Clock;
-                    eventClock.update(eventWrapper);
-                    // To what time to update the clock
-                }
-                if (trackByKey) {
-                    boolean foundOne = false;
-                    for (CompoundKeyInfo compoundKeyInfo : eventWrapper.getCompoundKeys()) {
-                        foundOne = true;
-                        updateCount(eventWrapper.getStreamName() + " "
-                                + compoundKeyInfo.getCompoundKey());
+    /**
+     * Returns the index of the worker that executes the PE instances for
+     * the specified key value, among the specified number of workers.
+     * <p>
+     * Events arriving at this node were already partitioned on a hash of the
+     * same value, so the value's own <code>hashCode</code> is spread here
+     * rather than reusing the partitioner's hasher; otherwise a worker count
+     * sharing a factor with the partition count would leave workers idle.
+     */
+    static int getWorkerIndex(String keyValue, int workerCount) {
+        if (workerCount == 1 || keyValue == null) {
+            return 0;
+        }
+        int h = keyValue.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return (h & Integer.MAX_VALUE) % workerCount;
+    }
+
+    /**
+     * A set of prototypes with their own workers and queues.
+     */
+    class WorkerGroup {
+        private String name;
+        private List<PrototypeWrapper> prototypeWrappers = new CopyOnWriteArrayList<PrototypeWrapper>();
+        private volatile RoutingTable routingTable = new RoutingTable(prototypeWrappers);
+        private Worker[] workers;
+        private KeyCountTracker keyCountTracker;
+
+        /**
+         * @param firstWorkerNumber
+         *            the number of this group's first worker among all the
+         *            container's workers, used to name spill logs
+         */
+        WorkerGroup(String name, int workerCount, int firstWorkerNumber) {
+            this.name = name;
+            workers = new Worker[workerCount];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new Worker(this,
+                                        i,
+                                        workQueueFactory.createQueue(maxQueueSize));
+                if (overflowPolicy == OverflowPolicy.SPILL) {
+                    if (serDeser == null) {
+                        throw new IllegalStateException("serDeser must be set to use the SPILL overflow policy");
+                    }
+                    // a unique name, so nodes sharing the directory never
+                    // map the same file
+                    String prefix = "pecontainer-spill-"
+                            + (firstWorkerNumber + i) + "-";
+                    try {
+                        File file = File.createTempFile(prefix,
+                                                        ".log",
+                                                        new File(spillDirectory));
+                        workers[i].spillLog = new SpillLog(file, spillLogSize);
+                    } catch (IOException ioe) {
+                        throw new RuntimeException("Unable to create spill log in "
+                                                           + spillDirectory,
+                                                   ioe);
                     }
+                }
+            }
+            if (trackByKey) {
+                keyCountTracker = new KeyCountTracker(workers.length,
+                                                      maxTrackedKeys,
+                                                      topKeyCount);
+            }
+        }
+
+        void addPrototype(PrototypeWrapper pw) {
+            pw.setOwnerCount(workers.length);
+            prototypeWrappers.add(pw);
+            routingTable = new RoutingTable(prototypeWrappers);
+        }
+
+        void start() {
+            String threadName = DEFAULT_GROUP.equals(name) ? "PEContainer"
+                    : "PEContainer-" + name;
+            for (int i = 0; i < workers.length; i++) {
+                Thread t = new Thread(workers[i], workers.length == 1 ? threadName
+                        : threadName + "-" + i);
+                workers[i].thread = t;
+                t.start();
+            }
+        }
+
+        /**
+         * Returns the index of the worker that executes the PE instances for
+         * the specified key value.
+         */
+        int getWorkerIndex(String keyValue) {
+            return PEContainer.getWorkerIndex(keyValue, workers.length);
+        }
+
+        /**
+         * Queues the event on every worker owning at least one of its
+         * compound key values. Each worker then executes only the PE
+         * instances it owns. Events that may be handled by a PE keyed on "*"
+         * also go to the worker owning the "*" instance.
+         * 
+         * @return false if any of the workers' queues was full
+         */
+        boolean offer(EventWrapper eventWrapper) throws InterruptedException {
+            if (workers.length == 1) {
+                return workers[0].offer(eventWrapper);
+            }
+
+            List<CompoundKeyInfo> compoundKeys = eventWrapper.getCompoundKeys();
+            int keyCount = (compoundKeys == null) ? 0 : compoundKeys.size();
+            int[] targets = new int[keyCount + 1];
+            int targetCount = 0;
 
-                    if (!foundOne) {
-                        updateCount(eventWrapper.getStreamName() + " *");
+            if (keyCount == 0
+                    || routingTable.getRoute(eventWrapper.getStreamName())
+                                   .getWildcardKeyTargets().length > 0) {
+                targets[targetCount++] = getWorkerIndex("*");
+            }
+            for (int i = 0; i < keyCount; i++) {
+                int index = getWorkerIndex(compoundKeys.get(i)
+                                                       .getCompoundValue());
+                boolean seen = false;
+                for (int j = 0; j < targetCount; j++) {
+                    if (targets[j] == index) {
+                        seen = true;
+                        break;
                     }
                 }
+                if (!seen) {
+                    targets[targetCount++] = index;
+                }
+            }
 
-                startTime = System.currentTimeMillis();
-                if (logger.isDebugEnabled()) {
-                    logger.debug("STEP 5 (PEContainer): workQueue.take - "
-                            + eventWrapper.toString());
+            boolean isAddSucceed = true;
+            for (int i = 0; i < targetCount; i++) {
+                if (!workers[targets[i]].offer(eventWrapper)) {
+                    isAddSucceed = false;
                 }
-                // Logger.getLogger("s4").debug(
-                // "Incoming: " + event.getEventName());
-                if (monitor != null) {
-                    monitor.increment(pecontainer_ev_dq_ct.toString(),
-                                      1,
-                                      S4_CORE_METRICS.toString());
+            }
+            return isAddSucceed;
+        }
+
+        int getQueueSize() {
+            int queueSize = 0;
+            for (Worker worker : workers) {
+                queueSize += worker.workQueue.size();
+                if (worker.spillLog != null) {
+                    queueSize += worker.spillLog.getRecordCount();
                 }
-                // printPlainPartitionInfoList(event.getCompoundKeyList());
+            }
+            return queueSize;
+        }
+    }
 
-                boolean ctrlEvent = testControlEvent(eventWrapper);
+    class Worker implements Runnable {
+        private WorkerGroup group;
+        private int index;
+        BlockingQueue<EventWrapper> workQueue;
+        BlockingQueue<EventWrapper> controlQueue = new LinkedBlockingQueue<EventWrapper>(maxControlQueueSize);
+        private List<EventWrapper> batch;
+        // metrics accumulated over a batch: the number of PE invocations, and
+        // per PE id, the invocation count and elapsed nanoseconds
+        private int processCount;
+        private Map<String, long[]> peMetrics = new HashMap<String, long[]>();
+        // histograms are only written by this worker's thread
+        LatencyHistogram queueWaitHistogram = new LatencyHistogram();
+        LatencyHistogram containerTimeHistogram = new LatencyHistogram();
+        Map<String, LatencyHistogram> execTimeHistograms = new ConcurrentHashMap<String, LatencyHistogram>();
+        Map<String, LatencyHistogram> queueWaitHistogramsByStream = new ConcurrentHashMap<String, LatencyHistogram>();
+        // the spill log is guarded by its own monitor; spilling is set while
+        // it holds events, and producers then append to it rather than to the
+        // queue so that events are processed in arrival order
+        SpillLog spillLog;
+        private volatile boolean spilling = false;
+        Thread thread;
+        // set once the worker has taken SHUTDOWN from its queue
+        private boolean stopping = false;
 
-                // execute the PEs interested in this event
-                for (int i = 0; i < prototypeWrappers.size(); i++) {
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("STEP 6 (PEContainer): prototypeWrappers("
-                                + i + ") - "
-                                + prototypeWrappers.get(i).toString() + " - "
-                                + eventWrapper.getStreamName());
+        Worker(WorkerGroup group, int index,
+                BlockingQueue<EventWrapper> workQueue) {
+            this.group = group;
+            this.index = index;
+            this.workQueue = workQueue;
+        }
+
+        /**
+         * Adds an event to this worker's queue, applying the overflow policy
+         * if the queue is full.
+         * 
+         * @return false if the event was dropped
+         */
+        boolean offer(EventWrapper eventWrapper) throws InterruptedException {
+            switch (overflowPolicy) {
+            case BLOCK:
+                return workQueue.offer(eventWrapper,
+                                       blockTimeout,
+                                       TimeUnit.MILLISECONDS);
+            case SHED:
+                if (workQueue.size() >= getAdmissionLimit(eventWrapper.getStreamName())) {
+                    if (monitor != null) {
+                        monitor.increment(pecontainer_msg_shed_ct.toString(),
+                                          1,
+                                          S4_CORE_METRICS.toString());
                     }
+                    return false;
+                }
+                return workQueue.offer(eventWrapper);
+            case SPILL:
+                if (!spilling && workQueue.offer(eventWrapper)) {
+                    return true;
+                }
+                return spill(eventWrapper);
+            default:
+                return workQueue.offer(eventWrapper);
+            }
+        }
+
+        private int getAdmissionLimit(String streamName) {
+            int capacity = workQueue.size() + workQueue.remainingCapacity();
+            Integer priority = streamPriorities.get(streamName);
+            if (priority == null || priority <= 0) {
+                return (int) (capacity * shedThreshold);
+            }
+            if (priority >= maxStreamPriority) {
+                return capacity;
+            }
+            double fraction = shedThreshold + (1.0 - shedThreshold) * priority
+                    / maxStreamPriority;
+            return (int) (capacity * fraction);
+        }
+
+        private boolean spill(EventWrapper eventWrapper) {
+            // the enqueue time is not serialized with the event, so the
+            // record carries it in front of the event bytes
+            byte[] event = serDeser.serialize(eventWrapper);
+            byte[] record = new byte[event.length + 8];
+            ByteBuffer.wrap(record)
+                      .putLong(eventWrapper.getEnqueueTime())
+                      .put(event);
+            synchronized (spillLog) {
+                // the consumer may have emptied the log since we checked
+                if (!spilling && workQueue.offer(eventWrapper)) {
+                    return true;
+                }
+                if (!spillLog.append(record)) {
+                    return false;
+                }
+                spilling = true;
+            }
+            if (monitor != null) {
+                monitor.increment(pecontainer_msg_spill_ct.toString(),
+                                  1,
+                                  S4_CORE_METRICS.toString());
+            }
+            return true;
+        }
 
-                    // first check if this is a control message and handle it if
-                    // so.
-                    if (ctrlEvent) {
-                        if (controlEventProcessor != null) {
-                            controlEventProcessor.process(eventWrapper,
-                                                          prototypeWrappers.get(i));
+        /**
+         * Moves up to <code>batchSize</code> events from the spill log into
+         * the batch.
+         */
+        private void replaySpilled() {
+            synchronized (spillLog) {
+                byte[] record;
+                while (batch.size() < batchSize
+                        && (record = spillLog.read()) != null) {
+                    ByteBuffer buffer = ByteBuffer.wrap(record);
+                    long enqueueTime = buffer.getLong();
+                    byte[] event = new byte[buffer.remaining()];
+                    buffer.get(event);
+                    EventWrapper eventWrapper = (EventWrapper) serDeser.deserialize(event);
+                    eventWrapper.setEnqueueTime(enqueueTime);
+                    batch.add(eventWrapper);
+                }
+                if (spillLog.isEmpty()) {
+                    spilling = false;
+                }
+            }
+        }
+
+        /**
+         * Fills the batch, waiting for at least one event.
+         */
+        private void fillBatch() throws InterruptedException {
+            batch.clear();
+            if (spillLog == null) {
+                batch.add(workQueue.take());
+                if (batchSize > 1) {
+                    workQueue.drainTo(batch, batchSize - 1);
+                }
+                return;
+            }
+
+            // the queue holds events older than any spilled one, so it is
+            // always drained first. Poll with a timeout, since producers
+            // append to the spill log without waking this thread.
+            while (batch.isEmpty()) {
+                if (spilling) {
+                    workQueue.drainTo(batch, batchSize);
+                    if (batch.isEmpty()) {
+                        replaySpilled();
+                    }
+                } else {
+                    EventWrapper eventWrapper = workQueue.poll(100,
+                                                               TimeUnit.MILLISECONDS);
+                    if (eventWrapper != null) {
+                        batch.add(eventWrapper);
+                        if (batchSize > 1) {
+                            workQueue.drainTo(batch, batchSize - 1);
                         }
+                    }
+                }
+            }
+        }
+
+        private boolean owns(String keyValue) {
+            return group.workers.length == 1
+                    || group.getWorkerIndex(keyValue) == index;
+        }
+
+        public void run() {
+            long startTime, currentTime;
+            batch = new ArrayList<EventWrapper>(batchSize);
+            while (true) {
+                try {
+                    processControlEvents();
 
-                        continue;
+                    if (stopping && workQueue.isEmpty() && !spilling) {
+                        return;
                     }
+                    fillBatch();
 
-                    // otherwise, continue processing event.
-                    List<EventAdvice> adviceList = adviceLists.get(i);
-                    for (EventAdvice eventAdvice : adviceList) {
-                        if (eventAdvice.getEventName().equals("*")
-                                || eventAdvice.getEventName()
-                                              .equals(eventWrapper.getStreamName())) {
-                            // event name matches
-                        } else {
+                    int eventCount = 0;
+                    startTime = System.nanoTime();
+                    currentTime = startTime;
+                    for (int i = 0; i < batch.size(); i++) {
+                        EventWrapper eventWrapper = batch.get(i);
+                        if (eventWrapper == WAKE_UP) {
                             continue;
                         }
-
-                        if (eventAdvice.getKey().equals("*")) {
-                            invokePE(prototypeWrappers.get(i).getPE("*"),
-                                     eventWrapper,
-                                     null);
+                        if (eventWrapper == SHUTDOWN) {
+                            stopping = true;
                             continue;
                         }
-
-                        for (CompoundKeyInfo compoundKeyInfo : eventWrapper.getCompoundKeys()) {
-                            if (eventAdvice.getKey()
-                                           .equals(compoundKeyInfo.getCompoundKey())) {
-                                invokePE(prototypeWrappers.get(i)
-                                                          .getPE(compoundKeyInfo.getCompoundValue()),
-                                         eventWrapper,
-                                         compoundKeyInfo);
+                        eventCount++;
+                        long enqueueTime = eventWrapper.getEnqueueTime();
+                        if (enqueueTime != 0) {
+                            queueWaitHistogram.record(currentTime - enqueueTime);
+                            if (trackQueueResidency) {
+                                recordQueueWait(eventWrapper.getStreamName(),
+                                                currentTime - enqueueTime);
                             }
                         }
+                        try {
+                            processEvent(eventWrapper);
+                        } catch (Exception e) {
+                            Logger.getLogger("s4")
+                                  .error("Exception choosing processing element to run",
+                                         e);
+                        }
+                        currentTime = System.nanoTime();
+                        if (enqueueTime != 0) {
+                            containerTimeHistogram.record(currentTime
+                                    - enqueueTime);
+                        }
                     }
+
+                    publishMetrics(eventCount, currentTime - startTime);
+                } catch (InterruptedException ie) {
+                    Logger.getLogger("s4").warn("PEContainer is interrupted",
+                                                ie);
+                    return;
+                } catch (Exception e) {
+                    Logger.getLogger("s4")
+                          .error("Exception choosing processing element to run",
+                                 e);
                 }
+            }
+        }
 
-                endTime = System.currentTimeMillis();
-                if (monitor != null) {
-                    // TODO: need to be changed for more accurate calc
-                    monitor.increment(pecontainer_exec_elapse_time.toString(),
-                                      (int) (endTime - startTime),
-                                      S4_CORE_METRICS.toString());
+        private void processControlEvents() {
+            EventWrapper eventWrapper;
+            while ((eventWrapper = controlQueue.poll()) != null) {
+                long startTime = System.currentTimeMillis();
+                try {
+                    processEvent(eventWrapper);
+                } catch (Exception e) {
+                    Logger.getLogger("s4")
+                          .error("Exception processing control event", e);
+                }
+                long endTime = System.currentTimeMillis();
+                try {
+                    if (monitor != null) {
+                        monitor.increment(pecontainer_ctrl_dq_ct.toString(),
+                                          1,
+                                          S4_CORE_METRICS.toString());
+                        monitor.increment(pecontainer_ctrl_exec_elapse_time.toString(),
+                                          (int) (endTime - startTime),
+                                          S4_CORE_METRICS.toString());
+                    }
+                } catch (Exception e) {
+                    logger.error("metrics name doesn't exist", e);
+                }
+            }
+        }
+
+        private void processEvent(EventWrapper eventWrapper) {
+            if (s4Clock instanceof EventClock) {
+                EventClock eventClock = (EventClock) s4Clock;
+                eventClock.update(eventWrapper);
+                // To what time to update the clock
+            }
+            // when several groups receive the event, only the first counts it
+            if (trackByKey
+                    && getGroups(eventWrapper.getStreamName())[0] == group) {
+                KeyCountTracker keyCountTracker = group.keyCountTracker;
+                boolean foundOne = false;
+                for (CompoundKeyInfo compoundKeyInfo : eventWrapper.getCompoundKeys()) {
+                    foundOne = true;
+                    if (owns(compoundKeyInfo.getCompoundValue())) {
+                        keyCountTracker.record(index,
+                                               keyCountTracker.getId(eventWrapper.getStreamName(),
+                                                                     compoundKeyInfo.getCompoundKey()),
+                                               compoundKeyInfo.getCompoundValue());
+                    }
+                }
+
+                if (!foundOne && owns("*")) {
+                    keyCountTracker.record(index,
+                                           keyCountTracker.getId(eventWrapper.getStreamName(),
+                                                                 "*"),
+                                           null);
+                }
+            }
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("STEP 5 (PEContainer): workQueue.take - "
+                        + eventWrapper.toString());
+            }
+            // Logger.getLogger("s4").debug(
+            // "Incoming: " + event.getEventName());
+            // printPlainPartitionInfoList(event.getCompoundKeyList());
+
+            boolean ctrlEvent = testControlEvent(eventWrapper);
+
+            // first check if this is a control message and handle it if so.
+            if (ctrlEvent) {
+                if (controlEventProcessor != null) {
+                    for (PrototypeWrapper pw : group.prototypeWrappers) {
+                        controlEventProcessor.process(eventWrapper, pw);
+                    }
                 }
-            } catch (InterruptedException ie) {
-                Logger.getLogger("s4").warn("PEContainer is interrupted", ie);
                 return;
+            }
+
+            // otherwise, execute the PEs interested in this event
+            RoutingTable.StreamRoute route = group.routingTable.getRoute(eventWrapper.getStreamName());
+            if (logger.isDebugEnabled()) {
+                logger.debug("STEP 6 (PEContainer): route - " + route + " - "
+                        + eventWrapper.getStreamName());
+            }
+
+            // walk the targets in prototype order, as the container did before
+            // routes were precompiled
+            for (RoutingTable.Target target : route.getOrderedTargets()) {
+                PrototypeWrapper pw = target.getPrototypeWrapper();
+                if (target.isWildcardKey()) {
+                    if (owns("*")) {
+                        invokePE(pw.getPE("*"), eventWrapper, null);
+                    }
+                    continue;
+                }
+                for (CompoundKeyInfo compoundKeyInfo : eventWrapper.getCompoundKeys()) {
+                    if (target.getKey()
+                              .equals(compoundKeyInfo.getCompoundKey())
+                            && owns(compoundKeyInfo.getCompoundValue())) {
+                        invokePE(pw.getPE(compoundKeyInfo.getCompoundValue()),
+                                 eventWrapper,
+                                 compoundKeyInfo);
+                    }
+                }
+            }
+        }
+
+        private void invokePE(ProcessingElement pe, EventWrapper eventWrapper,
+                              CompoundKeyInfo compoundKeyInfo) {
+            try {
+                long startTime = System.nanoTime();
+                pe.execute(eventWrapper.getStreamName(),
+                           compoundKeyInfo,
+                           eventWrapper.getEvent());
+                long elapsedTime = System.nanoTime() - startTime;
+
+                processCount++;
+                long[] metrics = peMetrics.get(pe.getId());
+                if (metrics == null) {
+                    metrics = new long[2];
+                    peMetrics.put(pe.getId(), metrics);
+                }
+                metrics[0]++;
+                metrics[1] += elapsedTime;
+
+                String histogramKey = String.valueOf(pe.getId());
+                LatencyHistogram histogram = execTimeHistograms.get(histogramKey);
+                if (histogram == null) {
+                    histogram = new LatencyHistogram();
+                    execTimeHistograms.put(histogramKey, histogram);
+                }
+                histogram.record(elapsedTime);
             } catch (Exception e) {
+                if (monitor != null) {
+                    monitor.increment(pecontainer_ev_err_ct.toString(),
+                                      1,
+                                      S4_CORE_METRICS.toString());
+                    monitor.increment(pecontainer_ev_err_ct.toString(),
+                                      1,
+                                      S4_APP_METRICS.toString(),
+                                      "at",
+                                      pe.getId());
+                }
                 Logger.getLogger("s4")
-                      .error("Exception choosing processing element to run", e);
+                      .error("Exception running processing element", e);
             }
         }
-    }
 
-    private void invokePE(ProcessingElement pe, EventWrapper eventWrapper,
-                          CompoundKeyInfo compoundKeyInfo) {
-        try {
-            long startTime = System.currentTimeMillis();
-            pe.execute(eventWrapper.getStreamName(),
-                       compoundKeyInfo,
-                       eventWrapper.getEvent());
-            long endTime = System.currentTimeMillis();
-            if (monitor != null) {
-                monitor.increment(pecontainer_ev_process_ct.toString(),
-                                  1,
-                                  S4_CORE_METRICS.toString());
-                monitor.increment(pecontainer_ev_process_ct.toString(),
-                                  1,
-                                  S4_APP_METRICS.toString(),
-                                  "at",
-                                  pe.getId());
-                monitor.increment(pecontainer_exec_elapse_time.toString(),
-                                  (int) (endTime - startTime),
-                                  S4_APP_METRICS.toString(),
-                                  "at",
-                                  pe.getId());
+        private void recordQueueWait(String streamName, long waitTime) {
+            LatencyHistogram histogram = queueWaitHistogramsByStream.get(streamName);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                queueWaitHistogramsByStream.put(streamName, histogram);
             }
-        } catch (Exception e) {
-            if (monitor != null) {
-                monitor.increment(pecontainer_ev_err_ct.toString(),
-                                  1,
-                                  S4_CORE_METRICS.toString());
-                monitor.increment(pecontainer_ev_err_ct.toString(),
-                                  1,
-                                  S4_APP_METRICS.toString(),
-                                  "at",
-                                  pe.getId());
-            }
-            Logger.getLogger("s4")
-                  .error("Exception running processing element", e);
+            histogram.record(waitTime);
         }
 
-    }
-
-    private void updateCount(String key) {
-        Integer countObj = countByEventType.get(key);
-        if (countObj == null) {
-            countObj = 0;
+        /**
+         * Publishes the metrics accumulated while processing a batch, so the
+         * monitor is called once per batch rather than once per event.
+         */
+        private void publishMetrics(int eventCount, long elapsedTime) {
+            try {
+                if (monitor != null) {
+                    monitor.increment(pecontainer_ev_dq_ct.toString(),
+                                      eventCount,
+                                      S4_CORE_METRICS.toString());
+                    if (processCount > 0) {
+                        monitor.increment(pecontainer_ev_process_ct.toString(),
+                                          processCount,
+                                          S4_CORE_METRICS.toString());
+                    }
+                    for (Map.Entry<String, long[]> entry : peMetrics.entrySet()) {
+                        long[] metrics = entry.getValue();
+                        if (metrics[0] == 0) {
+                            continue;
+                        }
+                        monitor.increment(pecontainer_ev_process_ct.toString(),
+                                          (int) metrics[0],
+                                          S4_APP_METRICS.toString(),
+                                          "at",
+                                          entry.getKey());
+                        monitor.increment(pecontainer_exec_elapse_time.toString(),
+                                          (int) (metrics[1] / 1000000),
+                                          S4_APP_METRICS.toString(),
+                                          "at",
+                                          entry.getKey());
+                    }
+                    monitor.increment(pecontainer_exec_elapse_time.toString(),
+                                      (int) (elapsedTime / 1000000),
+                                      S4_CORE_METRICS.toString());
+                }
+            } finally {
+                processCount = 0;
+                for (long[] metrics : peMetrics.values()) {
+                    metrics[0] = 0;
+                    metrics[1] = 0;
+                }
+            }
         }
-        countObj++;
-        countByEventType.put(key, countObj);
     }
 
     class Watcher implements Runnable {
+        // cumulative histograms at the previous run, so that each run
+        // publishes the percentiles of the last interval only
+        private LatencyHistogram lastQueueWaitHistogram = new LatencyHistogram();
+        private LatencyHistogram lastContainerTimeHistogram = new LatencyHistogram();
+        private Map<String, LatencyHistogram> lastExecTimeHistograms = new HashMap<String, LatencyHistogram>();
+        private Map<String, LatencyHistogram> lastQueueWaitHistogramsByStream = new HashMap<String, LatencyHistogram>();
+        private Map<String, LatencyHistogram> lastQueueWaitHistogramsByGroup = new HashMap<String, LatencyHistogram>();
+        private Map<String, LatencyHistogram> lastContainerTimeHistogramsByGroup = new HashMap<String, LatencyHistogram>();
+
         public void run() {
             while (!Thread.interrupted()) {
                 try {
@@ -353,15 +1346,22 @@ public class PEContainer implements Runnable, AsynchronousEventProcessor {
                         monitor.set(pecontainer_qsz_w.toString(),
                                     getQueueSize(),
                                     S4_CORE_METRICS.toString());
+                        if (groups.length > 1) {
+                            for (WorkerGroup group : groups) {
+                                monitor.set(pecontainer_qsz_w.toString(),
+                                            group.getQueueSize(),
+                                            S4_CORE_METRICS.toString(),
+                                            "grp",
+                                            group.name);
+                            }
+                        }
                     }
 
+                    publishLatencies();
+
                     if (trackByKey) {
-                        for (String key : countByEventType.keySet()) {
-                            Integer countObj = countByEventType.get(key);
-                            if (countObj != null) {
-                                Logger.getLogger("s4").info("Count by " + key
-                                        + ": " + countObj);
-                            }
+                        for (WorkerGroup group : groups) {
+                            logKeyCounts(group.keyCountTracker);
                         }
                     }
                 } catch (Exception e) {
@@ -376,5 +1376,125 @@ public class PEContainer implements Runnable, AsynchronousEventProcessor {
                 }
             }
         }
+
+        private void logKeyCounts(KeyCountTracker keyCountTracker) {
+            for (Map.Entry<String, Long> entry : keyCountTracker.getCounts()
+                                                                .entrySet()) {
+                Logger.getLogger("s4").info("Count by " + entry.getKey()
+                        + ": " + entry.getValue());
+            }
+            for (Map.Entry<String, List<SpaceSavingSketch.Counter>> entry : keyCountTracker.getTopKeys()
+                                                                                         .entrySet()) {
+                Logger.getLogger("s4").info("Top keys by " + entry.getKey()
+                        + ": " + entry.getValue());
+            }
+        }
+
+        private void publishLatencies() {
+            LatencyHistogram histogram = getQueueWaitHistogram();
+            publishPercentiles(interval(histogram, lastQueueWaitHistogram),
+                               pecontainer_wait_time_p50,
+                               pecontainer_wait_time_p99,
+                               pecontainer_wait_time_p999,
+                               S4_CORE_METRICS.toString());
+            lastQueueWaitHistogram = histogram;
+
+            histogram = getContainerTimeHistogram();
+            publishPercentiles(interval(histogram, lastContainerTimeHistogram),
+                               pecontainer_total_time_p50,
+                               pecontainer_total_time_p99,
+                               pecontainer_total_time_p999,
+                               S4_CORE_METRICS.toString());
+            lastContainerTimeHistogram = histogram;
+
+            Map<String, LatencyHistogram> histograms = getExecTimeHistograms();
+            for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+                LatencyHistogram last = lastExecTimeHistograms.get(entry.getKey());
+                publishPercentiles(interval(entry.getValue(), last),
+                                   pecontainer_exec_time_p50,
+                                   pecontainer_exec_time_p99,
+                                   pecontainer_exec_time_p999,
+                                   S4_APP_METRICS.toString(),
+                                   "at",
+                                   entry.getKey());
+            }
+            lastExecTimeHistograms = histograms;
+
+            histograms = getQueueWaitHistogramsByStream();
+            for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+                LatencyHistogram last = lastQueueWaitHistogramsByStream.get(entry.getKey());
+                publishPercentiles(interval(entry.getValue(), last),
+                                   pecontainer_wait_time_p50,
+                                   pecontainer_wait_time_p99,
+                                   pecontainer_wait_time_p999,
+                                   S4_CORE_METRICS.toString(),
+                                   "st",
+                                   entry.getKey());
+            }
+            lastQueueWaitHistogramsByStream = histograms;
+
+            if (groups.length > 1) {
+                histograms = getQueueWaitHistogramsByGroup();
+                for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+                    LatencyHistogram last = lastQueueWaitHistogramsByGroup.get(entry.getKey());
+                    publishPercentiles(interval(entry.getValue(), last),
+                                       pecontainer_wait_time_p50,
+                                       pecontainer_wait_time_p99,
+                                       pecontainer_wait_time_p999,
+                                       S4_CORE_METRICS.toString(),
+                                       "grp",
+                                       entry.getKey());
+                }
+                lastQueueWaitHistogramsByGroup = histograms;
+
+                histograms = getContainerTimeHistogramsByGroup();
+                for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+                    LatencyHistogram last = lastContainerTimeHistogramsByGroup.get(entry.getKey());
+                    publishPercentiles(interval(entry.getValue(), last),
+                                       pecontainer_total_time_p50,
+                                       pecontainer_total_time_p99,
+                                       pecontainer_total_time_p999,
+                                       S4_CORE_METRICS.toString(),
+                                       "grp",
+                                       entry.getKey());
+                }
+                lastContainerTimeHistogramsByGroup = histograms;
+            }
+        }
+
+        private LatencyHistogram interval(LatencyHistogram current,
+                                          LatencyHistogram last) {
+            LatencyHistogram interval = current.copy();
+            if (last != null) {
+                interval.subtract(last);
+            }
+            return interval;
+        }
+
+        /**
+         * Publishes percentiles of a histogram of nanoseconds in
+         * microseconds.
+         */
+        private void publishPercentiles(LatencyHistogram histogram,
+                                        MetricsName p50, MetricsName p99,
+                                        MetricsName p999,
+                                        String metricEventName,
+                                        String... aggKeys) {
+            if (monitor == null || histogram.getCount() == 0) {
+                return;
+            }
+            monitor.set(p50.toString(),
+                        (int) (histogram.getValueAtPercentile(50) / 1000),
+                        metricEventName,
+                        aggKeys);
+            monitor.set(p99.toString(),
+                        (int) (histogram.getValueAtPercentile(99) / 1000),
+                        metricEventName,
+                        aggKeys);
+            monitor.set(p999.toString(),
+                        (int) (histogram.getValueAtPercentile(99.9) / 1000),
+                        metricEventName,
+                        aggKeys);
+        }
     }
 }
@@ -17,10 +17,24 @@ package io.s4.processor;
 
 import io.s4.persist.ConMapPersister;
 import io.s4.persist.Persister;
+import io.s4.serialize.SerializerDeserializer;
+import io.s4.util.EvictionPolicy;
+import io.s4.util.LruEvictionPolicy;
+import io.s4.util.SegmentStore;
+import io.s4.util.TinyLfuEvictionPolicy;
 import io.s4.util.clock.Clock;
+import io.s4.util.clock.ClockUtil;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 
@@ -28,7 +42,14 @@ public class PrototypeWrapper {
 
     private static Logger logger = Logger.getLogger(PrototypeWrapper.class);
     private ProcessingElement prototype;
+    private Clock s4Clock;
     Persister lookupTable;
+    // set only when the number of PEs is bounded: one partition per thread
+    // owning keys, replaced rather than modified
+    private volatile Partition[] partitions;
+    private SerializerDeserializer spillSerDeser;
+    private File spillDirectory;
+    private Field[] stateFields;
 
     public String getId() {
         return prototype.getId();
@@ -36,6 +57,7 @@ public class PrototypeWrapper {
 
     public PrototypeWrapper(ProcessingElement prototype, Clock s4Clock) {
         this.prototype = prototype;
+        this.s4Clock = s4Clock;
         lookupTable = new ConMapPersister(s4Clock);
         System.out.println("Using ConMapPersister ..");
         // this bit of reflection is not a performance issue because it is only
@@ -54,6 +76,95 @@ public class PrototypeWrapper {
             Logger.getLogger("s4")
                   .error("Exception invoking setLookupTable on prototype", e);
         }
+
+        if (prototype instanceof AbstractPE
+                && ((AbstractPE) prototype).getMaxInstances() > 0) {
+            initBounds((AbstractPE) prototype);
+        }
+    }
+
+    private void initBounds(AbstractPE prototype) {
+        spillSerDeser = prototype.getSpillSerDeser();
+        if (spillSerDeser != null) {
+            File parent = new File(prototype.getSpillDirectory());
+            try {
+                // a directory of its own, so that the segment files of other
+                // processes and prototypes are never truncated
+                spillDirectory = File.createTempFile("pe-spill-" + getId()
+                        + "-", "", parent);
+                if (!spillDirectory.delete() || !spillDirectory.mkdir()) {
+                    throw new IOException("Unable to create directory "
+                            + spillDirectory);
+                }
+                spillDirectory.deleteOnExit();
+            } catch (IOException ioe) {
+                throw new RuntimeException("Unable to create spill store in "
+                        + parent, ioe);
+            }
+        }
+        partitions = createPartitions(1);
+    }
+
+    private Partition[] createPartitions(int count) {
+        AbstractPE boundedPrototype = (AbstractPE) prototype;
+        int maxInstances = share(boundedPrototype.getMaxInstances(), count);
+        Partition[] newPartitions = new Partition[count];
+        for (int i = 0; i < count; i++) {
+            Partition partition = new Partition();
+            if (boundedPrototype.getEvictionType() == AbstractPE.EvictionType.TINYLFU) {
+                partition.evictionPolicy = new TinyLfuEvictionPolicy(maxInstances);
+            } else {
+                partition.evictionPolicy = new LruEvictionPolicy(maxInstances);
+            }
+            if (spillDirectory != null) {
+                try {
+                    partition.spillStore = new SegmentStore(spillDirectory,
+                                                            "segment-" + i
+                                                                    + "-",
+                                                            boundedPrototype.getSpillSegmentSize());
+                } catch (IOException ioe) {
+                    throw new RuntimeException("Unable to create spill store in "
+                                                       + spillDirectory,
+                                               ioe);
+                }
+                partition.spillTimes = new LinkedHashMap<String, Long>();
+                partition.maxSpilledInstances = share(boundedPrototype.getMaxSpilledInstances(),
+                                                      count);
+            }
+            newPartitions[i] = partition;
+        }
+        return newPartitions;
+    }
+
+    // each partition's share of a bound, rounded up
+    private static int share(int total, int count) {
+        return total / count + ((total % count == 0) ? 0 : 1);
+    }
+
+    /**
+     * Sets the number of threads looking up PEs, when each key is only ever
+     * looked up by the same thread, as chosen by
+     * {@link PEContainer#getWorkerIndex(String, int)}. If the number of PEs
+     * is bounded, each thread then gets an even share of the bounds, and
+     * only evicts PEs of its own keys. Must be set before PEs are looked up.
+     */
+    void setOwnerCount(int ownerCount) {
+        Partition[] previous = partitions;
+        if (previous == null || previous.length == ownerCount) {
+            return;
+        }
+        partitions = createPartitions(ownerCount);
+        for (Partition partition : previous) {
+            if (partition.spillStore != null) {
+                synchronized (partition.spillStore) {
+                    try {
+                        partition.spillStore.close();
+                    } catch (IOException ioe) {
+                        logger.error("exception when closing spill store", ioe);
+                    }
+                }
+            }
+        }
     }
 
     /**
@@ -61,27 +172,79 @@ public class PrototypeWrapper {
      * is created by cloning the prototype and this is returned. As a
      * side-effect, the last update time for the PE in the lookup table is
      * modified.
+     * <p>
+     * If the number of PEs is bounded (see
+     * {@link AbstractPE#setMaxInstances}), adding a PE may evict another one,
+     * and a PE that was spilled is restored rather than created anew. Only
+     * the policy bookkeeping is done under a lock, and the evicted PE is one
+     * owned by the calling thread (see {@link #setOwnerCount}), so that it
+     * is not in use while it is spilled.
      * 
      * @param keyValue
      *            key value
      * @return PE corresponding to keyValue.
      */
     public ProcessingElement getPE(String keyValue) {
+        if (partitions != null) {
+            return getBoundedPE(keyValue);
+        }
+
         ProcessingElement pe = null;
         try {
             pe = (ProcessingElement) lookupTable.get(keyValue);
             if (pe == null) {
-                pe = (ProcessingElement) prototype.clone();
-                //invoke the initialization method if it has been specified
-                if (pe.getInitMethod() != null) {
-                   Method initMethod = pe.getClass().getMethod(pe.getInitMethod(), new Class[0]);
-                   initMethod.invoke(pe, (new Object[0]));
+                pe = createPE();
+                lookupTable.set(keyValue, pe, prototype.getTtl());
+            } else if (!lookupTable.touch(keyValue)) {
+                // the entry expired after the lookup; put the PE back
+                lookupTable.set(keyValue, pe, prototype.getTtl());
+            }
+
+        } catch (Exception e) {
+            logger.error("exception when looking up pe for key:" + keyValue, e);
+        }
+
+        return pe;
+    }
+
+    private ProcessingElement createPE() throws Exception {
+        ProcessingElement pe = (ProcessingElement) prototype.clone();
+        //invoke the initialization method if it has been specified
+        if (pe.getInitMethod() != null) {
+           Method initMethod = pe.getClass().getMethod(pe.getInitMethod(), new Class[0]);
+           initMethod.invoke(pe, (new Object[0]));
+        }
+        return pe;
+    }
+
+    private ProcessingElement getBoundedPE(String keyValue) {
+        Partition[] currentPartitions = partitions;
+        Partition partition = currentPartitions[PEContainer.getWorkerIndex(keyValue,
+                                                                           currentPartitions.length)];
+        ProcessingElement pe = null;
+        try {
+            pe = (ProcessingElement) lookupTable.get(keyValue);
+            if (pe != null && lookupTable.touch(keyValue)) {
+                synchronized (partition.evictionPolicy) {
+                    partition.evictionPolicy.recordAccess(keyValue);
                 }
+                return pe;
+            }
 
+            if (pe == null) {
+                pe = restore(partition, keyValue);
+            }
+            if (pe == null) {
+                pe = createPE();
             }
-            // update the last update time on the entry
             lookupTable.set(keyValue, pe, prototype.getTtl());
-
+            String victim;
+            synchronized (partition.evictionPolicy) {
+                victim = partition.evictionPolicy.add(keyValue);
+            }
+            if (victim != null) {
+                evict(partition, victim);
+            }
         } catch (Exception e) {
             logger.error("exception when looking up pe for key:" + keyValue, e);
         }
@@ -89,6 +252,104 @@ public class PrototypeWrapper {
         return pe;
     }
 
+    private void evict(Partition partition, String keyValue)
+            throws InterruptedException {
+        Object pe = lookupTable.get(keyValue);
+        lookupTable.remove(keyValue);
+        if (pe == null || partition.spillStore == null) {
+            // expired already, or not to be spilled
+            return;
+        }
+
+        try {
+            byte[] record = spillSerDeser.serialize(pe);
+            synchronized (partition.spillStore) {
+                discardExpiredSpills(partition);
+                partition.spillStore.put(keyValue, record);
+                partition.spillTimes.remove(keyValue);
+                partition.spillTimes.put(keyValue,
+                                         ClockUtil.getCoarseTime(s4Clock));
+                discardExcessSpills(partition);
+            }
+        } catch (Exception e) {
+            logger.error("exception when spilling pe for key:" + keyValue, e);
+        }
+    }
+
+    private ProcessingElement restore(Partition partition, String keyValue)
+            throws Exception {
+        if (partition.spillStore == null) {
+            return null;
+        }
+
+        byte[] record;
+        synchronized (partition.spillStore) {
+            discardExpiredSpills(partition);
+            record = partition.spillStore.get(keyValue);
+            if (record == null) {
+                return null;
+            }
+            partition.spillStore.remove(keyValue);
+            partition.spillTimes.remove(keyValue);
+        }
+
+        // the state comes from the spilled PE, the references shared with the
+        // prototype (transient fields) from a fresh clone
+        Object spilled = spillSerDeser.deserialize(record);
+        ProcessingElement pe = (ProcessingElement) prototype.clone();
+        for (Field field : getStateFields()) {
+            field.set(pe, field.get(spilled));
+        }
+        return pe;
+    }
+
+    // called with the partition's spill store lock held
+    private void discardExpiredSpills(Partition partition) throws IOException {
+        int ttl = prototype.getTtl();
+        if (ttl <= 0) {
+            return;
+        }
+        long expiryTime = ClockUtil.getCoarseTime(s4Clock) - (1000L * ttl);
+        Iterator<Map.Entry<String, Long>> it = partition.spillTimes.entrySet()
+                                                                   .iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getValue() > expiryTime) {
+                break;
+            }
+            partition.spillStore.remove(entry.getKey());
+            it.remove();
+        }
+    }
+
+    // called with the partition's spill store lock held
+    private void discardExcessSpills(Partition partition) throws IOException {
+        Iterator<String> it = partition.spillTimes.keySet().iterator();
+        while (partition.spillTimes.size() > partition.maxSpilledInstances) {
+            String keyValue = it.next();
+            partition.spillStore.remove(keyValue);
+            it.remove();
+        }
+    }
+
+    private Field[] getStateFields() {
+        if (stateFields == null) {
+            List<Field> fields = new ArrayList<Field>();
+            for (Class<?> c = prototype.getClass(); c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (!Modifier.isStatic(modifiers)
+                            && !Modifier.isTransient(modifiers)) {
+                        field.setAccessible(true);
+                        fields.add(field);
+                    }
+                }
+            }
+            stateFields = fields.toArray(new Field[fields.size()]);
+        }
+        return stateFields;
+    }
+
     /**
      * Find PE corresponding to keyValue. If no such PE exists, then null is
      * returned. Note: the last update time is not modified in the lookup table.
@@ -115,7 +376,40 @@ public class PrototypeWrapper {
         return lookupTable.keySet().size();
     }
 
+    /**
+     * Returns the number of PEs spilled to disk by eviction.
+     */
+    public int getSpilledPECount() {
+        Partition[] currentPartitions = partitions;
+        if (currentPartitions == null) {
+            return 0;
+        }
+        int count = 0;
+        for (Partition partition : currentPartitions) {
+            if (partition.spillStore != null) {
+                synchronized (partition.spillStore) {
+                    count += partition.spillStore.size();
+                }
+            }
+        }
+        return count;
+    }
+
     public List<EventAdvice> advise() {
         return prototype.advise();
     }
+
+    /**
+     * The bounded PEs of the keys of one owner. The eviction policy is
+     * guarded by its own lock, and the spill store and spill times by the
+     * spill store's.
+     */
+    private static class Partition {
+        EvictionPolicy evictionPolicy;
+        SegmentStore spillStore;
+        // spill times, in spill order, to discard spilled PEs past their ttl
+        // or beyond the maximum number of spilled PEs
+        LinkedHashMap<String, Long> spillTimes;
+        int maxSpilledInstances;
+    }
 }
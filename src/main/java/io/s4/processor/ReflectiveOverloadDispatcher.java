@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.processor;
+
+import io.s4.processor.OverloadDispatcherGenerator.Hierarchy;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dispatches events to the most specific <code>processEvent</code> overload
+ * without generating bytecode.
+ * <p>
+ * The generated dispatchers test the event against each overload in turn, so
+ * their cost grows with the number of overloads. This dispatcher resolves the
+ * overload once per concrete event class, with the same precedence, and
+ * caches it; after that, dispatching an event is a map lookup and a reflective
+ * call, which the JVM compiles into a direct call after a few invocations.
+ * 
+ * @see OverloadDispatcherGenerator#getDispatcher(Class)
+ */
+public class ReflectiveOverloadDispatcher implements OverloadDispatcher,
+        OverloadDispatcherSlot {
+    // cached for event classes no overload accepts
+    private static final Method[] NO_METHOD = new Method[0];
+
+    private List<Hierarchy> hierarchies = new ArrayList<Hierarchy>();
+    private Map<Class<?>, Method> methodsByHierarchyTop = new HashMap<Class<?>, Method>();
+    private Map<Class<?>, Method[]> methodsByEventClass = new ConcurrentHashMap<Class<?>, Method[]>();
+
+    public ReflectiveOverloadDispatcher(Class<?> targetClass) {
+        for (Method method : targetClass.getMethods()) {
+            if (method.getName().equals("processEvent")
+                    && method.getReturnType().equals(Void.TYPE)) {
+                Class<?> eventClass = method.getParameterTypes()[0];
+                method.setAccessible(true);
+                hierarchies.add(new Hierarchy(eventClass));
+                methodsByHierarchyTop.put(eventClass, method);
+            }
+        }
+        Collections.sort(hierarchies);
+    }
+
+    public void dispatch(Object pe, Object event) {
+        if (event == null) {
+            return;
+        }
+        Method[] method = getMethod(event.getClass());
+        if (method.length > 0) {
+            invoke(method[0], pe, event);
+        }
+    }
+
+    public void dispatch(Object slot, Object event, long slotTime,
+                         AbstractWindowingPE pe) {
+        if (event == null) {
+            return;
+        }
+        Method[] method = getMethod(event.getClass());
+        if (method.length > 0) {
+            invoke(method[0], slot, event, slotTime, pe);
+        }
+    }
+
+    private Method[] getMethod(Class<?> eventClass) {
+        Method[] method = methodsByEventClass.get(eventClass);
+        if (method == null) {
+            method = NO_METHOD;
+            for (Hierarchy hierarchy : hierarchies) {
+                if (hierarchy.getTop().isAssignableFrom(eventClass)) {
+                    method = new Method[] { methodsByHierarchyTop.get(hierarchy.getTop()) };
+                    break;
+                }
+            }
+            methodsByEventClass.put(eventClass, method);
+        }
+        return method;
+    }
+
+    private void invoke(Method method, Object target, Object... args) {
+        try {
+            method.invoke(target, args);
+        } catch (InvocationTargetException ite) {
+            Throwable cause = ite.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (IllegalAccessException iae) {
+            throw new RuntimeException(iae);
+        }
+    }
+}
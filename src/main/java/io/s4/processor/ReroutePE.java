@@ -27,8 +27,8 @@ import org.apache.log4j.Logger;
 
 public class ReroutePE extends AbstractPE {
     private static Logger logger = Logger.getLogger(ReroutePE.class);
-    private EventDispatcher dispatcher;
-    private Transformer[] transformers = new Transformer[0];
+    private transient EventDispatcher dispatcher;
+    private transient Transformer[] transformers = new Transformer[0];
     // private List<EventAdvice> keys;
     private String id = "ReroutePE";
     private String outputStreamName;
@@ -65,7 +65,7 @@ public class ReroutePE extends AbstractPE {
         this.outputStreamName = outputStreamName;
     }
 
-    private Map<String, Cloner> clonerMap = new HashMap<String, Cloner>();
+    private transient Map<String, Cloner> clonerMap = new HashMap<String, Cloner>();
 
     public void processEvent(Object event) {
         Object newEvent = event;
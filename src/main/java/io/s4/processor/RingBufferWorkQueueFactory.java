@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.processor;
+
+import io.s4.collector.EventWrapper;
+import io.s4.util.RingBufferQueue;
+import io.s4.util.RingBufferQueue.WaitStrategy;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Creates a lock-free {@link RingBufferQueue} for each work queue.
+ * <p>
+ * A ring buffer may have any number of producers but only one consumer, which
+ * holds for the PEContainer workers: each worker is the only thread taking
+ * events from its queue. The capacity is rounded up to a power of two.
+ * <p>
+ * The wait strategy decides what an idle worker does. <code>BUSY_SPIN</code>
+ * and <code>YIELD</code> give the lowest hand-off latency but keep a core
+ * busy per worker; <code>PARK</code>, the default, does not.
+ */
+public class RingBufferWorkQueueFactory implements WorkQueueFactory {
+    private WaitStrategy waitStrategy = WaitStrategy.PARK;
+
+    public void setWaitStrategy(String waitStrategy) {
+        this.waitStrategy = WaitStrategy.valueOf(waitStrategy.toUpperCase());
+    }
+
+    @Override
+    public BlockingQueue<EventWrapper> createQueue(int capacity) {
+        return new RingBufferQueue<EventWrapper>(capacity, waitStrategy);
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Precompiled index from stream name and compound key to the prototypes that
+ * advised them.
+ * <p>
+ * The table is built once from the {@link EventAdvice} lists of the
+ * prototypes and is immutable afterwards, so it can be shared by threads
+ * without locking. Advice on the stream "*" is merged into the route for every
+ * stream, and is also used for streams no prototype named explicitly.
+ */
+public class RoutingTable {
+    private static final PrototypeWrapper[] NO_TARGETS = new PrototypeWrapper[0];
+
+    private Map<String, StreamRoute> routesByStream = new HashMap<String, StreamRoute>();
+    private StreamRoute wildcardStreamRoute;
+
+    public RoutingTable(List<PrototypeWrapper> prototypeWrappers) {
+        Map<String, StreamRoute> builders = new LinkedHashMap<String, StreamRoute>();
+        StreamRoute wildcardBuilder = new StreamRoute();
+
+        // first pass: collect every stream name that is explicitly advised
+        for (PrototypeWrapper pw : prototypeWrappers) {
+            for (EventAdvice eventAdvice : pw.advise()) {
+                String eventName = eventAdvice.getEventName();
+                if (!eventName.equals("*") && !builders.containsKey(eventName)) {
+                    builders.put(eventName.intern(), new StreamRoute());
+                }
+            }
+        }
+
+        // second pass: add targets in prototype order. Each route remembers
+        // this order (see StreamRoute.getOrderedTargets) so PEs are invoked
+        // in the order in which their prototypes were added to the container,
+        // regardless of which compound key they advised
+        for (PrototypeWrapper pw : prototypeWrappers) {
+            for (EventAdvice eventAdvice : pw.advise()) {
+                String eventName = eventAdvice.getEventName();
+                if (eventName.equals("*")) {
+                    wildcardBuilder.add(eventAdvice.getKey(), pw);
+                    for (StreamRoute builder : builders.values()) {
+                        builder.add(eventAdvice.getKey(), pw);
+                    }
+                } else {
+                    builders.get(eventName).add(eventAdvice.getKey(), pw);
+                }
+            }
+        }
+
+        for (Map.Entry<String, StreamRoute> entry : builders.entrySet()) {
+            entry.getValue().compile();
+            routesByStream.put(entry.getKey(), entry.getValue());
+        }
+        wildcardBuilder.compile();
+        wildcardStreamRoute = wildcardBuilder;
+    }
+
+    /**
+     * Returns the route for the specified stream. Never returns null.
+     */
+    public StreamRoute getRoute(String streamName) {
+        StreamRoute route = routesByStream.get(streamName);
+        if (route == null) {
+            return wildcardStreamRoute;
+        }
+        return route;
+    }
+
+    /**
+     * Returns the route used for streams no prototype named explicitly.
+     */
+    public StreamRoute getWildcardStreamRoute() {
+        return wildcardStreamRoute;
+    }
+
+    /**
+     * Returns the names of the streams explicitly advised by a prototype.
+     */
+    public Set<String> getStreamNames() {
+        return Collections.unmodifiableSet(routesByStream.keySet());
+    }
+
+    public String toString() {
+        return "routes:" + routesByStream + " wildcard:" + wildcardStreamRoute;
+    }
+
+    /**
+     * The prototypes interested in a single stream, indexed by compound key.
+     */
+    public static class StreamRoute {
+        private List<Target> targetList = new ArrayList<Target>();
+        private Target[] orderedTargets;
+        private Map<String, List<PrototypeWrapper>> keyLists = new LinkedHashMap<String, List<PrototypeWrapper>>();
+        private Map<String, PrototypeWrapper[]> targetsByKey = new HashMap<String, PrototypeWrapper[]>();
+        private PrototypeWrapper[] wildcardKeyTargets = NO_TARGETS;
+
+        private void add(String key, PrototypeWrapper pw) {
+            List<PrototypeWrapper> keyList = keyLists.get(key);
+            if (keyList == null) {
+                keyList = new ArrayList<PrototypeWrapper>();
+                keyLists.put(key.intern(), keyList);
+            }
+            keyList.add(pw);
+            targetList.add(new Target(key.intern(), pw));
+        }
+
+        private void compile() {
+            for (Map.Entry<String, List<PrototypeWrapper>> entry : keyLists.entrySet()) {
+                PrototypeWrapper[] targets = entry.getValue()
+                                                  .toArray(NO_TARGETS);
+                if (entry.getKey().equals("*")) {
+                    wildcardKeyTargets = targets;
+                } else {
+                    targetsByKey.put(entry.getKey(), targets);
+                }
+            }
+            keyLists = null;
+            orderedTargets = targetList.toArray(new Target[targetList.size()]);
+            targetList = null;
+        }
+
+        /**
+         * Returns every (compound key, prototype) pair advised on this stream,
+         * in the order in which the prototypes were added to the container
+         * and, within a prototype, in the order of its advice list. Never
+         * returns null.
+         */
+        public Target[] getOrderedTargets() {
+            return orderedTargets;
+        }
+
+        /**
+         * Returns the prototypes that advised the specified compound key on
+         * this stream. Never returns null.
+         */
+        public PrototypeWrapper[] getTargets(String compoundKey) {
+            PrototypeWrapper[] targets = targetsByKey.get(compoundKey);
+            if (targets == null) {
+                return NO_TARGETS;
+            }
+            return targets;
+        }
+
+        /**
+         * Returns the prototypes that advised the key "*" on this stream, and
+         * so are invoked once per event with their "*" PE instance.
+         */
+        public PrototypeWrapper[] getWildcardKeyTargets() {
+            return wildcardKeyTargets;
+        }
+
+        public boolean isEmpty() {
+            return wildcardKeyTargets.length == 0 && targetsByKey.isEmpty();
+        }
+
+        public String toString() {
+            return "{" + targetsByKey.keySet() + " *:"
+                    + wildcardKeyTargets.length + "}";
+        }
+    }
+
+    /**
+     * A single piece of advice: a prototype interested in a compound key, or
+     * in "*" for every event on the stream.
+     */
+    public static class Target {
+        private String key;
+        private PrototypeWrapper prototypeWrapper;
+
+        private Target(String key, PrototypeWrapper prototypeWrapper) {
+            this.key = key;
+            this.prototypeWrapper = prototypeWrapper;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public boolean isWildcardKey() {
+            return key.equals("*");
+        }
+
+        public PrototypeWrapper getPrototypeWrapper() {
+            return prototypeWrapper;
+        }
+    }
+}
@@ -21,8 +21,8 @@ import java.util.List;
 
 public class SimpleCountingPE extends AbstractPE {
     private boolean clearOnOutput;
-    private OutputFormatter outputFormatter;
-    private Persister persister;
+    private transient OutputFormatter outputFormatter;
+    private transient Persister persister;
     private int persistTime;
     private String keyPrefix = "s4:counter";
     private boolean dirty = false;
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.processor;
+
+import io.s4.collector.EventWrapper;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Creates the queues that hold events waiting to be processed by an
+ * {@link AsynchronousEventProcessor}.
+ */
+public interface WorkQueueFactory {
+
+    /**
+     * Creates an empty queue.
+     * 
+     * @param capacity
+     *            the maximum number of events the queue should hold
+     */
+    BlockingQueue<EventWrapper> createQueue(int capacity);
+
+}
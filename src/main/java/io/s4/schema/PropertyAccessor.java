@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.schema;
+
+/**
+ * Reads and writes one property of objects of a given class without
+ * reflection. Obtain instances with {@link Schema.Property#getAccessor()}.
+ * <p>
+ * Accessors are generated by {@link PropertyAccessorGenerator}: the
+ * <code>get</code> and <code>set</code> methods call the getter and setter
+ * directly, and for properties of a primitive numeric type
+ * <code>getLong</code> and <code>getInt</code> read the value without boxing
+ * it. Exceptions thrown by getters and setters are not wrapped.
+ */
+public abstract class PropertyAccessor {
+    /**
+     * Returns the value of the property, boxed if it is primitive.
+     */
+    public Object get(Object target) {
+        throw new UnsupportedOperationException("Property has no getter");
+    }
+
+    /**
+     * Sets the property. If the property is primitive, the value must be the
+     * corresponding wrapper type, or any {@link Number} for numeric types.
+     */
+    public void set(Object target, Object value) {
+        throw new UnsupportedOperationException("Property has no setter");
+    }
+
+    /**
+     * Returns the value of a numeric property as a long.
+     * 
+     * @throws NullPointerException
+     *             if the value is null
+     */
+    public long getLong(Object target) {
+        return ((Number) get(target)).longValue();
+    }
+
+    /**
+     * Returns the value of a numeric property as an int.
+     * 
+     * @throws NullPointerException
+     *             if the value is null
+     */
+    public int getInt(Object target) {
+        return ((Number) get(target)).intValue();
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.schema;
+
+import io.s4.schema.Schema.Property;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.BasicType;
+import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.InstructionFactory;
+import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.ObjectType;
+import org.apache.bcel.generic.ReferenceType;
+import org.apache.bcel.generic.Type;
+import org.apache.log4j.Logger;
+
+/**
+ * Generates {@link PropertyAccessor} classes.
+ * <p>
+ * One accessor is generated per class and property, named
+ * <code><i>class</i>$$Accessor$<i>property</i></code>, and defined in a class
+ * loader shared by all the accessors of classes from the same loader. That
+ * loader also caches the accessors, so nothing here keeps a class from being
+ * unloaded once the accessors of its loader are no longer used. Properties of
+ * classes that generated code cannot access, such as non-public classes, get
+ * an accessor that uses reflection instead.
+ */
+public class PropertyAccessorGenerator {
+    private static Logger logger = Logger.getLogger("s4");
+    private static final String ACCESSOR_CLASS_NAME = PropertyAccessor.class.getName();
+
+    // each accessor class loader has its key as parent, so values are held
+    // weakly too; otherwise no key would ever be cleared. The accessors keep
+    // their loader alive while they are in use, and are cached by it, so a
+    // loader is only collected, and later replaced, once none is in use
+    private static Map<ClassLoader, WeakReference<AccessorClassLoader>> classLoaders = new WeakHashMap<ClassLoader, WeakReference<AccessorClassLoader>>();
+    private static AccessorClassLoader bootstrapClassLoader;
+
+    /**
+     * Returns the accessor of a property of a class, generating it the first
+     * time it is requested while the accessors of the class's loader are in
+     * use.
+     */
+    public static PropertyAccessor getAccessor(Class<?> type, Property property) {
+        Method getterMethod = property.getGetterMethod();
+        Method setterMethod = property.getSetterMethod();
+        if (!isAccessible(type)
+                || (getterMethod != null && !isAccessible(getterMethod.getReturnType()))
+                || (setterMethod != null && !isAccessible(setterMethod.getParameterTypes()[0]))) {
+            return new ReflectivePropertyAccessor(getterMethod, setterMethod);
+        }
+
+        String className = type.getName() + "$$Accessor$" + property.getName();
+        AccessorClassLoader classLoader = getClassLoader(type.getClassLoader());
+        synchronized (classLoader) {
+            PropertyAccessor accessor = classLoader.accessors.get(className);
+            if (accessor == null) {
+                try {
+                    byte[] bytes = generate(className,
+                                            type,
+                                            getterMethod,
+                                            setterMethod);
+                    Class<?> accessorClass = classLoader.defineClass(className,
+                                                                     bytes);
+                    accessor = (PropertyAccessor) accessorClass.newInstance();
+                } catch (Throwable t) {
+                    logger.warn("Unable to generate accessor for "
+                            + type.getName() + "." + property.getName()
+                            + ", using reflection", t);
+                    accessor = new ReflectivePropertyAccessor(getterMethod,
+                                                              setterMethod);
+                }
+                classLoader.accessors.put(className, accessor);
+            }
+            return accessor;
+        }
+    }
+
+    // generated classes live in another class loader, so they can only use
+    // public classes
+    private static boolean isAccessible(Class<?> clazz) {
+        while (clazz.isArray()) {
+            clazz = clazz.getComponentType();
+        }
+        if (clazz.isPrimitive()) {
+            return true;
+        }
+        for (Class<?> c = clazz; c != null; c = c.getDeclaringClass()) {
+            if (!Modifier.isPublic(c.getModifiers())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static AccessorClassLoader getClassLoader(ClassLoader parent) {
+        synchronized (classLoaders) {
+            if (parent == null) {
+                if (bootstrapClassLoader == null) {
+                    bootstrapClassLoader = new AccessorClassLoader(null);
+                }
+                return bootstrapClassLoader;
+            }
+            WeakReference<AccessorClassLoader> reference = classLoaders.get(parent);
+            AccessorClassLoader classLoader = (reference == null) ? null
+                    : reference.get();
+            if (classLoader == null) {
+                classLoader = new AccessorClassLoader(parent);
+                classLoaders.put(parent,
+                                 new WeakReference<AccessorClassLoader>(classLoader));
+            }
+            return classLoader;
+        }
+    }
+
+    private static byte[] generate(String className, Class<?> type,
+                                   Method getterMethod, Method setterMethod) {
+        ClassGen cg = new ClassGen(className,
+                                   ACCESSOR_CLASS_NAME,
+                                   "<generated>",
+                                   Constants.ACC_PUBLIC | Constants.ACC_SUPER,
+                                   new String[] {});
+        cg.addEmptyConstructor(Constants.ACC_PUBLIC);
+        ConstantPoolGen cp = cg.getConstantPool();
+        InstructionFactory instFactory = new InstructionFactory(cg, cp);
+        ObjectType targetType = new ObjectType(type.getName());
+        short invokeKind = type.isInterface() ? Constants.INVOKEINTERFACE
+                : Constants.INVOKEVIRTUAL;
+
+        if (getterMethod != null) {
+            Type valueType = Type.getType(getterMethod.getReturnType());
+
+            // Object get(Object target)
+            InstructionList il = new InstructionList();
+            MethodGen method = new MethodGen(Constants.ACC_PUBLIC,
+                                             Type.OBJECT,
+                                             new Type[] { Type.OBJECT },
+                                             new String[] { "target" },
+                                             "get",
+                                             className,
+                                             il,
+                                             cp);
+            appendGet(il, instFactory, targetType, type, getterMethod, invokeKind);
+            if (valueType instanceof BasicType) {
+                String wrapperName = getWrapperClass(getterMethod.getReturnType()).getName();
+                il.append(instFactory.createInvoke(wrapperName,
+                                                   "valueOf",
+                                                   new ObjectType(wrapperName),
+                                                   new Type[] { valueType },
+                                                   Constants.INVOKESTATIC));
+            }
+            il.append(InstructionFactory.createReturn(Type.OBJECT));
+            addMethod(cg, method, il);
+
+            // long getLong(Object target) and int getInt(Object target)
+            if (isNumeric(getterMethod.getReturnType())) {
+                Type[] resultTypes = { Type.LONG, Type.INT };
+                String[] names = { "getLong", "getInt" };
+                for (int i = 0; i < resultTypes.length; i++) {
+                    il = new InstructionList();
+                    method = new MethodGen(Constants.ACC_PUBLIC,
+                                           resultTypes[i],
+                                           new Type[] { Type.OBJECT },
+                                           new String[] { "target" },
+                                           names[i],
+                                           className,
+                                           il,
+                                           cp);
+                    appendGet(il,
+                              instFactory,
+                              targetType,
+                              type,
+                              getterMethod,
+                              invokeKind);
+                    appendConversion(il, instFactory, valueType, resultTypes[i]);
+                    il.append(InstructionFactory.createReturn(resultTypes[i]));
+                    addMethod(cg, method, il);
+                }
+            }
+        }
+
+        if (setterMethod != null) {
+            Class<?> parameterClass = setterMethod.getParameterTypes()[0];
+            Type parameterType = Type.getType(parameterClass);
+
+            // void set(Object target, Object value)
+            InstructionList il = new InstructionList();
+            MethodGen method = new MethodGen(Constants.ACC_PUBLIC,
+                                             Type.VOID,
+                                             new Type[] { Type.OBJECT,
+                                                     Type.OBJECT },
+                                             new String[] { "target", "value" },
+                                             "set",
+                                             className,
+                                             il,
+                                             cp);
+            il.append(InstructionFactory.createLoad(Type.OBJECT, 1));
+            il.append(instFactory.createCheckCast(targetType));
+            il.append(InstructionFactory.createLoad(Type.OBJECT, 2));
+            if (parameterClass.isPrimitive()) {
+                Class<?> unboxClass = isNumeric(parameterClass) ? Number.class
+                        : getWrapperClass(parameterClass);
+                il.append(instFactory.createCheckCast(new ObjectType(unboxClass.getName())));
+                il.append(instFactory.createInvoke(unboxClass.getName(),
+                                                   parameterClass.getName()
+                                                           + "Value",
+                                                   parameterType,
+                                                   Type.NO_ARGS,
+                                                   Constants.INVOKEVIRTUAL));
+            } else if (!parameterClass.equals(Object.class)) {
+                il.append(instFactory.createCheckCast((ReferenceType) parameterType));
+            }
+            il.append(instFactory.createInvoke(type.getName(),
+                                               setterMethod.getName(),
+                                               Type.VOID,
+                                               new Type[] { parameterType },
+                                               invokeKind));
+            il.append(InstructionFactory.createReturn(Type.VOID));
+            addMethod(cg, method, il);
+        }
+
+        return cg.getJavaClass().getBytes();
+    }
+
+    private static void appendGet(InstructionList il,
+                                  InstructionFactory instFactory,
+                                  ObjectType targetType, Class<?> type,
+                                  Method getterMethod, short invokeKind) {
+        il.append(InstructionFactory.createLoad(Type.OBJECT, 1));
+        il.append(instFactory.createCheckCast(targetType));
+        il.append(instFactory.createInvoke(type.getName(),
+                                           getterMethod.getName(),
+                                           Type.getType(getterMethod.getReturnType()),
+                                           Type.NO_ARGS,
+                                           invokeKind));
+    }
+
+    private static void appendConversion(InstructionList il,
+                                         InstructionFactory instFactory,
+                                         Type from, Type to) {
+        // byte, short and char values are already ints on the stack
+        if (from.equals(to)
+                || (to.equals(Type.INT) && (from.equals(Type.BYTE)
+                        || from.equals(Type.SHORT) || from.equals(Type.CHAR)))) {
+            return;
+        }
+        il.append(instFactory.createCast(from, to));
+    }
+
+    private static void addMethod(ClassGen cg, MethodGen method,
+                                  InstructionList il) {
+        method.setMaxStack();
+        method.setMaxLocals();
+        cg.addMethod(method.getMethod());
+        il.dispose();
+    }
+
+    private static boolean isNumeric(Class<?> clazz) {
+        return clazz.isPrimitive() && !clazz.equals(Boolean.TYPE)
+                && !clazz.equals(Character.TYPE) && !clazz.equals(Void.TYPE);
+    }
+
+    private static Class<?> getWrapperClass(Class<?> primitiveClass) {
+        if (primitiveClass.equals(Long.TYPE)) {
+            return Long.class;
+        } else if (primitiveClass.equals(Integer.TYPE)) {
+            return Integer.class;
+        } else if (primitiveClass.equals(Short.TYPE)) {
+            return Short.class;
+        } else if (primitiveClass.equals(Byte.TYPE)) {
+            return Byte.class;
+        } else if (primitiveClass.equals(Double.TYPE)) {
+            return Double.class;
+        } else if (primitiveClass.equals(Float.TYPE)) {
+            return Float.class;
+        } else if (primitiveClass.equals(Character.TYPE)) {
+            return Character.class;
+        } else if (primitiveClass.equals(Boolean.TYPE)) {
+            return Boolean.class;
+        }
+        throw new IllegalArgumentException("Not a primitive type: "
+                + primitiveClass);
+    }
+
+    /**
+     * Defines accessor classes, and caches the accessors by class name.
+     * Classes are looked up in the loader of the accessed classes first, then
+     * in the loader of {@link PropertyAccessor}.
+     */
+    static class AccessorClassLoader extends ClassLoader {
+        // guarded by this loader
+        private Map<String, PropertyAccessor> accessors = new HashMap<String, PropertyAccessor>();
+
+        AccessorClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> defineClass(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve)
+                throws ClassNotFoundException {
+            try {
+                return super.loadClass(name, resolve);
+            } catch (ClassNotFoundException cnfe) {
+                return PropertyAccessor.class.getClassLoader().loadClass(name);
+            }
+        }
+    }
+
+    /**
+     * Accessor for properties that generated code cannot access.
+     */
+    static class ReflectivePropertyAccessor extends PropertyAccessor {
+        private Method getterMethod;
+        private Method setterMethod;
+
+        ReflectivePropertyAccessor(Method getterMethod, Method setterMethod) {
+            this.getterMethod = getterMethod;
+            this.setterMethod = setterMethod;
+            if (getterMethod != null) {
+                getterMethod.setAccessible(true);
+            }
+            if (setterMethod != null) {
+                setterMethod.setAccessible(true);
+            }
+        }
+
+        public Object get(Object target) {
+            if (getterMethod == null) {
+                return super.get(target);
+            }
+            return invoke(getterMethod, target);
+        }
+
+        public void set(Object target, Object value) {
+            if (setterMethod == null) {
+                super.set(target, value);
+            } else {
+                invoke(setterMethod, target, value);
+            }
+        }
+
+        private Object invoke(Method method, Object target, Object... args) {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException ite) {
+                Throwable cause = ite.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new RuntimeException(cause);
+            } catch (IllegalAccessException iae) {
+                throw new RuntimeException(iae);
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.schema;
+
+import io.s4.schema.Schema.Property;
+
+/**
+ * Resolves a property by name on the classes of a sequence of objects, such
+ * as the events of a stream.
+ * <p>
+ * The property found for the last class is remembered, so as long as the
+ * class does not change, resolving costs a single comparison instead of a
+ * schema and property lookup. Instances may be shared by threads.
+ */
+public class PropertyResolver {
+    private String propertyName;
+    private volatile Resolution last;
+
+    public PropertyResolver(String propertyName) {
+        this.propertyName = propertyName;
+    }
+
+    public String getPropertyName() {
+        return propertyName;
+    }
+
+    /**
+     * Returns the property of the specified class, or null if the class has no
+     * such property.
+     */
+    public Property resolve(Class<?> clazz) {
+        Resolution resolution = last;
+        if (resolution == null || resolution.type != clazz) {
+            Schema schema = SchemaContainer.lookup(clazz);
+            resolution = new Resolution(clazz,
+                                        schema.getProperties()
+                                              .get(propertyName));
+            last = resolution;
+        }
+        return resolution.property;
+    }
+
+    private static class Resolution {
+        private Class<?> type;
+        private Property property;
+
+        Resolution(Class<?> type, Property property) {
+            this.type = type;
+            this.property = property;
+        }
+    }
+}
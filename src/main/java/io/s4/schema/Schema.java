@@ -28,11 +28,39 @@ import java.util.Map;
 
 public class Schema {
     private Map<String, Property> properties = new HashMap<String, Property>();
+    private Map<String, Property> propertiesView = Collections.unmodifiableMap(properties);
+    private Property[] propertiesByOrdinal;
     @SuppressWarnings("unchecked")
     private Class type;
 
     public Map<String, Property> getProperties() {
-        return Collections.unmodifiableMap(properties);
+        return propertiesView;
+    }
+
+    /**
+     * Returns the number of properties, which is also one more than the
+     * highest property ordinal.
+     */
+    public int getPropertyCount() {
+        return propertiesByOrdinal.length;
+    }
+
+    /**
+     * Returns the property with the specified ordinal.
+     * 
+     * @see Property#getOrdinal()
+     */
+    public Property getProperty(int ordinal) {
+        return propertiesByOrdinal[ordinal];
+    }
+
+    /**
+     * Returns the ordinal of the named property, or -1 if there is no such
+     * property.
+     */
+    public int getOrdinal(String propertyName) {
+        Property property = properties.get(propertyName);
+        return (property == null) ? -1 : property.getOrdinal();
     }
 
     @SuppressWarnings("unchecked")
@@ -79,9 +107,21 @@ public class Schema {
                                                      method,
                                                      parameterType);
             if (property != null) {
+                property.ownerType = clazz;
                 properties.put(propertyName, property);
             }
         }
+
+        // ordinals follow property name order, so they are the same in every
+        // process that loads the same class
+        String[] propertyNames = properties.keySet()
+                                           .toArray(new String[properties.size()]);
+        Arrays.sort(propertyNames);
+        propertiesByOrdinal = new Property[propertyNames.length];
+        for (int i = 0; i < propertyNames.length; i++) {
+            propertiesByOrdinal[i] = properties.get(propertyNames[i]);
+            propertiesByOrdinal[i].ordinal = i;
+        }
     }
 
     public String toString() {
@@ -115,6 +155,10 @@ public class Schema {
         private Method setterMethod;
         private boolean isList;
         private boolean isNumber;
+        @SuppressWarnings("unchecked")
+        private Class ownerType;
+        private int ordinal = -1;
+        private volatile PropertyAccessor accessor;
 
         @SuppressWarnings("unchecked")
         public Class getType() {
@@ -149,6 +193,27 @@ public class Schema {
             return componentProperty;
         }
 
+        /**
+         * Returns the index of this property in its {@link Schema}, or -1 for
+         * component properties.
+         */
+        public int getOrdinal() {
+            return ordinal;
+        }
+
+        /**
+         * Returns an accessor that reads and writes this property without
+         * reflection, or null for component properties, which belong to no
+         * class.
+         */
+        public PropertyAccessor getAccessor() {
+            if (accessor == null && ownerType != null) {
+                accessor = PropertyAccessorGenerator.getAccessor(ownerType,
+                                                                 this);
+            }
+            return accessor;
+        }
+
         public static Property getProperty(String propertyName, Method getterMethod, Method setterMethod, Type parameterType) {
             if (parameterType instanceof Class) {
                 Class ptClass = (Class) parameterType;
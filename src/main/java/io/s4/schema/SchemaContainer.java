@@ -15,20 +15,33 @@
  */
 package io.s4.schema;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import io.s4.util.ClassCache;
 
+/**
+ * Registry of the {@link Schema} of each class.
+ * <p>
+ * Schemas are shared by the whole process and keyed by the class itself, so
+ * classes with the same name from different class loaders get different
+ * schemas. All instances of this class see the same schemas. The cache does
+ * not keep classes from being unloaded; see {@link ClassCache}.
+ */
 public class SchemaContainer {
-    private Map<String, Schema> schemaMap = new ConcurrentHashMap<String, Schema>();
+    private static ClassCache<Schema> schemaMap = new ClassCache<Schema>();
 
     public Schema getSchema(Class<?> clazz) {
-        String schemaKey = clazz.getClassLoader().toString() + ":"
-                + clazz.getName();
+        return lookup(clazz);
+    }
 
-        Schema schema = schemaMap.get(schemaKey);
+    /**
+     * Returns the schema of the specified class, creating it the first time
+     * it is requested.
+     */
+    public static Schema lookup(Class<?> clazz) {
+        Schema schema = schemaMap.get(clazz);
         if (schema == null) {
-            schema = new Schema(clazz);
-            schemaMap.put(schemaKey, schema);
+            // two threads may both build the schema; the first one cached is
+            // returned to both
+            schema = schemaMap.putIfAbsent(clazz, new Schema(clazz));
         }
 
         return schema;
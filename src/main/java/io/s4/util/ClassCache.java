@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A concurrent cache of a value per class that does not keep the classes, or
+ * their class loaders, from being unloaded. It stands in for
+ * <code>java.lang.ClassValue</code>, which Java 6 lacks.
+ * <p>
+ * Classes are held weakly. Values usually refer to their class, which would
+ * then never be cleared from a weak key, so values are held softly: a value
+ * still requested stays cached, while one no longer requested is cleared
+ * once the garbage collector needs the memory, letting its class be unloaded.
+ * A cleared value is computed again by the caller on the next request.
+ */
+public class ClassCache<V> {
+    private ConcurrentHashMap<Object, SoftReference<V>> map = new ConcurrentHashMap<Object, SoftReference<V>>();
+    private ReferenceQueue<Class<?>> queue = new ReferenceQueue<Class<?>>();
+
+    /**
+     * Returns the value cached for the class, or null if there is none.
+     */
+    public V get(Class<?> clazz) {
+        SoftReference<V> reference = map.get(new LookupKey(clazz));
+        return (reference == null) ? null : reference.get();
+    }
+
+    /**
+     * Caches a value for the class, unless one is cached already.
+     * 
+     * @return the value now cached for the class
+     */
+    public V putIfAbsent(Class<?> clazz, V value) {
+        expungeStaleEntries();
+        Key key = new Key(clazz, queue);
+        SoftReference<V> reference = new SoftReference<V>(value);
+        while (true) {
+            SoftReference<V> previous = map.putIfAbsent(key, reference);
+            if (previous == null) {
+                return value;
+            }
+            V previousValue = previous.get();
+            if (previousValue != null) {
+                return previousValue;
+            }
+            if (map.replace(key, previous, reference)) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of classes cached, including those whose value was
+     * cleared.
+     */
+    public int size() {
+        expungeStaleEntries();
+        return map.size();
+    }
+
+    private void expungeStaleEntries() {
+        Object key;
+        while ((key = queue.poll()) != null) {
+            map.remove(key);
+        }
+    }
+
+    /**
+     * Holds a class weakly, and equals the key of the same class while it is
+     * not collected.
+     */
+    private static class Key extends WeakReference<Class<?>> {
+        private int hash;
+
+        Key(Class<?> clazz, ReferenceQueue<Class<?>> queue) {
+            super(clazz, queue);
+            hash = System.identityHashCode(clazz);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            Class<?> clazz = get();
+            if (clazz == null) {
+                return false;
+            }
+            if (o instanceof LookupKey) {
+                return ((LookupKey) o).clazz == clazz;
+            }
+            return (o instanceof Key) && ((Key) o).get() == clazz;
+        }
+    }
+
+    /**
+     * Looks up the key of a class without creating a reference object.
+     */
+    private static class LookupKey {
+        private Class<?> clazz;
+
+        LookupKey(Class<?> clazz) {
+            this.clazz = clazz;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(clazz);
+        }
+
+        public boolean equals(Object o) {
+            return (o instanceof Key) && ((Key) o).get() == clazz;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.util;
+
+/**
+ * Chooses which keys leave a population of keys bounded in size.
+ * <p>
+ * Implementations are not thread safe; callers must synchronize access.
+ */
+public interface EvictionPolicy {
+    /**
+     * Records a hit on a key in the population.
+     */
+    void recordAccess(String key);
+
+    /**
+     * Adds a key to the population.
+     * 
+     * @return the key that must be evicted to stay within the capacity, or
+     *         null if none
+     */
+    String add(String key);
+
+    /**
+     * Removes a key that left the population by other means, e.g. expiry.
+     */
+    void remove(String key);
+
+    int size();
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.util;
+
+/**
+ * Approximate counts of how often keys were seen recently, in a count-min
+ * sketch of 4-bit counters.
+ * <p>
+ * Each key has a counter in each of four rows, and its frequency is the
+ * smallest of them. Counters saturate at 15. After a number of increments
+ * proportional to the expected number of keys, all counters are halved, so
+ * the counts favour recent history. The sketch is not thread safe.
+ */
+public class FrequencySketch {
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L,
+            0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private long[] table;
+    private int counterMask;
+    private int sampleSize;
+    private int additions = 0;
+
+    /**
+     * @param expectedKeys
+     *            the number of distinct keys the sketch is expected to tell
+     *            apart
+     */
+    public FrequencySketch(int expectedKeys) {
+        int tableSize = 1;
+        while (tableSize < expectedKeys) {
+            tableSize <<= 1;
+        }
+        tableSize = Math.max(tableSize, 4);
+        table = new long[tableSize];
+        counterMask = (tableSize * 16) - 1;
+        sampleSize = 10 * Math.max(expectedKeys, 1);
+    }
+
+    /**
+     * Counts an occurrence of the key with the specified hash code.
+     */
+    public void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            int shift = (index & 15) << 2;
+            long counter = (table[index >>> 4] >>> shift) & 0xfL;
+            if (counter < 15) {
+                table[index >>> 4] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Returns the estimated number of recent occurrences, at most 15, of the
+     * key with the specified hash code.
+     */
+    public int frequency(int hash) {
+        int frequency = 15;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            int counter = (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 0xfL);
+            frequency = Math.min(frequency, counter);
+        }
+        return frequency;
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h ^= h >>> 32;
+        return (int) h & counterMask;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.util;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size histogram of latencies in nanoseconds.
+ * <p>
+ * Values are counted in log-linear buckets: each power of two is split into
+ * 16 sub-buckets, so a reported percentile is within 1/16 of the recorded
+ * value, and the histogram takes the same ~8 KB whatever the range of values.
+ * <p>
+ * Recording is cheap but assumes a single writer per histogram; use one
+ * histogram per thread and {@link #add} them together to get a combined view.
+ * Any thread may read a histogram or take a {@link #copy} while it is being
+ * written to.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS)
+            * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Records a value. Negative values are recorded as 0. Only one thread may
+     * record into a given histogram.
+     */
+    public void record(long value) {
+        int index = getIndex(value);
+        counts.lazySet(index, counts.get(index) + 1);
+    }
+
+    /**
+     * Adds the counts of another histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+    }
+
+    /**
+     * Subtracts the counts of another histogram, typically an earlier copy of
+     * this one, leaving the values recorded since.
+     */
+    public void subtract(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, -count);
+            }
+        }
+    }
+
+    /**
+     * Adds each histogram of <code>source</code> to the histogram with the
+     * same key in <code>target</code>, creating it if needed.
+     */
+    public static void addAll(Map<String, LatencyHistogram> target,
+                              Map<String, LatencyHistogram> source) {
+        for (Map.Entry<String, LatencyHistogram> entry : source.entrySet()) {
+            LatencyHistogram histogram = target.get(entry.getKey());
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                target.put(entry.getKey(), histogram);
+            }
+            histogram.add(entry.getValue());
+        }
+    }
+
+    public LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(this);
+        return copy;
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the value below which the specified percentage of the recorded
+     * values fall, e.g. <code>getValueAtPercentile(99.9)</code>. Returns 0
+     * if no values have been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * Math.min(percentile, 100.0)
+                / 100.0);
+        target = Math.max(target, 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return getUpperBound(i);
+            }
+        }
+        return getUpperBound(BUCKET_COUNT - 1);
+    }
+
+    public long getMax() {
+        for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) {
+                return getUpperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    public String toString() {
+        return "count:" + getCount() + " p50:" + getValueAtPercentile(50)
+                + " p99:" + getValueAtPercentile(99) + " p999:"
+                + getValueAtPercentile(99.9) + " max:" + getMax();
+    }
+
+    static int getIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) Math.max(value, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long getLowerBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_COUNT;
+        return (SUB_BUCKET_COUNT + subBucket) << shift;
+    }
+
+    static long getUpperBound(int index) {
+        if (index == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        return getLowerBound(index + 1) - 1;
+    }
+}
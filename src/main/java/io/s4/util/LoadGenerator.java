@@ -29,7 +29,6 @@ import java.io.FileReader;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.lang.reflect.Array;
-import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.ArrayList;
@@ -442,13 +441,13 @@ public class LoadGenerator {
                     continue; // not in schema, just continue
                 }
 
-                Method setterMethod = property.getSetterMethod();
                 Object value = jsonRecord.get(propertyName);
                 if (value.equals(JSONObject.NULL)) {
                     continue;
                 }
 
-                setterMethod.invoke(event, makeSettableValue(property, value));
+                property.getAccessor().set(event,
+                                           makeSettableValue(property, value));
 
             }
         } catch (Exception e) {
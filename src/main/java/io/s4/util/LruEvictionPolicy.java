@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Evicts the least recently used key.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+    private int capacity;
+    private LinkedHashMap<String, Boolean> keys = new LinkedHashMap<String, Boolean>(16,
+                                                                                      0.75f,
+                                                                                      true);
+
+    public LruEvictionPolicy(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: "
+                    + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    public void recordAccess(String key) {
+        keys.get(key);
+    }
+
+    public String add(String key) {
+        if (keys.put(key, Boolean.TRUE) != null || keys.size() <= capacity) {
+            return null;
+        }
+        Iterator<String> it = keys.keySet().iterator();
+        String victim = it.next();
+        it.remove();
+        return victim;
+    }
+
+    public void remove(String key) {
+        keys.remove(key);
+    }
+
+    public int size() {
+        return keys.size();
+    }
+}
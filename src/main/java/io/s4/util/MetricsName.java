@@ -22,14 +22,25 @@ public enum MetricsName {
 
     // metrics name
     low_level_listener_msg_in_ct("lll_in"), low_level_listener_msg_drop_ct(
-            "lll_dr"), low_level_listener_qsz("lll_qsz"), low_level_listener_badmsg_ct(
+            "lll_dr"), low_level_listener_qsz("lll_qsz"), low_level_listener_wait_time_p50(
+            "lll_wait_p50"), low_level_listener_wait_time_p99("lll_wait_p99"), low_level_listener_wait_time_p999(
+            "lll_wait_p999"), low_level_listener_badmsg_ct(
             "lll_bad"), // exception can't be caught
     generic_listener_msg_in_ct("gl_in"), pecontainer_ev_dq_ct("pec_dq"), pecontainer_ev_nq_ct(
-            "pec_nq"), pecontainer_msg_drop_ct("pec_dr"), pecontainer_qsz(
+            "pec_nq"), pecontainer_msg_drop_ct("pec_dr"), pecontainer_msg_shed_ct(
+            "pec_shd"), pecontainer_msg_spill_ct("pec_spl"), pecontainer_ctrl_nq_ct(
+            "pec_cnq"), pecontainer_ctrl_dq_ct("pec_cdq"), pecontainer_ctrl_drop_ct(
+            "pec_cdr"), pecontainer_ctrl_qsz("pec_cqsz"), pecontainer_ctrl_exec_elapse_time(
+            "pec_cexec_t"), pecontainer_qsz(
             "pec_qsz"), pecontainer_qsz_w("pec_qsz_w"), pecontainer_ev_process_ct(
             "pec_pr"), pecontainer_pe_ct("pec_pe"), pecontainer_ev_err_ct(
             "pec_err"), // exception can't be caught
-    pecontainer_exec_elapse_time("pec_exec_t"), low_level_emitter_msg_out_ct(
+    pecontainer_exec_elapse_time("pec_exec_t"), pecontainer_exec_time_p50(
+            "pec_exec_p50"), pecontainer_exec_time_p99("pec_exec_p99"), pecontainer_exec_time_p999(
+            "pec_exec_p999"), pecontainer_wait_time_p50("pec_wait_p50"), pecontainer_wait_time_p99(
+            "pec_wait_p99"), pecontainer_wait_time_p999("pec_wait_p999"), pecontainer_total_time_p50(
+            "pec_tot_p50"), pecontainer_total_time_p99("pec_tot_p99"), pecontainer_total_time_p999(
+            "pec_tot_p999"), low_level_emitter_msg_out_ct(
             "lle_out"), low_level_emitter_out_err_ct("lle_err"), low_level_emitter_qsz(
             "lle_qsz"), s4_core_exit_ct("s4_ex_ct"), s4_core_free_mem("s4_fmem"), pe_join_ev_ct(
             "pe_j_ct"), pe_error_count("pe_err");
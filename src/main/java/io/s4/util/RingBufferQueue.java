@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.util;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free, multi-producer/single-consumer queue backed by a
+ * preallocated ring of slots.
+ * <p>
+ * Producers claim a slot by advancing the tail with a CAS and then publish
+ * the element into it, so offering an element allocates nothing. Only one
+ * thread may take elements out of the queue (<code>poll</code>,
+ * <code>take</code>, <code>drainTo</code>, <code>remove</code>); any number
+ * of threads may put elements in.
+ * <p>
+ * How the consumer waits on an empty queue is set by the {@link WaitStrategy}.
+ * Producers waiting on a full queue in <code>put</code> or a timed
+ * <code>offer</code> always back off by parking briefly.
+ */
+public class RingBufferQueue<E> extends AbstractQueue<E> implements
+        BlockingQueue<E> {
+
+    public static enum WaitStrategy {
+        /** Spin on the queue. Lowest latency, burns a core while idle. */
+        BUSY_SPIN,
+        /** Yield the processor between checks. */
+        YIELD,
+        /** Park until a producer signals, or for at most one millisecond. */
+        PARK
+    }
+
+    private static final long MAX_PARK_NANOS = 1000000L;
+    private static final long PRODUCER_BACKOFF_NANOS = 10000L;
+
+    private final AtomicReferenceArray<E> buffer;
+    private final int capacity;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong head = new AtomicLong(0);
+    private final WaitStrategy waitStrategy;
+    private volatile Thread waiter;
+
+    /**
+     * @param capacity
+     *            the minimum capacity; rounded up to the next power of two
+     */
+    public RingBufferQueue(int capacity, WaitStrategy waitStrategy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: "
+                    + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<E>(size);
+        this.waitStrategy = waitStrategy;
+    }
+
+    public RingBufferQueue(int capacity) {
+        this(capacity, WaitStrategy.PARK);
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            long currentTail = tail.get();
+            if (currentTail - head.get() >= capacity) {
+                return false;
+            }
+            if (tail.compareAndSet(currentTail, currentTail + 1)) {
+                // a volatile write, so a parking consumer that registered
+                // itself before checking this slot cannot miss the element
+                buffer.set((int) currentTail & mask, e);
+                Thread consumer = waiter;
+                if (consumer != null) {
+                    LockSupport.unpark(consumer);
+                }
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(e)) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            backOff();
+        }
+        return true;
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        while (!offer(e)) {
+            backOff();
+        }
+    }
+
+    private void backOff() throws InterruptedException {
+        LockSupport.parkNanos(PRODUCER_BACKOFF_NANOS);
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    @Override
+    public E poll() {
+        long currentHead = head.get();
+        int index = (int) currentHead & mask;
+        // the slot is null both when the queue is empty and when a producer
+        // has claimed the slot but not yet published its element
+        E e = buffer.get(index);
+        if (e == null) {
+            return null;
+        }
+        buffer.lazySet(index, null);
+        head.lazySet(currentHead + 1);
+        return e;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        E e;
+        while ((e = poll()) == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            await(remaining);
+        }
+        return e;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E e;
+        while ((e = poll()) == null) {
+            await(MAX_PARK_NANOS);
+        }
+        return e;
+    }
+
+    private void await(long maxNanos) throws InterruptedException {
+        switch (waitStrategy) {
+        case BUSY_SPIN:
+            break;
+        case YIELD:
+            Thread.yield();
+            break;
+        case PARK:
+            waiter = Thread.currentThread();
+            if (peek() == null) {
+                LockSupport.parkNanos(this, Math.min(maxNanos, MAX_PARK_NANOS));
+            }
+            waiter = null;
+            break;
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    @Override
+    public E peek() {
+        return buffer.get((int) head.get() & mask);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int count = 0;
+        E e;
+        while (count < maxElements && (e = poll()) != null) {
+            c.add(e);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public int size() {
+        long size = tail.get() - head.get();
+        if (size < 0) {
+            return 0;
+        }
+        return (int) Math.min(size, capacity);
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the published elements. The
+     * iterator does not support <code>remove</code>.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private long position = head.get();
+            private final long end = tail.get();
+            private E next = advance();
+
+            private E advance() {
+                while (position < end) {
+                    E e = buffer.get((int) position++ & mask);
+                    if (e != null) {
+                        return e;
+                    }
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public E next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                E e = next;
+                next = advance();
+                return e;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -15,6 +15,10 @@
  */
 package io.s4.util;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+
 public class S4Util {
     public static long getPID() {
         String processName = java.lang.management.ManagementFactory.getRuntimeMXBean()
@@ -22,4 +26,37 @@ public class S4Util {
         return Long.parseLong(processName.split("@")[0]);
     }
 
+    /**
+     * Releases the mapping behind a memory-mapped buffer right away, rather
+     * than when the buffer is garbage collected. The buffer must not be used
+     * afterwards. This relies on JVM internals; if they are not accessible
+     * the mapping is left for the garbage collector.
+     */
+    public static void unmap(MappedByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+                                                         java.nio.ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Exception e) {
+            // fall through to the older internals
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // leave the mapping to the garbage collector
+        }
+    }
 }
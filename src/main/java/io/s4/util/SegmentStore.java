@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Byte array values stored by key in a series of append-only segment files.
+ * <p>
+ * Values are appended to the active segment, and a new segment is started
+ * once it reaches the segment size. Only the location of each value is kept
+ * in memory. Replacing or removing a value leaves dead space behind: a
+ * segment is deleted once none of its values are live, and a full segment
+ * that is less than a quarter live has its live values copied to the active
+ * segment first. The store is not thread safe; callers must synchronize
+ * access. The contents do not survive a restart.
+ */
+public class SegmentStore {
+    private File directory;
+    private String prefix;
+    private long segmentSize;
+    private Map<String, Location> index = new HashMap<String, Location>();
+    private List<Segment> segments = new ArrayList<Segment>();
+    private Segment activeSegment;
+    private int nextSegmentId = 0;
+
+    /**
+     * @param directory
+     *            the directory holding the segment files
+     * @param prefix
+     *            the prefix of the segment file names. Files are deleted on
+     *            exit
+     * @param segmentSize
+     *            the size in bytes at which a new segment is started
+     */
+    public SegmentStore(File directory, String prefix, long segmentSize)
+            throws IOException {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+        activeSegment = newSegment();
+    }
+
+    /**
+     * Stores a value, replacing the value previously stored for the key.
+     */
+    public void put(String key, byte[] value) throws IOException {
+        Location previous = index.remove(key);
+        index.put(key, append(key, value));
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    /**
+     * Returns the value stored for a key, or null if there is none.
+     */
+    public byte[] get(String key) throws IOException {
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(location.valueLength);
+        location.segment.read(buffer, location.valuePosition);
+        return buffer.array();
+    }
+
+    /**
+     * Removes the value stored for a key.
+     * 
+     * @return false if there was no value for the key
+     */
+    public boolean remove(String key) throws IOException {
+        Location location = index.remove(key);
+        if (location == null) {
+            return false;
+        }
+        release(location);
+        return true;
+    }
+
+    public boolean containsKey(String key) {
+        return index.containsKey(key);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public void close() throws IOException {
+        index.clear();
+        for (Segment segment : new ArrayList<Segment>(segments)) {
+            segment.delete();
+        }
+    }
+
+    private Segment newSegment() throws IOException {
+        Segment segment = new Segment(new File(directory, prefix
+                + (nextSegmentId++) + ".seg"));
+        segments.add(segment);
+        return segment;
+    }
+
+    // record layout: key length, key, value length, value
+    private Location append(String key, byte[] value) throws IOException {
+        byte[] keyBytes = key.getBytes("UTF-8");
+        int recordLength = 8 + keyBytes.length + value.length;
+        if (activeSegment.size > 0
+                && activeSegment.size + recordLength > segmentSize) {
+            Segment sealed = activeSegment;
+            activeSegment = newSegment();
+            if (sealed.liveCount == 0) {
+                sealed.delete();
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(recordLength);
+        buffer.putInt(keyBytes.length);
+        buffer.put(keyBytes);
+        buffer.putInt(value.length);
+        buffer.put(value);
+        buffer.flip();
+
+        Segment segment = activeSegment;
+        long position = segment.size;
+        segment.write(buffer, position);
+        segment.size += recordLength;
+        segment.liveCount++;
+        segment.liveBytes += recordLength;
+        return new Location(segment, position + 8 + keyBytes.length,
+                            value.length, recordLength);
+    }
+
+    private void release(Location location) throws IOException {
+        Segment segment = location.segment;
+        segment.liveCount--;
+        segment.liveBytes -= location.recordLength;
+        if (segment == activeSegment) {
+            return;
+        }
+        if (segment.liveCount == 0) {
+            segment.delete();
+        } else if (segment.liveBytes * 4 < segment.size) {
+            compact(segment);
+        }
+    }
+
+    // moves the live values of a sealed segment to the active segment
+    private void compact(Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        long position = 0;
+        while (position < segment.size) {
+            header.clear();
+            segment.read(header, position);
+            ByteBuffer keyBuffer = ByteBuffer.allocate(header.getInt(0));
+            segment.read(keyBuffer, position + 4);
+            String key = new String(keyBuffer.array(), "UTF-8");
+            header.clear();
+            segment.read(header, position + 4 + keyBuffer.capacity());
+            int valueLength = header.getInt(0);
+            long valuePosition = position + 8 + keyBuffer.capacity();
+
+            Location location = index.get(key);
+            if (location != null && location.segment == segment
+                    && location.valuePosition == valuePosition) {
+                ByteBuffer value = ByteBuffer.allocate(valueLength);
+                segment.read(value, valuePosition);
+                index.put(key, append(key, value.array()));
+            }
+            position = valuePosition + valueLength;
+        }
+        segment.delete();
+    }
+
+    private class Segment {
+        File file;
+        RandomAccessFile raf;
+        FileChannel channel;
+        long size = 0;
+        int liveCount = 0;
+        long liveBytes = 0;
+
+        Segment(File file) throws IOException {
+            this.file = file;
+            file.deleteOnExit();
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            channel = raf.getChannel();
+        }
+
+        void write(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        void read(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int count = channel.read(buffer, position);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of segment "
+                            + file);
+                }
+                position += count;
+            }
+        }
+
+        void delete() throws IOException {
+            raf.close();
+            file.delete();
+            segments.remove(this);
+        }
+    }
+
+    private static class Location {
+        Segment segment;
+        long valuePosition;
+        int valueLength;
+        int recordLength;
+
+        Location(Segment segment, long valuePosition, int valueLength,
+                int recordLength) {
+            this.segment = segment;
+            this.valuePosition = valuePosition;
+            this.valueLength = valueLength;
+            this.recordLength = recordLength;
+        }
+    }
+}
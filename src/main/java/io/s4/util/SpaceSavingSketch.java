@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Approximate top-K counter using the Space-Saving algorithm.
+ * <p>
+ * The sketch monitors at most <code>capacity</code> keys. When a key that is
+ * not monitored arrives and the sketch is full, it replaces the key with the
+ * lowest count and inherits that count as its error. Any key occurring more
+ * than <code>1/capacity</code> of the time is guaranteed to be monitored, and
+ * each reported count overestimates the true count by at most its error.
+ * <p>
+ * Counting a key does not allocate. Keys are matched by a linear scan, so the
+ * capacity is meant to be small (tens of keys).
+ */
+public class SpaceSavingSketch {
+    private String[] keys;
+    private int[] hashes;
+    private long[] counts;
+    private long[] errors;
+    private int size = 0;
+
+    public SpaceSavingSketch(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: "
+                    + capacity);
+        }
+        keys = new String[capacity];
+        hashes = new int[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+    }
+
+    public synchronized void offer(String key) {
+        int hash = key.hashCode();
+        for (int i = 0; i < size; i++) {
+            if (hashes[i] == hash && keys[i].equals(key)) {
+                counts[i]++;
+                return;
+            }
+        }
+
+        int index;
+        if (size < keys.length) {
+            index = size++;
+            counts[index] = 0;
+            errors[index] = 0;
+        } else {
+            index = 0;
+            for (int i = 1; i < size; i++) {
+                if (counts[i] < counts[index]) {
+                    index = i;
+                }
+            }
+            errors[index] = counts[index];
+        }
+        keys[index] = key;
+        hashes[index] = hash;
+        counts[index]++;
+    }
+
+    /**
+     * Returns the monitored keys, highest count first.
+     */
+    public synchronized List<Counter> getCounters() {
+        List<Counter> counters = new ArrayList<Counter>(size);
+        for (int i = 0; i < size; i++) {
+            counters.add(new Counter(keys[i], counts[i], errors[i]));
+        }
+        sort(counters);
+        return counters;
+    }
+
+    /**
+     * Sorts counters highest count first.
+     */
+    public static void sort(List<Counter> counters) {
+        Collections.sort(counters, new Comparator<Counter>() {
+            public int compare(Counter c1, Counter c2) {
+                if (c1.count == c2.count) {
+                    return 0;
+                }
+                return (c1.count > c2.count) ? -1 : 1;
+            }
+        });
+    }
+
+    public static class Counter {
+        private String key;
+        private long count;
+        private long error;
+
+        public Counter(String key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Returns the estimated count, which may exceed the true count by up
+         * to {@link #getError()}.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public long getError() {
+            return error;
+        }
+
+        public String toString() {
+            return key + "=" + count + "(+-" + error + ")";
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A FIFO of byte array records kept in a memory-mapped file.
+ * <p>
+ * The mapped region is used as a ring buffer: records are appended at the
+ * write position and read back from the read position, and both wrap around
+ * the end of the region, so the space of every record read is reused at once.
+ * A record may be split across the end of the region. The log is not thread
+ * safe; callers must synchronize access. The contents do not survive a
+ * restart.
+ */
+public class SpillLog {
+    private File file;
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int readPosition = 0;
+    private int writePosition = 0;
+    private int usedBytes = 0;
+    private int recordCount = 0;
+    private byte[] lengthBytes = new byte[4];
+
+    /**
+     * @param file
+     *            the backing file. It is created if necessary and deleted on
+     *            exit
+     * @param capacity
+     *            the size of the mapped region in bytes
+     */
+    public SpillLog(File file, int capacity) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(capacity);
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                      0,
+                                      capacity);
+    }
+
+    /**
+     * Appends a record.
+     * 
+     * @return false if there is no room left in the log for the record, or
+     *         if the log is closed
+     */
+    public boolean append(byte[] record) {
+        if (buffer == null || capacity - usedBytes < record.length + 4) {
+            return false;
+        }
+        lengthBytes[0] = (byte) (record.length >>> 24);
+        lengthBytes[1] = (byte) (record.length >>> 16);
+        lengthBytes[2] = (byte) (record.length >>> 8);
+        lengthBytes[3] = (byte) record.length;
+        write(lengthBytes);
+        write(record);
+        usedBytes += record.length + 4;
+        recordCount++;
+        return true;
+    }
+
+    /**
+     * Removes and returns the oldest record, or returns null if the log is
+     * empty or closed.
+     */
+    public byte[] read() {
+        if (buffer == null || recordCount == 0) {
+            return null;
+        }
+        readFully(lengthBytes);
+        byte[] record = new byte[((lengthBytes[0] & 0xff) << 24)
+                | ((lengthBytes[1] & 0xff) << 16)
+                | ((lengthBytes[2] & 0xff) << 8) | (lengthBytes[3] & 0xff)];
+        readFully(record);
+        usedBytes -= record.length + 4;
+        recordCount--;
+        if (recordCount == 0) {
+            // start again from the beginning, so short bursts never wrap
+            readPosition = 0;
+            writePosition = 0;
+        }
+        return record;
+    }
+
+    private void write(byte[] bytes) {
+        int firstPart = Math.min(bytes.length, capacity - writePosition);
+        buffer.position(writePosition);
+        buffer.put(bytes, 0, firstPart);
+        if (firstPart < bytes.length) {
+            buffer.position(0);
+            buffer.put(bytes, firstPart, bytes.length - firstPart);
+        }
+        writePosition = (writePosition + bytes.length) % capacity;
+    }
+
+    private void readFully(byte[] bytes) {
+        int firstPart = Math.min(bytes.length, capacity - readPosition);
+        buffer.position(readPosition);
+        buffer.get(bytes, 0, firstPart);
+        if (firstPart < bytes.length) {
+            buffer.position(0);
+            buffer.get(bytes, firstPart, bytes.length - firstPart);
+        }
+        readPosition = (readPosition + bytes.length) % capacity;
+    }
+
+    public boolean isEmpty() {
+        return recordCount == 0;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Returns the number of bytes taken by the records in the log, including
+     * their length prefixes.
+     */
+    public int getUsedBytes() {
+        return usedBytes;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Unmaps and deletes the backing file. Records still in the log are lost;
+     * afterwards <code>append</code> fails and <code>read</code> returns
+     * null.
+     */
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        S4Util.unmap(buffer);
+        buffer = null;
+        recordCount = 0;
+        usedBytes = 0;
+        raf.close();
+        file.delete();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.util;
+
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel: a set of timers, each with a deadline and a
+ * payload, that expire as time is advanced.
+ * <p>
+ * The wheel has ten levels of 64 slots. Level 0 holds timers due within the
+ * current run of 64 ticks, one tick per slot; each higher level covers 64 times
+ * the span of the level below, and its timers are moved down a level when
+ * their slot comes up. Scheduling and cancelling take constant time. Each
+ * level keeps a bitmap of its occupied slots, so advancing skips empty slots:
+ * its cost depends on the number of timers expired and moved, not on how far
+ * time moves, which matters for clocks driven by event time.
+ * <p>
+ * Time is in ticks, whatever unit the caller chooses, and must not be
+ * negative. Deadlines beyond 2^60 ticks are treated as 2^60 - 1. The wheel is
+ * not thread safe.
+ */
+public class TimingWheel<T> {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 10;
+    private static final long MAX_TIME = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private Timer<T>[][] heads;
+    private Timer<T>[][] tails;
+    private long[] occupied = new long[LEVELS];
+    private long currentTime;
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long startTime) {
+        heads = new Timer[LEVELS][SLOTS];
+        tails = new Timer[LEVELS][SLOTS];
+        currentTime = Math.min(Math.max(startTime, 0), MAX_TIME);
+    }
+
+    /**
+     * Returns the time the wheel was last advanced to.
+     */
+    public long getCurrentTime() {
+        return currentTime;
+    }
+
+    /**
+     * Returns the number of scheduled timers.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Schedules a timer. A deadline that is not after the current time expires
+     * on the next call to {@link #advance}.
+     * 
+     * @return the timer, which can be passed to {@link #cancel}
+     */
+    public Timer<T> schedule(long deadline, T payload) {
+        Timer<T> timer = new Timer<T>(Math.min(Math.max(deadline, currentTime),
+                                               MAX_TIME), payload);
+        add(timer);
+        size++;
+        return timer;
+    }
+
+    /**
+     * Cancels a timer.
+     * 
+     * @return false if the timer had already expired or been cancelled
+     */
+    public boolean cancel(Timer<T> timer) {
+        if (timer.level < 0) {
+            return false;
+        }
+        remove(timer);
+        size--;
+        return true;
+    }
+
+    /**
+     * Advances the wheel to the specified time, adding the payloads of the
+     * timers that expire to <code>expired</code> in deadline order. Time never
+     * moves backwards: an earlier time only expires the timers due at the
+     * current time.
+     * 
+     * @return the number of timers that expired
+     */
+    public int advance(long time, List<T> expired) {
+        time = Math.min(Math.max(time, currentTime), MAX_TIME);
+        int count = 0;
+        while (true) {
+            // the lowest occupied level holds the next slot to process
+            int level = -1;
+            int slot = -1;
+            for (int l = 0; l < LEVELS; l++) {
+                int digit = digit(currentTime, l);
+                // level 0 slots are due on their tick, including the current
+                // one; higher level slots are always after the current one
+                long mask = (l == 0) ? -1L << digit : ~((2L << digit) - 1);
+                long candidates = occupied[l] & mask;
+                if (candidates != 0) {
+                    level = l;
+                    slot = Long.numberOfTrailingZeros(candidates);
+                    break;
+                }
+            }
+
+            if (level < 0) {
+                break;
+            }
+            int shift = SLOT_BITS * level;
+            long slotTime = ((currentTime >>> (shift + SLOT_BITS)) << (shift + SLOT_BITS))
+                    | ((long) slot << shift);
+            if (slotTime > time) {
+                break;
+            }
+
+            currentTime = slotTime;
+            Timer<T> timer = heads[level][slot];
+            heads[level][slot] = null;
+            tails[level][slot] = null;
+            occupied[level] &= ~(1L << slot);
+            while (timer != null) {
+                Timer<T> next = timer.next;
+                timer.next = null;
+                timer.prev = null;
+                if (level == 0) {
+                    timer.level = -1;
+                    expired.add(timer.payload);
+                    size--;
+                    count++;
+                } else {
+                    // move down to the level that now covers its deadline
+                    add(timer);
+                }
+                timer = next;
+            }
+        }
+
+        if (time > currentTime) {
+            currentTime = time;
+        }
+        return count;
+    }
+
+    private static int digit(long time, int level) {
+        return (int) (time >>> (SLOT_BITS * level)) & (SLOTS - 1);
+    }
+
+    private void add(Timer<T> timer) {
+        // the lowest level at which the deadline and the current time fall in
+        // the same block of that level's span
+        int level = 0;
+        while (level < LEVELS - 1
+                && (timer.deadline >>> (SLOT_BITS * (level + 1))) != (currentTime >>> (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = digit(timer.deadline, level);
+
+        timer.level = level;
+        timer.slot = slot;
+        timer.prev = tails[level][slot];
+        if (timer.prev == null) {
+            heads[level][slot] = timer;
+            occupied[level] |= 1L << slot;
+        } else {
+            timer.prev.next = timer;
+        }
+        tails[level][slot] = timer;
+    }
+
+    private void remove(Timer<T> timer) {
+        int level = timer.level;
+        int slot = timer.slot;
+        if (timer.prev == null) {
+            heads[level][slot] = timer.next;
+        } else {
+            timer.prev.next = timer.next;
+        }
+        if (timer.next == null) {
+            tails[level][slot] = timer.prev;
+        } else {
+            timer.next.prev = timer.prev;
+        }
+        if (heads[level][slot] == null) {
+            occupied[level] &= ~(1L << slot);
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.level = -1;
+    }
+
+    /**
+     * A scheduled timer.
+     */
+    public static class Timer<T> {
+        private long deadline;
+        private T payload;
+        private int level = -1;
+        private int slot;
+        private Timer<T> prev;
+        private Timer<T> next;
+
+        private Timer(long deadline, T payload) {
+            this.deadline = deadline;
+            this.payload = payload;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public T getPayload() {
+            return payload;
+        }
+
+        /**
+         * Returns true until the timer expires or is cancelled.
+         */
+        public boolean isPending() {
+            return level >= 0;
+        }
+    }
+}
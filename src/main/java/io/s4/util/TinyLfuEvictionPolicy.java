@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Window TinyLFU: evicts keys by recency and by how often they were seen.
+ * <p>
+ * New keys enter a small LRU window, 1% of the capacity. A key pushed out of
+ * the window is admitted to the main space only if it has been seen more
+ * often, according to a {@link FrequencySketch}, than the key the main space
+ * would evict; otherwise it is the one evicted. The main space is a
+ * segmented LRU: keys hit again while on probation move to the protected
+ * segment, which holds up to 80% of the main space. This keeps frequently
+ * used keys through bursts of keys seen only once.
+ */
+public class TinyLfuEvictionPolicy implements EvictionPolicy {
+    private FrequencySketch sketch;
+    private int windowCapacity;
+    private int mainCapacity;
+    private int protectedCapacity;
+    private LinkedHashMap<String, Boolean> window = newSegment();
+    private LinkedHashMap<String, Boolean> probation = newSegment();
+    private LinkedHashMap<String, Boolean> protectedKeys = newSegment();
+
+    public TinyLfuEvictionPolicy(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: "
+                    + capacity);
+        }
+        sketch = new FrequencySketch(capacity);
+        windowCapacity = Math.max(1, capacity / 100);
+        mainCapacity = capacity - windowCapacity;
+        protectedCapacity = (int) (mainCapacity * 0.8);
+    }
+
+    private static LinkedHashMap<String, Boolean> newSegment() {
+        return new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+    }
+
+    public void recordAccess(String key) {
+        sketch.increment(key.hashCode());
+        hit(key);
+    }
+
+    // returns false if the key is not in the population
+    private boolean hit(String key) {
+        if (window.get(key) != null || protectedKeys.get(key) != null) {
+            return true;
+        }
+        if (probation.remove(key) == null) {
+            return false;
+        }
+        protectedKeys.put(key, Boolean.TRUE);
+        if (protectedKeys.size() > protectedCapacity) {
+            probation.put(removeEldest(protectedKeys), Boolean.TRUE);
+        }
+        return true;
+    }
+
+    public String add(String key) {
+        sketch.increment(key.hashCode());
+        if (hit(key)) {
+            return null;
+        }
+
+        window.put(key, Boolean.TRUE);
+        if (window.size() <= windowCapacity) {
+            return null;
+        }
+
+        String candidate = removeEldest(window);
+        if (probation.size() + protectedKeys.size() < mainCapacity) {
+            probation.put(candidate, Boolean.TRUE);
+            return null;
+        }
+
+        LinkedHashMap<String, Boolean> victimSegment = probation.isEmpty() ? protectedKeys
+                : probation;
+        if (victimSegment.isEmpty()) {
+            return candidate;
+        }
+        String victim = victimSegment.keySet().iterator().next();
+        if (sketch.frequency(candidate.hashCode()) <= sketch.frequency(victim.hashCode())) {
+            return candidate;
+        }
+        victimSegment.remove(victim);
+        probation.put(candidate, Boolean.TRUE);
+        return victim;
+    }
+
+    private static String removeEldest(LinkedHashMap<String, Boolean> segment) {
+        Iterator<String> it = segment.keySet().iterator();
+        String eldest = it.next();
+        it.remove();
+        return eldest;
+    }
+
+    public void remove(String key) {
+        if (window.remove(key) == null && probation.remove(key) == null) {
+            protectedKeys.remove(key);
+        }
+    }
+
+    public int size() {
+        return window.size() + probation.size() + protectedKeys.size();
+    }
+}
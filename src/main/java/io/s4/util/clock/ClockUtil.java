@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.util.clock;
+
+/**
+ * Utilities for reading clocks.
+ */
+public class ClockUtil {
+
+    /**
+     * Returns the coarse time of a {@link CoarseClock}, or the current time of
+     * any other clock.
+     */
+    public static long getCoarseTime(Clock clock) {
+        if (clock instanceof CoarseClock) {
+            return ((CoarseClock) clock).getCoarseTime();
+        }
+        return clock.getCurrentTime();
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.util.clock;
+
+/**
+ * A {@link Clock} that can also tell the time at a coarse resolution without
+ * waiting.
+ * <p>
+ * Callers holding a plain <code>Clock</code> should use
+ * {@link ClockUtil#getCoarseTime(Clock)}, which falls back to
+ * {@link Clock#getCurrentTime()} for clocks that do not implement this
+ * interface.
+ */
+public interface CoarseClock extends Clock {
+
+    /**
+     * Returns the current time at the clock's coarse resolution, without
+     * waiting. Meant for per-event bookkeeping such as TTLs, where reading a
+     * cached field is cheaper than getting the precise time.
+     */
+    public long getCoarseTime();
+
+}
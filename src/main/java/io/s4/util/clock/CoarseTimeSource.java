@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.util.clock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wall clock time read from a field that a daemon thread refreshes every
+ * <i>resolution</i> milliseconds, so that reading it costs a field read instead
+ * of a system call. Sources are shared by resolution; use
+ * {@link #getInstance}.
+ */
+public class CoarseTimeSource {
+    private static Map<Long, CoarseTimeSource> sources = new HashMap<Long, CoarseTimeSource>();
+
+    private final long resolution;
+    private volatile long time = System.currentTimeMillis();
+
+    /**
+     * Returns the source with the specified resolution, starting it if needed.
+     */
+    public static synchronized CoarseTimeSource getInstance(long resolution) {
+        CoarseTimeSource source = sources.get(resolution);
+        if (source == null) {
+            source = new CoarseTimeSource(resolution);
+            sources.put(resolution, source);
+        }
+        return source;
+    }
+
+    private CoarseTimeSource(final long resolution) {
+        this.resolution = resolution;
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                while (!Thread.interrupted()) {
+                    try {
+                        Thread.sleep(resolution);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                    time = System.currentTimeMillis();
+                }
+            }
+        }, "CoarseTimeSource-" + resolution + "ms");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public long getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Returns the wall clock time in milliseconds as of the last refresh.
+     */
+    public long getTime() {
+        return time;
+    }
+}
@@ -16,58 +16,97 @@
 
 package io.s4.util.clock;
 
+import io.s4.util.TimingWheel;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.NavigableMap;
-import java.util.TreeMap;
 
-public class DrivenClock implements Clock {
-    
+import org.apache.log4j.Logger;
+
+/**
+ * A clock whose time is set by calls to {@link #updateTime}.
+ * <p>
+ * Timers are kept in a {@link TimingWheel}, so any number of them can be
+ * pending without a thread each: {@link #schedule} registers a callback, and
+ * {@link #waitForTime} is a callback that wakes the waiting thread. Callbacks
+ * run on the thread that calls <code>updateTime</code>, after the clock has
+ * been updated, in deadline order, and must not block.
+ */
+public class DrivenClock implements CoarseClock {
+    private static Logger logger = Logger.getLogger(DrivenClock.class);
+
     private volatile long currentTime;
-    private NavigableMap<Long, List<TimerRequest>> timerRequests = new TreeMap<Long, List<TimerRequest>>();
+    private TimingWheel<Runnable> timers = new TimingWheel<Runnable>(0);
 
     public void updateTime(long newCurrentTime) {
         if (newCurrentTime < currentTime) {
             return;
         }
-        List<TimerRequest> relevantRequests = null;
-        synchronized (timerRequests) {
+        List<Runnable> dueTasks = null;
+        synchronized (timers) {
+            if (newCurrentTime < currentTime) {
+                return;
+            }
             currentTime = newCurrentTime;
-            while (true) {
-                // inspect the top of the timer request list and see if any
-                // request
-                // is
-                // satisfied by the new current time
-                Entry<Long, List<TimerRequest>> entry = timerRequests
-                        .firstEntry();
-                if (entry == null || entry.getKey() > newCurrentTime) {
-                    break;
-                }
-                relevantRequests = timerRequests.remove(entry.getKey());
+            if (timers.size() > 0) {
+                dueTasks = new ArrayList<Runnable>();
+                timers.advance(newCurrentTime, dueTasks);
             }
-            if (relevantRequests != null) {
-                for (TimerRequest timerRequest : relevantRequests) {
-                    timerRequest.wakeUp(newCurrentTime);
-                }
+        }
+        if (dueTasks != null) {
+            for (Runnable task : dueTasks) {
+                run(task);
+            }
+        }
+    }
+
+    /**
+     * Runs a task once the clock reaches the target time. If the clock is
+     * already there, the task runs immediately on the calling thread.
+     * 
+     * @return a handle that can be passed to {@link #cancel}, or null if the
+     *         task has already run
+     */
+    public TimingWheel.Timer<Runnable> schedule(long targetTime, Runnable task) {
+        synchronized (timers) {
+            if (targetTime > currentTime) {
+                return timers.schedule(targetTime, task);
             }
         }
+        run(task);
+        return null;
+    }
+
+    /**
+     * Cancels a task scheduled with {@link #schedule}.
+     * 
+     * @return false if the task has already run or been cancelled
+     */
+    public boolean cancel(TimingWheel.Timer<Runnable> timer) {
+        synchronized (timers) {
+            return timers.cancel(timer);
+        }
+    }
+
+    private void run(Runnable task) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            logger.error("Exception in timer task", e);
+        }
     }
 
     public long waitForTime(long targetTime) {
-        TimerRequest timerRequest = null;
-        synchronized (timerRequests) {
+        final TimerRequest timerRequest = new TimerRequest(targetTime);
+        synchronized (timers) {
             if (targetTime <= currentTime) {
                 return currentTime;
             }
-            timerRequest = new TimerRequest(targetTime);
-            List<TimerRequest> requestsForTargetTime = timerRequests.get(targetTime);
-            if (requestsForTargetTime == null) {
-                requestsForTargetTime = new ArrayList<TimerRequest>();
-                timerRequests.put(targetTime, requestsForTargetTime);
-            }
-            requestsForTargetTime.add(timerRequest);
+            timers.schedule(targetTime, new Runnable() {
+                public void run() {
+                    timerRequest.wakeUp(currentTime);
+                }
+            });
         }
         return timerRequest.waitForTargetTime();
     }
@@ -77,6 +116,20 @@ public class DrivenClock implements Clock {
         return getCurrentTime(true);
     }
 
+    /**
+     * Returns the time of the last update: the clock only moves when updated,
+     * so this is as precise as {@link #getCurrentTime()}. Like
+     * <code>getCurrentTime</code>, waits for the first update rather than
+     * return 0.
+     */
+    public long getCoarseTime() {
+        long time = currentTime;
+        if (time == 0) {
+            return getCurrentTime();
+        }
+        return time;
+    }
+
     public long getCurrentTime(boolean waitOnInitialization) {
         if (currentTime == 0 && waitOnInitialization) {
             // if tick has never been called, wait for it to be called once
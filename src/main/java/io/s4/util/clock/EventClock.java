@@ -17,36 +17,70 @@
 package io.s4.util.clock;
 
 import io.s4.collector.EventWrapper;
-import io.s4.schema.Schema;
+import io.s4.schema.PropertyResolver;
 import io.s4.schema.Schema.Property;
-import io.s4.schema.SchemaContainer;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
+/**
+ * A clock driven by the timestamps of the events of selected streams.
+ * <p>
+ * By default the clock follows the latest timestamp seen on any of the
+ * streams. In watermark mode it follows the earliest of the latest timestamps
+ * of the streams instead, minus an allowed lateness, so that a stream running
+ * ahead of the others does not make windowing PEs treat events of the slower
+ * streams as late. In watermark mode the clock does not start until every
+ * stream has delivered an event, and it stops while any stream is idle.
+ */
 public class EventClock extends DrivenClock {
 
     private static Logger logger = Logger.getLogger(EventClock.class);
 
     Map<String, String> eventClockStreamsMap = new HashMap<String, String>();
-    SchemaContainer schemaContainer = new SchemaContainer();
+    Map<String, ClockStream> clockStreamsByName = new ConcurrentHashMap<String, ClockStream>();
+    private volatile ClockStream[] clockStreams = new ClockStream[0];
+    private boolean watermarkMode = false;
+    private long allowedLateness = 0;
+
+    /**
+     * Sets whether the clock follows the minimum of the latest timestamps of
+     * the streams rather than the maximum. Off by default.
+     */
+    public void setWatermarkMode(boolean watermarkMode) {
+        this.watermarkMode = watermarkMode;
+    }
+
+    /**
+     * Sets how far, in clock units, the watermark stays behind the slowest
+     * stream, to allow for events arriving out of order within a stream.
+     * Only used in watermark mode. Defaults to 0.
+     */
+    public void setAllowedLateness(long allowedLateness) {
+        this.allowedLateness = allowedLateness;
+    }
 
     public void update(EventWrapper eventWrapper) {
         long eventTime = -1;
         String streamName = eventWrapper.getStreamName();
-        String fieldName = eventClockStreamsMap.get(streamName);
-        if (fieldName != null) {
+        ClockStream clockStream = clockStreamsByName.get(streamName);
+        if (clockStream != null) {
             Object event = eventWrapper.getEvent();
-            Schema schema = schemaContainer.getSchema(event.getClass());
-            Property property = schema.getProperties().get(fieldName);
+            Property property = clockStream.resolver.resolve(event.getClass());
             if (property != null
                     && (property.getType().equals(Long.TYPE) || property
                             .getType().equals(Long.class))) {
                 try {
-                    eventTime = (Long) property.getGetterMethod().invoke(event);
-                    updateTime(eventTime);
+                    eventTime = property.getAccessor().getLong(event);
+                    if (!watermarkMode) {
+                        updateTime(eventTime);
+                    } else if (clockStream.advance(eventTime)) {
+                        updateWatermark();
+                    }
                 } catch (Exception e) {
                     throw new RuntimeException(e);
                 }
@@ -54,6 +88,19 @@ public class EventClock extends DrivenClock {
         } 
     }
 
+    private void updateWatermark() {
+        long watermark = Long.MAX_VALUE;
+        for (ClockStream clockStream : clockStreams) {
+            long latestTime = clockStream.latestTime.get();
+            if (latestTime == Long.MIN_VALUE) {
+                // no event from this stream yet
+                return;
+            }
+            watermark = Math.min(watermark, latestTime);
+        }
+        updateTime(watermark - allowedLateness);
+    }
+
     public void addEventClockStream(String streamName, String fieldName) {
         String fieldNameInStream = eventClockStreamsMap.get(streamName);
         if (fieldNameInStream != null) {
@@ -66,9 +113,46 @@ public class EventClock extends DrivenClock {
                 logger.error("Stream " + streamName
                         + " is updating the timestamp field to " + fieldName);
                 eventClockStreamsMap.put(streamName, fieldName);
+                clockStreamsByName.get(streamName).resolver = new PropertyResolver(fieldName);
             }
         } else {
             eventClockStreamsMap.put(streamName, fieldName);
+            ClockStream clockStream = new ClockStream(fieldName);
+            synchronized (this) {
+                ClockStream[] newClockStreams = new ClockStream[clockStreams.length + 1];
+                System.arraycopy(clockStreams,
+                                 0,
+                                 newClockStreams,
+                                 0,
+                                 clockStreams.length);
+                newClockStreams[clockStreams.length] = clockStream;
+                clockStreams = newClockStreams;
+            }
+            clockStreamsByName.put(streamName, clockStream);
+        }
+    }
+
+    static class ClockStream {
+        volatile PropertyResolver resolver;
+        AtomicLong latestTime = new AtomicLong(Long.MIN_VALUE);
+
+        ClockStream(String fieldName) {
+            this.resolver = new PropertyResolver(fieldName);
+        }
+
+        /**
+         * Records an event time, returning true if it is the latest so far.
+         */
+        boolean advance(long eventTime) {
+            while (true) {
+                long latest = latestTime.get();
+                if (eventTime <= latest) {
+                    return false;
+                }
+                if (latestTime.compareAndSet(latest, eventTime)) {
+                    return true;
+                }
+            }
         }
     }
 }
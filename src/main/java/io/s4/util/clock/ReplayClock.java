@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.util.clock;
+
+import io.s4.collector.EventWrapper;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Clock for replaying historical data, such as when backfilling.
+ * <p>
+ * The replay starts at a seed time, set with {@link #start}. By default the
+ * clock then runs as fast as the events: like an {@link EventClock}, it follows
+ * the timestamps of the configured clock streams, and anything waiting on it
+ * waits for event time rather than wall clock time. With a speedup, the clock
+ * instead runs that many times faster than real time from the seed time,
+ * regardless of the events, which paces a replay that should not go faster
+ * than the downstream systems can take.
+ */
+public class ReplayClock extends EventClock {
+    private static Logger logger = Logger.getLogger(ReplayClock.class);
+
+    private double speedup = 0;
+    private long tickInterval = 10;
+    private volatile boolean started = false;
+
+    /**
+     * Sets how many times faster than real time the clock runs, or 0 (the
+     * default) to follow the event timestamps.
+     */
+    public void setSpeedup(double speedup) {
+        this.speedup = speedup;
+    }
+
+    /**
+     * Sets how often, in wall clock milliseconds, a paced clock moves
+     * forward. Defaults to 10.
+     */
+    public void setTickInterval(long tickInterval) {
+        this.tickInterval = tickInterval;
+    }
+
+    /**
+     * Starts the replay at the specified time.
+     */
+    public synchronized void start(final long seedTime) {
+        if (started) {
+            return;
+        }
+        started = true;
+        updateTime(seedTime);
+        if (speedup <= 0) {
+            logger.info("Replaying from " + seedTime + " at event speed");
+            return;
+        }
+
+        logger.info("Replaying from " + seedTime + " at " + speedup
+                + " times real time");
+        final long startNanos = System.nanoTime();
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                while (!Thread.interrupted()) {
+                    long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+                    updateTime(seedTime + (long) (elapsedMillis * speedup));
+                    try {
+                        Thread.sleep(tickInterval);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }, "ReplayClock");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void update(EventWrapper eventWrapper) {
+        // a paced clock ignores the event timestamps
+        if (speedup <= 0) {
+            super.update(eventWrapper);
+        }
+    }
+}
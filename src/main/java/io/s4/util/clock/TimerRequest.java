@@ -39,6 +39,7 @@ public class TimerRequest {
         try {
             return blockingQueue.take();
         } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
             return -1;
         }
     }
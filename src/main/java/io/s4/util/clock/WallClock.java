@@ -17,7 +17,17 @@
 package io.s4.util.clock;
 
 
-public class WallClock implements Clock {
+public class WallClock implements CoarseClock {
+    private long coarseResolution = 10;
+    private volatile CoarseTimeSource coarseTimeSource;
+
+    /**
+     * Sets the resolution, in milliseconds, of {@link #getCoarseTime()}.
+     * Defaults to 10.
+     */
+    public void setCoarseResolution(long coarseResolution) {
+        this.coarseResolution = coarseResolution;
+    }
 
     @Override
     public long waitForTime(long targetTime) {
@@ -38,4 +48,14 @@ public class WallClock implements Clock {
         return System.currentTimeMillis();
     }
 
+    @Override
+    public long getCoarseTime() {
+        CoarseTimeSource source = coarseTimeSource;
+        if (source == null) {
+            source = CoarseTimeSource.getInstance(coarseResolution);
+            coarseTimeSource = source;
+        }
+        return source.getTime();
+    }
+
 }
@@ -0,0 +1,356 @@
+package io.s4.dispatcher.partitioner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import io.s4.schema.Schema;
+import io.s4.schema.Schema.Property;
+import io.s4.schema.SchemaContainer;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.junit.Test;
+
+public class TestKeyExtractor
+{
+   public static class TopLevel {
+       private String query;
+       private String user;
+       private Date date;
+       private Location location;
+       private List<Nested> list1 = new ArrayList<Nested>();
+
+       public String getQuery() {
+           return query;
+       }
+
+       public void setQuery(String query) {
+           this.query = query;
+       }
+
+       public String getUser() {
+           return user;
+       }
+
+       public void setUser(String user) {
+           this.user = user;
+       }
+
+       public Date getDate() {
+           return date;
+       }
+
+       public void setDate(Date date) {
+           this.date = date;
+       }
+
+       public Location getLocation() {
+           return location;
+       }
+
+       public void setLocation(Location location) {
+           this.location = location;
+       }
+
+       public List<Nested> getList1() {
+           return list1;
+       }
+
+       public void setList1(List<Nested> list1) {
+           this.list1 = list1;
+       }
+   }
+
+   public static class Location {
+       private String city;
+
+       public String getCity() {
+           return city;
+       }
+
+       public void setCity(String city) {
+           this.city = city;
+       }
+
+       public String toString() {
+           return "in " + city;
+       }
+   }
+
+   public static class Nested {
+       private long val1;
+       private double val2;
+
+       public long getVal1() {
+           return val1;
+       }
+
+       public void setVal1(long val1) {
+           this.val1 = val1;
+       }
+
+       public double getVal2() {
+           return val2;
+       }
+
+       public void setVal2(double val2) {
+           this.val2 = val2;
+       }
+   }
+
+   private static TopLevel createEvent() {
+       TopLevel event = new TopLevel();
+       event.setQuery("Hello there");
+       event.setUser("spitzer");
+       event.setDate(new Date(1234567890000L));
+       Location location = new Location();
+       location.setCity("Sunnyvale");
+       event.setLocation(location);
+       for (int i = 0; i < 4; i++) {
+           Nested nested = new Nested();
+           nested.setVal1(i + 77);
+           nested.setVal2(i / 10.7);
+           event.getList1().add(nested);
+       }
+       return event;
+   }
+
+   private static List<List<String>> parse(String... keys) {
+       List<List<String>> keyNames = new ArrayList<List<String>>();
+       for (String key : keys) {
+           List<String> keyNameElements = new ArrayList<String>();
+           StringTokenizer st = new StringTokenizer(key, "/");
+           while (st.hasMoreTokens()) {
+               keyNameElements.add(st.nextToken());
+           }
+           keyNames.add(keyNameElements);
+       }
+       return keyNames;
+   }
+
+   /**
+    * Verifies flat, nested, list and missing keys against the reflective
+    * key extraction the partitioner used before key extractors
+    */
+   @Test
+   public void testAgainstReflectivePartitioner() {
+       TopLevel event = createEvent();
+       String[][] keySets = {
+               // flat
+               { "query" }, { "user" }, { "query", "user" },
+               // nested, including single keys with a schema of their own
+               { "location/city" }, { "location/city", "query" },
+               { "date" }, { "location" },
+               // lists, including a single list key used as a whole
+               { "list1/val1" }, { "list1/val1", "list1/val2", "query" },
+               { "list1" },
+               // missing
+               { "nosuch" }, { "query", "nosuch" }, { "list1/nosuch" },
+               { "location/nosuch" } };
+
+       for (String[] keys : keySets) {
+           List<List<String>> keyNames = parse(keys);
+           List<CompoundKeyInfo> expected = reflectivePartition(event,
+                                                                keyNames,
+                                                                ":");
+           KeyExtractor extractor = KeyExtractor.getExtractor(TopLevel.class,
+                                                              keyNames);
+           List<CompoundKeyInfo> actual = (extractor == null) ? null
+                   : extractor.getCompoundKeyInfos(event, ":");
+           assertSame(keyNames.toString(), expected, actual);
+       }
+   }
+
+   /**
+    * Verifies that a null value yields no compound keys, as it did before
+    */
+   @Test
+   public void testNullValue() {
+       TopLevel event = createEvent();
+       event.setUser(null);
+       event.setLocation(null);
+       String[][] keySets = { { "user" }, { "query", "user" },
+               { "location" }, { "location/city" } };
+       for (String[] keys : keySets) {
+           List<List<String>> keyNames = parse(keys);
+           assertNull(reflectivePartition(event, keyNames, ":"));
+           KeyExtractor extractor = KeyExtractor.getExtractor(TopLevel.class,
+                                                              keyNames);
+           assertNotNull(extractor);
+           assertNull(extractor.getCompoundKeyInfos(event, ":"));
+       }
+   }
+
+   /**
+    * Verifies that the values of a single key with a schema of its own are
+    * found again by getKeyValues
+    */
+   @Test
+   public void testKeyValuesOfWholeValue() {
+       TopLevel event = createEvent();
+       KeyExtractor extractor = KeyExtractor.getExtractor(TopLevel.class,
+                                                          "date");
+       CompoundKeyInfo compoundKeyInfo = extractor.getCompoundKeyInfos(event,
+                                                                       ":")
+                                                  .get(0);
+       List<Object> values = new ArrayList<Object>();
+       List<Object> records = new ArrayList<Object>();
+       assertEquals(true, extractor.getKeyValues(event,
+                                                 compoundKeyInfo,
+                                                 values,
+                                                 records));
+       assertEquals(1, values.size());
+       assertEquals(event.getDate(), values.get(0));
+       assertEquals(event, records.get(0));
+   }
+
+   private static void assertSame(String message,
+                                  List<CompoundKeyInfo> expected,
+                                  List<CompoundKeyInfo> actual) {
+       if (expected == null) {
+           assertNull(message, actual);
+           return;
+       }
+       assertNotNull(message, actual);
+       assertEquals(message, expected.size(), actual.size());
+       for (int i = 0; i < expected.size(); i++) {
+           assertEquals(message,
+                        expected.get(i).getCompoundValue(),
+                        actual.get(i).getCompoundValue());
+           List<KeyInfo> expectedKeyInfos = expected.get(i).getKeyInfoList();
+           List<KeyInfo> actualKeyInfos = actual.get(i).getKeyInfoList();
+           assertEquals(message,
+                        expectedKeyInfos.size(),
+                        actualKeyInfos.size());
+           for (int j = 0; j < expectedKeyInfos.size(); j++) {
+               assertEquals(message,
+                            expectedKeyInfos.get(j).toString(true),
+                            actualKeyInfos.get(j).toString(true));
+               assertEquals(message,
+                            expectedKeyInfos.get(j).getValue(),
+                            actualKeyInfos.get(j).getValue());
+           }
+       }
+   }
+
+   // the key extraction of DefaultPartitioner.partition before key
+   // extractors, less hashing
+   private static List<CompoundKeyInfo> reflectivePartition(Object event,
+                                                            List<List<String>> compoundKeyNames,
+                                                            String delimiter) {
+       Schema schema = SchemaContainer.lookup(event.getClass());
+       List<CompoundKeyInfo> partitionInfoList = new ArrayList<CompoundKeyInfo>();
+
+       // fast path for single top-level key
+       if (compoundKeyNames.size() == 1 && compoundKeyNames.get(0).size() == 1) {
+           String simpleKeyName = compoundKeyNames.get(0).get(0);
+           KeyInfo keyInfo = new KeyInfo();
+           Property property = schema.getProperties().get(simpleKeyName);
+           if (property == null) {
+               return null;
+           }
+           Object value = null;
+           try {
+               value = property.getGetterMethod().invoke(event);
+           } catch (Exception e) {
+           }
+           if (value == null) {
+               return null;
+           }
+           keyInfo.addElementToPath(simpleKeyName);
+           String stringValue = String.valueOf(value);
+           keyInfo.setValue(stringValue);
+           CompoundKeyInfo partitionInfo = new CompoundKeyInfo();
+           partitionInfo.addKeyInfo(keyInfo);
+           partitionInfo.setCompoundValue(stringValue);
+           partitionInfoList.add(partitionInfo);
+           return partitionInfoList;
+       }
+
+       List<List<KeyInfo>> valueLists = new ArrayList<List<KeyInfo>>();
+       int maxSize = 0;
+       for (List<String> simpleKeyPath : compoundKeyNames) {
+           List<KeyInfo> keyInfoList = getKeyValues(event,
+                                                    schema,
+                                                    simpleKeyPath,
+                                                    0,
+                                                    new ArrayList<KeyInfo>(),
+                                                    new KeyInfo());
+           if (keyInfoList == null || keyInfoList.size() == 0) {
+               return null;
+           }
+           valueLists.add(keyInfoList);
+           maxSize = Math.max(maxSize, keyInfoList.size());
+       }
+
+       for (int i = 0; i < maxSize; i++) {
+           String compoundValue = "";
+           CompoundKeyInfo partitionInfo = new CompoundKeyInfo();
+           for (List<KeyInfo> keyInfoList : valueLists) {
+               KeyInfo keyInfo = keyInfoList.get(Math.min(i,
+                                                          keyInfoList.size() - 1));
+               compoundValue += (compoundValue.length() > 0 ? delimiter : "")
+                       + keyInfo.getValue();
+               partitionInfo.addKeyInfo(keyInfo);
+           }
+           partitionInfo.setCompoundValue(compoundValue);
+           partitionInfoList.add(partitionInfo);
+       }
+       return partitionInfoList;
+   }
+
+   private static List<KeyInfo> getKeyValues(Object record, Schema schema,
+                                             List<String> keyNameElements,
+                                             int elementIndex,
+                                             List<KeyInfo> keyInfoList,
+                                             KeyInfo keyInfo) {
+       String keyElement = keyNameElements.get(elementIndex);
+       Property property = schema.getProperties().get(keyElement);
+       if (property == null) {
+           return null;
+       }
+
+       keyInfo.addElementToPath(keyElement);
+
+       Object value = null;
+       try {
+           value = property.getGetterMethod().invoke(record);
+       } catch (Exception e) {
+       }
+
+       if (value == null) {
+           return null;
+       }
+       if (property.isList()) {
+           List<?> list = (List<?>) value;
+           Schema componentSchema = property.getComponentProperty()
+                                            .getSchema();
+           for (int i = 0; i < list.size(); i++) {
+               KeyInfo keyInfoForListEntry = keyInfo.copy();
+               keyInfoForListEntry.addElementToPath(i);
+               if (getKeyValues(list.get(i),
+                                componentSchema,
+                                keyNameElements,
+                                elementIndex + 1,
+                                keyInfoList,
+                                keyInfoForListEntry) == null) {
+                   return null;
+               }
+           }
+       } else if (property.getSchema() != null) {
+           return getKeyValues(value,
+                               property.getSchema(),
+                               keyNameElements,
+                               elementIndex + 1,
+                               keyInfoList,
+                               keyInfo);
+       } else {
+           keyInfo.setValue(String.valueOf(value));
+           keyInfoList.add(keyInfo);
+       }
+       return keyInfoList;
+   }
+}
@@ -0,0 +1,124 @@
+package io.s4.persist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.s4.util.clock.DrivenClock;
+
+import org.junit.Test;
+
+public class TestConMapPersister
+{
+   /**
+    * Verifies that a sweep removes only the entries whose period has passed
+    */
+   @Test
+   public void testCleanOutGarbage() throws Exception {
+       DrivenClock clock = new DrivenClock();
+       clock.updateTime(10000);
+       ConMapPersister persister = new ConMapPersister(clock);
+       persister.init();
+       for (int i = 0; i < 100; i++) {
+           persister.set("short" + i, i, 5);
+           persister.set("long" + i, i, 60);
+       }
+       persister.set("forever", "value", 0);
+
+       clock.updateTime(14000);
+       assertEquals(0, persister.cleanOutGarbage());
+       assertEquals(201, persister.getCacheEntryCount());
+
+       clock.updateTime(15000);
+       assertEquals(100, persister.cleanOutGarbage());
+       assertEquals(101, persister.getCacheEntryCount());
+       assertNull(persister.get("short0"));
+
+       clock.updateTime(1000000);
+       assertEquals(100, persister.cleanOutGarbage());
+       assertEquals(1, persister.getCacheEntryCount());
+       assertEquals("value", persister.get("forever"));
+   }
+
+   /**
+    * Verifies that setting the same value again pushes back its expiry, and
+    * that removed or replaced entries are not swept on behalf of old timers
+    */
+   @Test
+   public void testRefresh() throws Exception {
+       DrivenClock clock = new DrivenClock();
+       clock.updateTime(10000);
+       ConMapPersister persister = new ConMapPersister(clock);
+       persister.init();
+       Object value = new Object();
+       persister.set("touched", value, 5);
+       persister.set("replaced", "old", 5);
+       persister.set("removed", "value", 5);
+
+       clock.updateTime(13000);
+       persister.set("touched", value, 5);
+       persister.set("replaced", "new", 5);
+       persister.remove("removed");
+       persister.set("removed", "again", 5);
+
+       clock.updateTime(15000);
+       assertEquals(0, persister.cleanOutGarbage());
+       assertSame(value, persister.get("touched"));
+       assertEquals("new", persister.get("replaced"));
+
+       clock.updateTime(18000);
+       assertEquals(3, persister.cleanOutGarbage());
+       assertEquals(0, persister.getCacheEntryCount());
+   }
+
+   /**
+    * Verifies that touch restarts the period of a live entry only
+    */
+   @Test
+   public void testTouch() throws Exception {
+       DrivenClock clock = new DrivenClock();
+       clock.updateTime(10000);
+       ConMapPersister persister = new ConMapPersister(clock);
+       persister.init();
+       persister.set("key", "value", 5);
+       assertFalse(persister.touch("missing"));
+
+       clock.updateTime(14000);
+       assertTrue(persister.touch("key"));
+
+       clock.updateTime(18000);
+       assertEquals(0, persister.cleanOutGarbage());
+       assertEquals("value", persister.get("key"));
+
+       clock.updateTime(19000);
+       assertFalse(persister.touch("key"));
+       assertNull(persister.get("key"));
+       assertEquals(1, persister.cleanOutGarbage());
+   }
+
+   /**
+    * Verifies that replacing or removing an entry cancels its timer, so
+    * timers do not pile up for keys that are set over and over
+    */
+   @Test
+   public void testReplaceCancelsTimer() throws Exception {
+       DrivenClock clock = new DrivenClock();
+       clock.updateTime(10000);
+       ConMapPersister persister = new ConMapPersister(clock);
+       persister.init();
+       for (int i = 0; i < 1000; i++) {
+           persister.set("key", "value" + i, 60 + i % 7);
+       }
+       assertEquals(1, persister.expiryWheel.size());
+
+       persister.set("key", "forever", 0);
+       assertEquals(0, persister.expiryWheel.size());
+
+       persister.set("key", "value", 60);
+       persister.remove("key");
+       assertEquals(0, persister.expiryWheel.size());
+       assertEquals(0, persister.getCacheEntryCount());
+   }
+}
@@ -0,0 +1,215 @@
+package io.s4.persist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.s4.serialize.SerializerDeserializer;
+import io.s4.util.clock.DrivenClock;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMappedLogPersister
+{
+   private static class StringSerDeser implements SerializerDeserializer {
+       public byte[] serialize(Object message) {
+           return ((String) message).getBytes();
+       }
+
+       public Object deserialize(byte[] rawMessage) {
+           return new String(rawMessage);
+       }
+   }
+
+   private File directory;
+   private DrivenClock clock;
+
+   @Before
+   public void setUp() {
+       directory = new File(System.getProperty("java.io.tmpdir"),
+                            "test-mapped-log-persister-" + System.nanoTime());
+       clock = new DrivenClock();
+       clock.updateTime(10000);
+   }
+
+   @After
+   public void tearDown() {
+       File[] files = directory.listFiles();
+       if (files != null) {
+           for (File file : files) {
+               file.delete();
+           }
+       }
+       directory.delete();
+   }
+
+   private MappedLogPersister open(int segmentSize) {
+       MappedLogPersister persister = new MappedLogPersister(clock);
+       persister.setDirectory(directory.getPath());
+       persister.setName("persister");
+       persister.setSerDeser(new StringSerDeser());
+       persister.setSegmentSize(segmentSize);
+       persister.init();
+       return persister;
+   }
+
+   private void deleteCheckpoint() {
+       new File(directory, "persister.checkpoint").delete();
+   }
+
+   /**
+    * Verifies that entries survive a restart, with and without a checkpoint
+    */
+   @Test
+   public void testRecover() throws Exception {
+       MappedLogPersister persister = open(4096);
+       for (int i = 0; i < 100; i++) {
+           persister.set("key" + i, "value" + i, -1);
+       }
+       persister.remove("key5");
+       persister.close();
+
+       persister = open(4096);
+       persister.set("key6", "replaced", -1);
+       persister.remove("key7");
+       persister.set("key100", "value100", -1);
+       assertEquals(99, persister.getCacheEntryCount());
+
+       // records after the checkpoint are replayed
+       MappedLogPersister recovered = open(4096);
+       assertEquals(99, recovered.getCacheEntryCount());
+       assertNull(recovered.get("key5"));
+       assertNull(recovered.get("key7"));
+       assertEquals("replaced", recovered.get("key6"));
+       assertEquals("value100", recovered.get("key100"));
+       recovered.close();
+       persister.close();
+
+       deleteCheckpoint();
+       recovered = open(4096);
+       assertEquals(99, recovered.getCacheEntryCount());
+       assertNull(recovered.get("key5"));
+       assertEquals("replaced", recovered.get("key6"));
+       assertEquals("value99", recovered.get("key99"));
+       recovered.close();
+   }
+
+   /**
+    * Verifies that compaction deletes sparse segments without losing entries
+    * or bringing back removed ones
+    */
+   @Test
+   public void testCompact() throws Exception {
+       MappedLogPersister persister = open(1024);
+       for (int i = 0; i < 50; i++) {
+           persister.set("key" + i, "value" + i, -1);
+       }
+       for (int round = 0; round < 5; round++) {
+           for (int i = 10; i < 50; i++) {
+               persister.set("key" + i, "value" + i + "-" + round, -1);
+           }
+       }
+       for (int i = 0; i < 5; i++) {
+           persister.remove("key" + i);
+       }
+       int segmentCount = persister.getSegmentCount();
+       assertTrue(persister.compact() > 0);
+       assertTrue(persister.getSegmentCount() < segmentCount);
+       persister.close();
+
+       deleteCheckpoint();
+       persister = open(1024);
+       assertEquals(45, persister.getCacheEntryCount());
+       for (int i = 0; i < 5; i++) {
+           assertNull(persister.get("key" + i));
+       }
+       for (int i = 5; i < 10; i++) {
+           assertEquals("value" + i, persister.get("key" + i));
+       }
+       for (int i = 10; i < 50; i++) {
+           assertEquals("value" + i + "-4", persister.get("key" + i));
+       }
+       persister.close();
+   }
+
+   /**
+    * Verifies that entries expired while the persister was down are not
+    * recovered
+    */
+   @Test
+   public void testExpiry() throws Exception {
+       MappedLogPersister persister = open(4096);
+       persister.set("short", "value", 5);
+       persister.set("long", "value", 60);
+       clock.updateTime(14000);
+       assertTrue(persister.touch("short"));
+       persister.close();
+
+       clock.updateTime(18000);
+       persister = open(4096);
+       assertEquals("value", persister.get("short"));
+       clock.updateTime(19000);
+       assertNull(persister.get("short"));
+       assertEquals(1, persister.cleanOutGarbage());
+       assertEquals("value", persister.get("long"));
+       persister.close();
+   }
+
+   /**
+    * Verifies that an expired entry does not come back after its record is
+    * compacted away while an older record of the key remains
+    */
+   @Test
+   public void testCompactExpired() throws Exception {
+       MappedLogPersister persister = open(1024);
+       persister.set("key", "old", -1);
+       for (int i = 0; persister.getSegmentCount() < 2; i++) {
+           persister.set("live" + i, "value" + i, -1);
+       }
+       persister.set("key", "new", 5);
+       for (int i = 0; persister.getSegmentCount() < 3; i++) {
+           persister.set("short" + i, "value" + i, 5);
+       }
+       clock.updateTime(15000);
+       assertNull(persister.get("key"));
+       assertTrue(persister.cleanOutGarbage() > 0);
+       // only the segment of the expired entries is sparse
+       assertEquals(1, persister.compact());
+       persister.close();
+
+       deleteCheckpoint();
+       persister = open(1024);
+       assertNull(persister.get("key"));
+       assertEquals("value0", persister.get("live0"));
+       persister.close();
+   }
+
+   /**
+    * Verifies that init fails without a directory or a name
+    */
+   @Test
+   public void testRequiredSettings() {
+       MappedLogPersister persister = new MappedLogPersister(clock);
+       persister.setSerDeser(new StringSerDeser());
+       persister.setName("persister");
+       try {
+           persister.init();
+           fail();
+       } catch (IllegalStateException ise) {
+       }
+
+       persister = new MappedLogPersister(clock);
+       persister.setSerDeser(new StringSerDeser());
+       persister.setDirectory(directory.getPath());
+       try {
+           persister.init();
+           fail();
+       } catch (IllegalStateException ise) {
+       }
+   }
+}
@@ -0,0 +1,121 @@
+package io.s4.persist;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.s4.serialize.SerializerDeserializer;
+import io.s4.util.clock.DrivenClock;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestOffHeapPersister
+{
+   private static class JavaSerDeser implements SerializerDeserializer {
+       public byte[] serialize(Object message) {
+           try {
+               ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+               ObjectOutputStream out = new ObjectOutputStream(bytes);
+               out.writeObject(message);
+               out.close();
+               return bytes.toByteArray();
+           } catch (Exception e) {
+               throw new RuntimeException(e);
+           }
+       }
+
+       public Object deserialize(byte[] rawMessage) {
+           try {
+               return new ObjectInputStream(new ByteArrayInputStream(rawMessage)).readObject();
+           } catch (Exception e) {
+               throw new RuntimeException(e);
+           }
+       }
+   }
+
+   private static OffHeapPersister createPersister(DrivenClock clock) {
+       OffHeapPersister persister = new OffHeapPersister(clock);
+       persister.setSerDeser(new JavaSerDeser());
+       persister.setStartCapacity(16);
+       persister.setConcurrencyLevel(4);
+       persister.setSlabSize(64 * 1024);
+       persister.init();
+       return persister;
+   }
+
+   /**
+    * Verifies set, get, replace and remove across index resizes
+    */
+   @Test
+   public void testSetGetRemove() throws Exception {
+       DrivenClock clock = new DrivenClock();
+       clock.updateTime(10000);
+       OffHeapPersister persister = createPersister(clock);
+       for (int i = 0; i < 5000; i++) {
+           persister.set("key" + i, Long.valueOf(i), -1);
+       }
+       persister.set("key7", "replaced", -1);
+       for (int i = 0; i < 5000; i += 2) {
+           persister.remove("key" + i);
+       }
+
+       assertEquals(2500, persister.getCacheEntryCount());
+       assertEquals("replaced", persister.get("key7"));
+       assertNull(persister.get("key8"));
+       for (int i = 1; i < 5000; i += 2) {
+           if (i != 7) {
+               assertEquals(Long.valueOf(i), persister.get("key" + i));
+           }
+       }
+       assertArrayEquals(new JavaSerDeser().serialize(Long.valueOf(9)),
+                         (byte[]) persister.getObject("key9"));
+
+       Set<String> keys = persister.keySet();
+       assertEquals(2500, keys.size());
+       assertTrue(keys.contains("key4999"));
+       assertFalse(keys.contains("key4998"));
+   }
+
+   /**
+    * Verifies that entries expire as in the other persisters, and that
+    * their chunks are reused
+    */
+   @Test
+   public void testExpiry() throws Exception {
+       DrivenClock clock = new DrivenClock();
+       clock.updateTime(10000);
+       OffHeapPersister persister = createPersister(clock);
+       for (int i = 0; i < 1000; i++) {
+           persister.set("short" + i, "value" + i, 5);
+           persister.set("long" + i, "value" + i, 60);
+       }
+       long allocatedMemory = persister.getAllocatedMemory();
+
+       clock.updateTime(14000);
+       assertTrue(persister.touch("short0"));
+       assertFalse(persister.touch("missing"));
+
+       clock.updateTime(15000);
+       assertNull(persister.get("short1"));
+       assertFalse(persister.touch("short1"));
+       assertEquals("value0", persister.get("short0"));
+       assertEquals(999, persister.cleanOutGarbage());
+       assertEquals(1001, persister.getCacheEntryCount());
+       for (int i = 0; i < 1000; i++) {
+           assertEquals("value" + i, persister.get("long" + i));
+       }
+
+       for (int i = 1; i < 1000; i++) {
+           persister.set("short" + i, "value" + i, 5);
+       }
+       assertEquals(allocatedMemory, persister.getAllocatedMemory());
+   }
+}
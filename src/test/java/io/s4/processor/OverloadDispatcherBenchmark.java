@@ -0,0 +1,74 @@
+package io.s4.processor;
+
+/**
+ * Compares the cost of dispatching events through the generated and the
+ * reflective overload dispatchers, for a PE with eight overloads fed a mix of
+ * event classes. Run with <code>java -cp ... io.s4.processor.OverloadDispatcherBenchmark</code>.
+ */
+public class OverloadDispatcherBenchmark
+{
+   public static class E0 {}
+   public static class E1 extends E0 {}
+   public static class E2 extends E1 {}
+   public static class E3 extends E2 {}
+   public static class F0 {}
+   public static class F1 extends F0 {}
+   public static class G0 {}
+   public static class G1 extends G0 {}
+
+   public static class Target {
+       public long count;
+
+       public void processEvent(E0 event) { count += 1; }
+       public void processEvent(E1 event) { count += 2; }
+       public void processEvent(E2 event) { count += 3; }
+       public void processEvent(E3 event) { count += 4; }
+       public void processEvent(F0 event) { count += 5; }
+       public void processEvent(F1 event) { count += 6; }
+       public void processEvent(G0 event) { count += 7; }
+       public void processEvent(G1 event) { count += 8; }
+   }
+
+   private static final int ITERATIONS = 10000000;
+
+   private static long run(OverloadDispatcher dispatcher, Object[] events) {
+       Target target = new Target();
+       long startTime = System.nanoTime();
+       for (int i = 0; i < ITERATIONS; i++) {
+           dispatcher.dispatch(target, events[i & (events.length - 1)]);
+       }
+       long elapsedTime = System.nanoTime() - startTime;
+       if (target.count == 0) {
+           throw new IllegalStateException("nothing dispatched");
+       }
+       return elapsedTime;
+   }
+
+   private static void measure(String name, OverloadDispatcher dispatcher,
+                               Object[] events) {
+       // warm up, then keep the best of a few runs
+       run(dispatcher, events);
+       run(dispatcher, events);
+       long best = Long.MAX_VALUE;
+       for (int i = 0; i < 5; i++) {
+           best = Math.min(best, run(dispatcher, events));
+       }
+       System.out.println(name + ": " + ((double) best / ITERATIONS)
+               + " ns/dispatch");
+   }
+
+   public static void main(String[] args) throws Exception {
+       Object[] monomorphic = new Object[] { new E0() };
+       Object[] mixed = new Object[] { new E0(), new E1(), new E2(), new E3(),
+               new F0(), new F1(), new G0(), new G1() };
+
+       OverloadDispatcher generated = (OverloadDispatcher) new OverloadDispatcherGenerator(Target.class).generate()
+                                                                                                        .newInstance();
+       OverloadDispatcher reflective = new ReflectiveOverloadDispatcher(Target.class);
+
+       measure("generated, one event class", generated, monomorphic);
+       measure("reflective, one event class", reflective, monomorphic);
+       measure("generated, eight event classes", generated, mixed);
+       measure("reflective, eight event classes", reflective, mixed);
+   }
+}
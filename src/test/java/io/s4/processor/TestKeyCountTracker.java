@@ -0,0 +1,76 @@
+package io.s4.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import io.s4.util.SpaceSavingSketch;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestKeyCountTracker
+{
+   /**
+    * Verifies that counts from every stripe are summed per stream/key pair,
+    * and that pairs beyond the capacity are not counted
+    */
+   @Test
+   public void testCounts() {
+       KeyCountTracker tracker = new KeyCountTracker(2, 2, 0);
+       int clicksUser = tracker.getId("Clicks", "user");
+       int viewsUser = tracker.getId("Views", "user");
+       assertEquals(clicksUser, tracker.getId("Clicks", "user"));
+       assertTrue(clicksUser != viewsUser);
+       assertEquals(-1, tracker.getId("Clicks", "query"));
+       assertEquals(-1, tracker.getId("Clicks", "query"));
+
+       for (int i = 0; i < 30; i++) {
+           tracker.record(i % 2, clicksUser, "u" + i);
+       }
+       tracker.record(0, viewsUser, null);
+       tracker.record(1, -1, "q");
+
+       Map<String, Long> counts = tracker.getCounts();
+       assertEquals(2, counts.size());
+       assertEquals(Long.valueOf(30), counts.get("Clicks user"));
+       assertEquals(Long.valueOf(1), counts.get("Views user"));
+       assertTrue(tracker.getTopKeys().isEmpty());
+   }
+
+   /**
+    * Verifies that the top keys merge the sketches of the stripes, highest
+    * count first, truncated to the configured number of keys
+    */
+   @Test
+   public void testTopKeys() {
+       KeyCountTracker tracker = new KeyCountTracker(2, 10, 3);
+       int id = tracker.getId("Clicks", "user");
+       tracker.getId("Views", "user");
+
+       // key values are sharded: each value only ever goes to one stripe
+       String[] values = { "alice", "bob", "carol", "dave", "erin" };
+       int[] occurrences = { 50, 5, 40, 20, 1 };
+       for (int v = 0; v < values.length; v++) {
+           for (int i = 0; i < occurrences[v]; i++) {
+               tracker.record(v % 2, id, values[v]);
+           }
+       }
+
+       Map<String, List<SpaceSavingSketch.Counter>> topKeys = tracker.getTopKeys();
+       // no values were recorded for views
+       assertFalse(topKeys.containsKey("Views user"));
+       List<SpaceSavingSketch.Counter> top = topKeys.get("Clicks user");
+       assertEquals(3, top.size());
+       assertEquals("alice", top.get(0).getKey());
+       assertEquals(50, top.get(0).getCount());
+       assertEquals("carol", top.get(1).getKey());
+       assertEquals(40, top.get(1).getCount());
+       assertEquals("dave", top.get(2).getKey());
+       assertEquals(20, top.get(2).getCount());
+       for (SpaceSavingSketch.Counter counter : top) {
+           assertEquals(0, counter.getError());
+       }
+   }
+}
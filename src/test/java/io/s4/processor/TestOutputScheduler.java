@@ -0,0 +1,169 @@
+package io.s4.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.s4.util.clock.DrivenClock;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestOutputScheduler
+{
+   public static class CountingPE extends AbstractPE {
+       private String id;
+       private Semaphore outputs;
+
+       public CountingPE(String id, Semaphore outputs) {
+           this.id = id;
+           this.outputs = outputs;
+       }
+
+       public void processEvent(Object event) {
+       }
+
+       public String getId() {
+           return id;
+       }
+
+       public void output() {
+           outputs.release();
+       }
+   }
+
+   /**
+    * Verifies that every PE of a prototype outputs once per boundary of a
+    * driven clock
+    */
+   @Test
+   public void testBoundaries() throws Exception {
+       DrivenClock clock = new DrivenClock();
+       clock.updateTime(1000);
+       Semaphore outputs = new Semaphore(0);
+       CountingPE prototype = new CountingPE("counter", outputs);
+       OutputScheduler scheduler = new OutputScheduler();
+       prototype.setOutputScheduler(scheduler);
+       prototype.setOutputFrequencyByTimeBoundary(10);
+       // setting the clock again must not schedule the prototype twice
+       prototype.setS4Clock(clock);
+       prototype.setS4Clock(clock);
+
+       PrototypeWrapper prototypeWrapper = new PrototypeWrapper(prototype, clock);
+       prototypeWrapper.getPE("a");
+       prototypeWrapper.getPE("b");
+
+       // let the timer thread compute the first boundary
+       Thread.sleep(200);
+       clock.updateTime(9999);
+       assertEquals(0, outputs.availablePermits());
+
+       clock.updateTime(10000);
+       assertTrue(outputs.tryAcquire(2, 5, TimeUnit.SECONDS));
+       // an output still running when the next boundary comes is skipped
+       Thread.sleep(200);
+       clock.updateTime(35000);
+       assertTrue(outputs.tryAcquire(2, 5, TimeUnit.SECONDS));
+       Thread.sleep(200);
+       assertEquals(0, outputs.availablePermits());
+   }
+
+   /**
+    * Verifies that a boundary earlier than the one the timer waits for is
+    * still output on time
+    */
+   @Test
+   public void testEarlierRegistration() throws Exception {
+       DrivenClock clock = new DrivenClock();
+       clock.updateTime(1000);
+       OutputScheduler scheduler = new OutputScheduler();
+
+       Semaphore slowOutputs = new Semaphore(0);
+       CountingPE slow = new CountingPE("slow", slowOutputs);
+       slow.setOutputScheduler(scheduler);
+       slow.setOutputFrequencyByTimeBoundary(100);
+       slow.setS4Clock(clock);
+       new PrototypeWrapper(slow, clock).getPE("a");
+       // the timer now waits for 100000
+       Thread.sleep(200);
+
+       Semaphore fastOutputs = new Semaphore(0);
+       CountingPE fast = new CountingPE("fast", fastOutputs);
+       fast.setOutputScheduler(scheduler);
+       fast.setOutputFrequencyByTimeBoundary(10);
+       fast.setS4Clock(clock);
+       new PrototypeWrapper(fast, clock).getPE("a");
+       Thread.sleep(200);
+
+       clock.updateTime(10000);
+       assertTrue(fastOutputs.tryAcquire(1, 5, TimeUnit.SECONDS));
+       Thread.sleep(200);
+       clock.updateTime(100000);
+       assertTrue(slowOutputs.tryAcquire(1, 5, TimeUnit.SECONDS));
+       assertTrue(fastOutputs.tryAcquire(1, 5, TimeUnit.SECONDS));
+   }
+
+   /**
+    * Verifies that a prototype pausing between outputs does not hold up the
+    * output of another prototype, and resumes its own afterwards
+    */
+   @Test
+   public void testPause() throws Exception {
+       DrivenClock clock = new DrivenClock();
+       clock.updateTime(1000);
+       OutputScheduler scheduler = new OutputScheduler();
+       scheduler.setPoolSize(1);
+
+       Semaphore pausingOutputs = new Semaphore(0);
+       CountingPE pausing = new CountingPE("pausing", pausingOutputs);
+       pausing.setOutputScheduler(scheduler);
+       pausing.setOutputFrequencyByTimeBoundary(10);
+       pausing.setOutputsBeforePause(1);
+       pausing.setPauseTimeInMillis(1500);
+       pausing.setS4Clock(clock);
+       PrototypeWrapper pausingWrapper = new PrototypeWrapper(pausing, clock);
+       pausingWrapper.getPE("a");
+       pausingWrapper.getPE("b");
+       pausingWrapper.getPE("c");
+
+       Semaphore otherOutputs = new Semaphore(0);
+       CountingPE other = new CountingPE("other", otherOutputs);
+       other.setOutputScheduler(scheduler);
+       other.setOutputFrequencyByTimeBoundary(10);
+       other.setOutputFrequencyOffset(1);
+       other.setS4Clock(clock);
+       new PrototypeWrapper(other, clock).getPE("a");
+       Thread.sleep(200);
+
+       clock.updateTime(10000);
+       assertTrue(pausingOutputs.tryAcquire(1, 5, TimeUnit.SECONDS));
+       // the only pool thread is free while the first prototype pauses
+       clock.updateTime(11000);
+       assertTrue(otherOutputs.tryAcquire(1, 1000, TimeUnit.MILLISECONDS));
+       assertEquals(0, pausingOutputs.availablePermits());
+       assertTrue(pausingOutputs.tryAcquire(2, 5, TimeUnit.SECONDS));
+   }
+
+   /**
+    * Verifies that staggered offsets depend only on the prototype id, and
+    * are whole seconds within the period
+    */
+   @Test
+   public void testStaggerOffsets() {
+       OutputScheduler scheduler = new OutputScheduler();
+       scheduler.setStaggerOffsets(true);
+       scheduler.setMaxStaggerSeconds(30);
+
+       CountingPE prototype = new CountingPE("counter", null);
+       long offset = scheduler.getOffsetInMillis(prototype, 3600 * 1000);
+       assertEquals(offset, scheduler.getOffsetInMillis(new CountingPE("counter", null),
+                                                        3600 * 1000));
+       assertEquals(0, offset % 1000);
+       assertTrue(offset < 30 * 1000);
+       assertTrue(scheduler.getOffsetInMillis(prototype, 10 * 1000) < 10 * 1000);
+
+       // configured offsets are kept
+       prototype.setOutputFrequencyOffset(7);
+       assertEquals(7000, scheduler.getOffsetInMillis(prototype, 3600 * 1000));
+   }
+}
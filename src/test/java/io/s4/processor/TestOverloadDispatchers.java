@@ -0,0 +1,62 @@
+package io.s4.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class TestOverloadDispatchers
+{
+   public static class Event {}
+   public static class SubEvent extends Event {}
+   public static class SubSubEvent extends SubEvent {}
+   public static class OtherEvent {}
+
+   public static class Target {
+       public String called;
+
+       public void processEvent(Event event) {
+           called = "Event";
+       }
+
+       public void processEvent(SubEvent event) {
+           called = "SubEvent";
+       }
+   }
+
+   private void verify(OverloadDispatcher dispatcher) {
+       Target target = new Target();
+       dispatcher.dispatch(target, new Event());
+       assertEquals("Event", target.called);
+       dispatcher.dispatch(target, new SubEvent());
+       assertEquals("SubEvent", target.called);
+       dispatcher.dispatch(target, new SubSubEvent());
+       assertEquals("SubEvent", target.called);
+
+       target.called = null;
+       dispatcher.dispatch(target, new OtherEvent());
+       assertNull(target.called);
+       dispatcher.dispatch(target, null);
+       assertNull(target.called);
+   }
+
+   /**
+    * Verifies that both dispatcher backends pick the most specific overload
+    */
+   @Test
+   public void testDispatch() throws Exception {
+       verify((OverloadDispatcher) new OverloadDispatcherGenerator(Target.class).generate()
+                                                                                .newInstance());
+       verify(new ReflectiveOverloadDispatcher(Target.class));
+   }
+
+   /**
+    * Verifies that dispatchers are generated once per target class
+    */
+   @Test
+   public void testCache() {
+       assertSame(OverloadDispatcherGenerator.getDispatcher(Target.class),
+                  OverloadDispatcherGenerator.getDispatcher(Target.class));
+   }
+}
@@ -0,0 +1,501 @@
+package io.s4.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.s4.collector.EventWrapper;
+import io.s4.dispatcher.partitioner.CompoundKeyInfo;
+import io.s4.serialize.SerializerDeserializer;
+import io.s4.util.LatencyHistogram;
+import io.s4.util.clock.WallClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPEContainer
+{
+   public static class Event {
+       private String key;
+       private int sequence;
+
+       public Event(String key, int sequence) {
+           this.key = key;
+           this.sequence = sequence;
+       }
+
+       public String getKey() {
+           return key;
+       }
+
+       public int getSequence() {
+           return sequence;
+       }
+   }
+
+   public static class RecordingPE extends AbstractPE {
+       static Map<String, List<Integer>> sequences = new ConcurrentHashMap<String, List<Integer>>();
+       static Map<String, Set<String>> threads = new ConcurrentHashMap<String, Set<String>>();
+       static volatile CountDownLatch gate;
+
+       public void processEvent(Event event) {
+           if (gate != null) {
+               try {
+                   gate.await();
+               } catch (InterruptedException ie) {
+                   Thread.currentThread().interrupt();
+               }
+           }
+           // only the owning worker runs a PE instance, so no locking
+           List<Integer> keySequences = sequences.get(event.getKey());
+           if (keySequences == null) {
+               keySequences = new ArrayList<Integer>();
+               sequences.put(event.getKey(), keySequences);
+               threads.put(event.getKey(), new HashSet<String>());
+           }
+           keySequences.add(event.getSequence());
+           threads.get(event.getKey()).add(Thread.currentThread().getName());
+       }
+
+       public String getId() {
+           return "RecordingPE";
+       }
+
+       public void output() {
+       }
+   }
+
+   /**
+    * Records, per PE id, the events it processed and the threads that ran it,
+    * and holds it while its gate is closed
+    */
+   public static class GroupPE extends AbstractPE {
+       static Map<String, List<Event>> events = new ConcurrentHashMap<String, List<Event>>();
+       static Map<String, Set<String>> threads = new ConcurrentHashMap<String, Set<String>>();
+       static Map<String, CountDownLatch> gates = new ConcurrentHashMap<String, CountDownLatch>();
+       private String id;
+
+       public GroupPE(String id) {
+           this.id = id;
+           events.put(id, Collections.synchronizedList(new ArrayList<Event>()));
+           threads.put(id, Collections.synchronizedSet(new HashSet<String>()));
+           setKeys(new String[] { "Stream key" });
+       }
+
+       public void processEvent(Event event) {
+           CountDownLatch gate = gates.get(id);
+           if (gate != null) {
+               try {
+                   gate.await();
+               } catch (InterruptedException ie) {
+                   Thread.currentThread().interrupt();
+               }
+           }
+           events.get(id).add(event);
+           threads.get(id).add(Thread.currentThread().getName());
+       }
+
+       public String getId() {
+           return id;
+       }
+
+       public void output() {
+       }
+   }
+
+   /**
+    * Hands out small handles for events, and returns a fresh copy of the
+    * wrapper and event on deserialization, so nothing but the bytes survives
+    * the spill log
+    */
+   private static class HandleSerDeser implements SerializerDeserializer {
+       private Map<Integer, EventWrapper> wrappers = new ConcurrentHashMap<Integer, EventWrapper>();
+       private int nextHandle = 0;
+
+       public synchronized byte[] serialize(Object message) {
+           int handle = nextHandle++;
+           wrappers.put(handle, (EventWrapper) message);
+           return new byte[] { (byte) (handle >>> 24), (byte) (handle >>> 16),
+                   (byte) (handle >>> 8), (byte) handle };
+       }
+
+       public Object deserialize(byte[] rawMessage) {
+           int handle = ((rawMessage[0] & 0xff) << 24)
+                   | ((rawMessage[1] & 0xff) << 16)
+                   | ((rawMessage[2] & 0xff) << 8) | (rawMessage[3] & 0xff);
+           EventWrapper eventWrapper = wrappers.remove(handle);
+           Event event = (Event) eventWrapper.getEvent();
+           return new EventWrapper(eventWrapper.getStreamName(),
+                                   new Event(event.getKey(),
+                                             event.getSequence()),
+                                   eventWrapper.getCompoundKeys());
+       }
+   }
+
+   @Before
+   public void setUp() {
+       RecordingPE.sequences.clear();
+       RecordingPE.threads.clear();
+       RecordingPE.gate = null;
+       GroupPE.events.clear();
+       GroupPE.threads.clear();
+       GroupPE.gates.clear();
+   }
+
+   private static EventWrapper wrap(Event event) {
+       return wrap("Stream", event);
+   }
+
+   private static EventWrapper wrap(String streamName, Event event) {
+       CompoundKeyInfo compoundKeyInfo = new CompoundKeyInfo();
+       compoundKeyInfo.setCompoundKey("key");
+       compoundKeyInfo.setCompoundValue(event.getKey());
+       List<CompoundKeyInfo> compoundKeys = new ArrayList<CompoundKeyInfo>();
+       compoundKeys.add(compoundKeyInfo);
+       return new EventWrapper(streamName, event, compoundKeys);
+   }
+
+   /**
+    * Verifies that the events of a key are all processed by one worker, in
+    * the order they were queued, and that shutdown waits for every worker
+    * to process the events already queued
+    */
+   @Test
+   public void testShardingAndShutdown() throws Exception {
+       RecordingPE prototype = new RecordingPE();
+       prototype.setKeys(new String[] { "Stream key" });
+
+       PEContainer container = new PEContainer();
+       container.setS4Clock(new WallClock());
+       container.setWorkerCount(4);
+       container.setMaxQueueSize(100000);
+       container.addProcessor(prototype);
+       container.init();
+
+       int keyCount = 20;
+       int eventCount = 500;
+       for (int i = 0; i < eventCount; i++) {
+           for (int k = 0; k < keyCount; k++) {
+               container.queueWork(wrap(new Event("key" + k, i)));
+           }
+       }
+       container.shutdown();
+
+       assertEquals(keyCount, RecordingPE.sequences.size());
+       Set<String> allThreads = new HashSet<String>();
+       for (int k = 0; k < keyCount; k++) {
+           List<Integer> keySequences = RecordingPE.sequences.get("key" + k);
+           assertEquals(eventCount, keySequences.size());
+           for (int i = 0; i < eventCount; i++) {
+               assertEquals(i, keySequences.get(i).intValue());
+           }
+           Set<String> keyThreads = RecordingPE.threads.get("key" + k);
+           assertEquals(1, keyThreads.size());
+           allThreads.addAll(keyThreads);
+       }
+       assertTrue(allThreads.size() > 1);
+       assertEquals(0, container.getQueueSize());
+   }
+
+   /**
+    * Verifies that events spilled while the queue is full are processed in
+    * order, and keep their enqueue time so they are counted in the queue
+    * wait histogram
+    */
+   @Test
+   public void testSpill() throws Exception {
+       RecordingPE prototype = new RecordingPE();
+       prototype.setKeys(new String[] { "Stream key" });
+
+       PEContainer container = new PEContainer();
+       container.setS4Clock(new WallClock());
+       container.setWorkerCount(1);
+       container.setMaxQueueSize(10);
+       container.setOverflowPolicy("spill");
+       container.setSpillLogSize(64 * 1024);
+       container.setSerDeser(new HandleSerDeser());
+       container.addProcessor(prototype);
+       container.init();
+
+       // hold the worker on the first event, so the rest overflow the queue
+       RecordingPE.gate = new CountDownLatch(1);
+       int eventCount = 1000;
+       try {
+           for (int i = 0; i < eventCount; i++) {
+               container.queueWork(wrap(new Event("spilled", i)));
+           }
+           assertTrue(container.getQueueSize() > 10);
+       } finally {
+           RecordingPE.gate.countDown();
+       }
+       container.shutdown();
+       RecordingPE.gate = null;
+
+       List<Integer> keySequences = RecordingPE.sequences.get("spilled");
+       assertEquals(eventCount, keySequences.size());
+       for (int i = 0; i < eventCount; i++) {
+           assertEquals(i, keySequences.get(i).intValue());
+       }
+       assertEquals(eventCount, container.getQueueWaitHistogram().getCount());
+       assertEquals(eventCount, container.getContainerTimeHistogram()
+                                         .getCount());
+   }
+
+   /**
+    * Verifies that with batches, every event is processed exactly once and
+    * the events of a key in the order they were queued
+    */
+   @Test
+   public void testBatch() throws Exception {
+       RecordingPE prototype = new RecordingPE();
+       prototype.setKeys(new String[] { "Stream key" });
+
+       PEContainer container = new PEContainer();
+       container.setS4Clock(new WallClock());
+       container.setWorkerCount(2);
+       container.setBatchSize(16);
+       container.setMaxQueueSize(100000);
+       container.addProcessor(prototype);
+       container.init();
+
+       // hold the workers, so the events pile up and are taken in batches
+       RecordingPE.gate = new CountDownLatch(1);
+       int keyCount = 10;
+       int eventCount = 300;
+       try {
+           for (int i = 0; i < eventCount; i++) {
+               for (int k = 0; k < keyCount; k++) {
+                   container.queueWork(wrap(new Event("key" + k, i)));
+               }
+           }
+       } finally {
+           RecordingPE.gate.countDown();
+       }
+       container.shutdown();
+
+       assertEquals(keyCount, RecordingPE.sequences.size());
+       for (int k = 0; k < keyCount; k++) {
+           List<Integer> keySequences = RecordingPE.sequences.get("key" + k);
+           assertEquals(eventCount, keySequences.size());
+           for (int i = 0; i < eventCount; i++) {
+               assertEquals(i, keySequences.get(i).intValue());
+           }
+       }
+       assertEquals(keyCount * eventCount, container.getContainerTimeHistogram()
+                                                    .getCount());
+   }
+
+   /**
+    * Verifies that a control event is processed before the data events
+    * queued ahead of it
+    */
+   @Test
+   public void testControlEventFirst() throws Exception {
+       RecordingPE prototype = new RecordingPE();
+       prototype.setKeys(new String[] { "Stream key" });
+
+       // the number of data events processed when the control event is
+       final List<Integer> processedBefore = new ArrayList<Integer>();
+       PEContainer container = new PEContainer();
+       container.setS4Clock(new WallClock());
+       container.setMaxQueueSize(1000);
+       container.setControlEventProcessor(new ControlEventProcessor() {
+           public void process(EventWrapper e, PrototypeWrapper p) {
+               List<Integer> keySequences = RecordingPE.sequences.get("data");
+               processedBefore.add(keySequences == null ? 0
+                       : keySequences.size());
+           }
+       });
+       container.addProcessor(prototype);
+       container.init();
+
+       RecordingPE.gate = new CountDownLatch(1);
+       int eventCount = 100;
+       try {
+           for (int i = 0; i < eventCount; i++) {
+               container.queueWork(wrap(new Event("data", i)));
+           }
+           // wait for the worker to block on the first event
+           long deadline = System.currentTimeMillis() + 5000;
+           while (container.getQueueSize() > eventCount - 1
+                   && System.currentTimeMillis() < deadline) {
+               Thread.sleep(1);
+           }
+           assertEquals(eventCount - 1, container.getQueueSize());
+           container.queueWork(new EventWrapper("#control",
+                                                "request",
+                                                new ArrayList<CompoundKeyInfo>()));
+       } finally {
+           RecordingPE.gate.countDown();
+       }
+       container.shutdown();
+
+       assertEquals(1, processedBefore.size());
+       assertEquals(1, processedBefore.get(0).intValue());
+       assertEquals(eventCount, RecordingPE.sequences.get("data").size());
+   }
+
+   private PEContainer createContainer() {
+       PEContainer container = new PEContainer();
+       container.setS4Clock(new WallClock());
+       container.setMaxQueueSize(100000);
+       container.setSerDeser(new HandleSerDeser());
+       return container;
+   }
+
+   /**
+    * Verifies that isolated prototypes run on their own threads, each on its
+    * own copy of the events
+    */
+   @Test
+   public void testIsolatePrototypes() throws Exception {
+       PEContainer container = createContainer();
+       container.setIsolatePrototypes(true);
+       container.addProcessor(new GroupPE("A"));
+       container.addProcessor(new GroupPE("B"));
+       container.init();
+
+       int eventCount = 1000;
+       for (int i = 0; i < eventCount; i++) {
+           container.queueWork(wrap(new Event("key" + (i % 10), i)));
+       }
+       container.shutdown();
+
+       assertEquals(eventCount, GroupPE.events.get("A").size());
+       assertEquals(eventCount, GroupPE.events.get("B").size());
+       assertEquals(Collections.singleton("PEContainer-A"),
+                    GroupPE.threads.get("A"));
+       assertEquals(Collections.singleton("PEContainer-B"),
+                    GroupPE.threads.get("B"));
+
+       Map<Event, Boolean> seenByA = new IdentityHashMap<Event, Boolean>();
+       for (Event event : GroupPE.events.get("A")) {
+           seenByA.put(event, true);
+       }
+       for (Event event : GroupPE.events.get("B")) {
+           assertFalse(seenByA.containsKey(event));
+       }
+   }
+
+   /**
+    * Verifies that prototypes run in the workers of their configured group,
+    * and unassigned ones in the default group
+    */
+   @Test
+   public void testPrototypeGroups() throws Exception {
+       PEContainer container = createContainer();
+       Map<String, String> prototypeGroups = new HashMap<String, String>();
+       prototypeGroups.put("A", "shared");
+       prototypeGroups.put("B", "shared");
+       container.setPrototypeGroups(prototypeGroups);
+       Map<String, Integer> groupWorkerCounts = new HashMap<String, Integer>();
+       groupWorkerCounts.put("shared", 3);
+       container.setGroupWorkerCounts(groupWorkerCounts);
+       container.addProcessor(new GroupPE("A"));
+       container.addProcessor(new GroupPE("B"));
+       container.addProcessor(new GroupPE("C"));
+       container.init();
+
+       int eventCount = 1000;
+       for (int i = 0; i < eventCount; i++) {
+           container.queueWork(wrap(new Event("key" + (i % 20), i)));
+       }
+       container.shutdown();
+
+       for (String id : new String[] { "A", "B" }) {
+           assertEquals(eventCount, GroupPE.events.get(id).size());
+           Set<String> groupThreads = GroupPE.threads.get(id);
+           assertTrue(groupThreads.size() > 1);
+           for (String thread : groupThreads) {
+               assertTrue(thread.matches("PEContainer-shared-[0-2]"));
+           }
+       }
+       assertEquals(eventCount, GroupPE.events.get("C").size());
+       assertEquals(Collections.singleton("PEContainer"),
+                    GroupPE.threads.get("C"));
+   }
+
+   /**
+    * Verifies that events no prototype is interested in are still processed
+    * by the default group, and only by it
+    */
+   @Test
+   public void testDefaultGroupRouting() throws Exception {
+       PEContainer container = createContainer();
+       container.setIsolatePrototypes(true);
+       container.addProcessor(new GroupPE("A"));
+       container.init();
+
+       int eventCount = 100;
+       for (int i = 0; i < eventCount; i++) {
+           container.queueWork(wrap("Other", new Event("key", i)));
+       }
+       container.shutdown();
+
+       Map<String, LatencyHistogram> histograms = container.getContainerTimeHistogramsByGroup();
+       assertEquals(eventCount, histograms.get("default").getCount());
+       assertEquals(0, histograms.get("A").getCount());
+       assertEquals(0, GroupPE.events.get("A").size());
+   }
+
+   /**
+    * Verifies that a group whose queue is full drops its events without
+    * holding up another group
+    */
+   @Test
+   public void testGroupDropIsolation() throws Exception {
+       PEContainer container = createContainer();
+       container.setIsolatePrototypes(true);
+       container.setMaxQueueSize(10);
+       container.addProcessor(new GroupPE("A"));
+       container.addProcessor(new GroupPE("B"));
+       container.init();
+
+       GroupPE.gates.put("A", new CountDownLatch(1));
+       int eventCount = 100;
+       try {
+           for (int i = 0; i < eventCount; i++) {
+               container.queueWork(wrap(new Event("key", i)));
+               // let B keep up, so only A's queue fills
+               long deadline = System.currentTimeMillis() + 5000;
+               while (GroupPE.events.get("B").size() <= i
+                       && System.currentTimeMillis() < deadline) {
+                   Thread.sleep(1);
+               }
+           }
+           assertEquals(eventCount, GroupPE.events.get("B").size());
+       } finally {
+           GroupPE.gates.get("A").countDown();
+       }
+       container.shutdown();
+
+       int processedByA = GroupPE.events.get("A").size();
+       assertTrue(processedByA > 0);
+       assertTrue(processedByA <= 11);
+       assertEquals(eventCount, GroupPE.events.get("B").size());
+   }
+
+   /**
+    * Verifies that a second group cannot be created without a serializer to
+    * copy events with
+    */
+   @Test(expected = IllegalStateException.class)
+   public void testGroupsRequireSerDeser() {
+       PEContainer container = new PEContainer();
+       container.setS4Clock(new WallClock());
+       container.setIsolatePrototypes(true);
+       container.addProcessor(new GroupPE("A"));
+       container.init();
+   }
+}
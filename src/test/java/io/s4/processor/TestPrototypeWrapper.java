@@ -2,8 +2,17 @@ package io.s4.processor;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import io.s4.serialize.SerializerDeserializer;
 import io.s4.util.clock.WallClock;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Test;
 
 public class TestPrototypeWrapper
@@ -27,5 +36,199 @@ public class TestPrototypeWrapper
        assertEquals(0, prototype.getInitializeCount());
        assertEquals(1, instance.getInitializeCount());
    }
-   
+
+   /**
+    * Spills a MockPE as its initialize count
+    */
+   private static class MockPESerDeser implements SerializerDeserializer {
+       public byte[] serialize(Object message) {
+           int count = ((MockPE) message).getInitializeCount();
+           return ByteBuffer.allocate(4).putInt(count).array();
+       }
+
+       public Object deserialize(byte[] rawMessage) {
+           MockPE pe = new MockPE();
+           for (int i = ByteBuffer.wrap(rawMessage).getInt(); i > 0; i--) {
+               pe.testInitialize();
+           }
+           return pe;
+       }
+   }
+
+   /**
+    * Verifies that PEs beyond the maximum number of instances are evicted
+    * least recently used first, and restored with their state when seen
+    * again
+    */
+   @Test
+   public void testEvictAndRestore() {
+       MockPE prototype = new MockPE();
+       prototype.setInitMethod("testInitialize");
+       prototype.setMaxInstances(2);
+       prototype.setSpillSerDeser(new MockPESerDeser());
+
+       PrototypeWrapper prototypeWrapper = new PrototypeWrapper(prototype, new WallClock());
+
+       MockPE a = (MockPE) prototypeWrapper.getPE("a");
+       a.testInitialize();
+       prototypeWrapper.getPE("b");
+       assertSame(a, prototypeWrapper.getPE("a"));
+       prototypeWrapper.getPE("c");
+       assertEquals(2, prototypeWrapper.getPECount());
+       assertEquals(1, prototypeWrapper.getSpilledPECount());
+
+       // "b" was the least recently used
+       MockPE b = (MockPE) prototypeWrapper.getPE("b");
+       assertEquals(1, b.getInitializeCount());
+       assertEquals(1, prototypeWrapper.getSpilledPECount());
+
+       MockPE restored = (MockPE) prototypeWrapper.getPE("a");
+       assertNotSame(a, restored);
+       assertEquals(2, restored.getInitializeCount());
+       assertEquals(2, prototypeWrapper.getPECount());
+       assertEquals(1, prototypeWrapper.getSpilledPECount());
+   }
+
+   /**
+    * Verifies that without a ttl, the PEs spilled longest ago are dropped
+    * once there are more than the maximum number of spilled PEs
+    */
+   @Test
+   public void testSpillLimit() {
+       MockPE prototype = new MockPE();
+       prototype.setInitMethod("testInitialize");
+       prototype.setMaxInstances(1);
+       prototype.setMaxSpilledInstances(3);
+       prototype.setSpillSerDeser(new MockPESerDeser());
+
+       PrototypeWrapper prototypeWrapper = new PrototypeWrapper(prototype, new WallClock());
+
+       for (int i = 0; i < 10; i++) {
+           prototypeWrapper.getPE("key" + i);
+       }
+       assertEquals(1, prototypeWrapper.getPECount());
+       assertEquals(3, prototypeWrapper.getSpilledPECount());
+
+       // the three spilled last are restored, the others created anew
+       assertEquals(1, ((MockPE) prototypeWrapper.getPE("key8")).getInitializeCount());
+       MockPE dropped = (MockPE) prototypeWrapper.getPE("key0");
+       assertEquals(1, dropped.getInitializeCount());
+       assertEquals(3, prototypeWrapper.getSpilledPECount());
+   }
+
+   /**
+    * Verifies that two prototypes with the same id spill to separate files
+    */
+   @Test
+   public void testSeparateSpillStores() {
+       PrototypeWrapper[] prototypeWrappers = new PrototypeWrapper[2];
+       for (int p = 0; p < prototypeWrappers.length; p++) {
+           MockPE prototype = new MockPE();
+           prototype.setMaxInstances(1);
+           prototype.setSpillSerDeser(new MockPESerDeser());
+           prototypeWrappers[p] = new PrototypeWrapper(prototype, new WallClock());
+       }
+
+       ((MockPE) prototypeWrappers[0].getPE("a")).testInitialize();
+       prototypeWrappers[0].getPE("b");
+       prototypeWrappers[1].getPE("c");
+       prototypeWrappers[1].getPE("d");
+
+       // creating the second store must not have truncated the first one
+       MockPE restored = (MockPE) prototypeWrappers[0].getPE("a");
+       assertEquals(1, restored.getInitializeCount());
+   }
+
+   /**
+    * Returns a key owned by the specified owner, other than the excluded
+    * keys
+    */
+   private static String keyOf(int owner, int ownerCount, String... excluded) {
+       for (int i = 0;; i++) {
+           String key = "key" + i;
+           if (PEContainer.getWorkerIndex(key, ownerCount) == owner
+                   && !Arrays.asList(excluded).contains(key)) {
+               return key;
+           }
+       }
+   }
+
+   /**
+    * Verifies that with several owners, each one gets a share of the
+    * maximum number of instances and only evicts PEs of its own keys
+    */
+   @Test
+   public void testOwners() {
+       MockPE prototype = new MockPE();
+       prototype.setInitMethod("testInitialize");
+       prototype.setMaxInstances(2);
+       prototype.setSpillSerDeser(new MockPESerDeser());
+
+       PrototypeWrapper prototypeWrapper = new PrototypeWrapper(prototype, new WallClock());
+       prototypeWrapper.setOwnerCount(2);
+
+       String a = keyOf(0, 2);
+       String b = keyOf(1, 2);
+       String c = keyOf(0, 2, a);
+       MockPE peA = (MockPE) prototypeWrapper.getPE(a);
+       peA.testInitialize();
+       MockPE peB = (MockPE) prototypeWrapper.getPE(b);
+       // "a" is the least recently used, but "c" may only evict its own
+       // owner's PEs
+       prototypeWrapper.getPE(c);
+       assertSame(peB, prototypeWrapper.getPE(b));
+       assertEquals(2, prototypeWrapper.getPECount());
+       assertEquals(1, prototypeWrapper.getSpilledPECount());
+       assertEquals(2, ((MockPE) prototypeWrapper.getPE(a)).getInitializeCount());
+   }
+
+   /**
+    * Verifies that spilling a PE of one owner does not hold up the lookups
+    * of another owner
+    */
+   @Test
+   public void testConcurrentOwners() throws Exception {
+       final CountDownLatch spilling = new CountDownLatch(1);
+       final CountDownLatch release = new CountDownLatch(1);
+       MockPE prototype = new MockPE();
+       prototype.setMaxInstances(2);
+       prototype.setSpillSerDeser(new MockPESerDeser() {
+           public byte[] serialize(Object message) {
+               spilling.countDown();
+               try {
+                   release.await();
+               } catch (InterruptedException ie) {
+                   Thread.currentThread().interrupt();
+               }
+               return super.serialize(message);
+           }
+       });
+
+       final PrototypeWrapper prototypeWrapper = new PrototypeWrapper(prototype, new WallClock());
+       prototypeWrapper.setOwnerCount(2);
+
+       final String a = keyOf(0, 2);
+       final String c = keyOf(0, 2, a);
+       Thread owner = new Thread() {
+           public void run() {
+               prototypeWrapper.getPE(a);
+               prototypeWrapper.getPE(c);
+           }
+       };
+       owner.start();
+       assertTrue(spilling.await(5, TimeUnit.SECONDS));
+
+       final CountDownLatch lookedUp = new CountDownLatch(1);
+       new Thread() {
+           public void run() {
+               prototypeWrapper.getPE(keyOf(1, 2));
+               lookedUp.countDown();
+           }
+       }.start();
+       assertTrue(lookedUp.await(5, TimeUnit.SECONDS));
+
+       release.countDown();
+       owner.join(5000);
+       assertEquals(1, prototypeWrapper.getSpilledPECount());
+   }
 }
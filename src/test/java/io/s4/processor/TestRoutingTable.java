@@ -0,0 +1,83 @@
+package io.s4.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import io.s4.util.clock.WallClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestRoutingTable
+{
+   private PrototypeWrapper wrap(String... keys) {
+       MockPE prototype = new MockPE();
+       prototype.setKeys(keys);
+       return new PrototypeWrapper(prototype, new WallClock());
+   }
+
+   /**
+    * Verifies that advice is indexed by stream and compound key, and that
+    * advice on the "*" stream is merged into every stream's route
+    */
+   @Test
+   public void testRoutes() {
+       PrototypeWrapper byUser = wrap("Clicks user", "Views user");
+       PrototypeWrapper byQuery = wrap("Clicks query");
+       PrototypeWrapper all = wrap("* *");
+
+       List<PrototypeWrapper> prototypeWrappers = new ArrayList<PrototypeWrapper>();
+       prototypeWrappers.add(byUser);
+       prototypeWrappers.add(byQuery);
+       prototypeWrappers.add(all);
+       RoutingTable routingTable = new RoutingTable(prototypeWrappers);
+
+       RoutingTable.StreamRoute clicks = routingTable.getRoute("Clicks");
+       assertEquals(1, clicks.getTargets("user").length);
+       assertSame(byUser, clicks.getTargets("user")[0]);
+       assertSame(byQuery, clicks.getTargets("query")[0]);
+       assertEquals(0, clicks.getTargets("page").length);
+       assertEquals(1, clicks.getWildcardKeyTargets().length);
+       assertSame(all, clicks.getWildcardKeyTargets()[0]);
+
+       RoutingTable.StreamRoute views = routingTable.getRoute("Views");
+       assertEquals(0, views.getTargets("query").length);
+       assertSame(byUser, views.getTargets("user")[0]);
+
+       RoutingTable.StreamRoute other = routingTable.getRoute("Other");
+       assertEquals(0, other.getTargets("user").length);
+       assertSame(all, other.getWildcardKeyTargets()[0]);
+   }
+
+   /**
+    * Verifies that a route lists its targets in the order the prototypes
+    * were added, even when an earlier prototype advised a compound key and a
+    * later one advised "*"
+    */
+   @Test
+   public void testOrderedTargets() {
+       PrototypeWrapper byUser = wrap("Clicks user");
+       PrototypeWrapper all = wrap("* *");
+       PrototypeWrapper byQuery = wrap("Clicks query", "Clicks *");
+
+       List<PrototypeWrapper> prototypeWrappers = new ArrayList<PrototypeWrapper>();
+       prototypeWrappers.add(byUser);
+       prototypeWrappers.add(all);
+       prototypeWrappers.add(byQuery);
+       RoutingTable routingTable = new RoutingTable(prototypeWrappers);
+
+       RoutingTable.Target[] targets = routingTable.getRoute("Clicks")
+                                                   .getOrderedTargets();
+       assertEquals(4, targets.length);
+       assertSame(byUser, targets[0].getPrototypeWrapper());
+       assertEquals("user", targets[0].getKey());
+       assertSame(all, targets[1].getPrototypeWrapper());
+       assertEquals("*", targets[1].getKey());
+       assertSame(byQuery, targets[2].getPrototypeWrapper());
+       assertEquals("query", targets[2].getKey());
+       assertSame(byQuery, targets[3].getPrototypeWrapper());
+       assertEquals("*", targets[3].getKey());
+   }
+   
+}
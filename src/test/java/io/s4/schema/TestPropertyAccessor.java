@@ -0,0 +1,183 @@
+package io.s4.schema;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestPropertyAccessor
+{
+   public static class Event {
+       private long timestamp;
+       private int count;
+       private Long boxedTime;
+       private boolean flag;
+       private String name;
+       private List<String> names;
+
+       public long getTimestamp() { return timestamp; }
+       public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
+       public int getCount() { return count; }
+       public void setCount(int count) { this.count = count; }
+       public Long getBoxedTime() { return boxedTime; }
+       public void setBoxedTime(Long boxedTime) { this.boxedTime = boxedTime; }
+       public boolean getFlag() { return flag; }
+       public void setFlag(boolean flag) { this.flag = flag; }
+       public String getName() { return name; }
+       public void setName(String name) { this.name = name; }
+       public List<String> getNames() { return names; }
+       public void setNames(List<String> names) { this.names = names; }
+   }
+
+   static class HiddenEvent {
+       private long timestamp;
+
+       public long getTimestamp() { return timestamp; }
+       public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
+   }
+
+   /**
+    * Defines its own copy of a class and its nested classes, and delegates
+    * the others
+    */
+   private static class IsolatingClassLoader extends ClassLoader {
+       private String isolatedName;
+
+       IsolatingClassLoader(Class<?> isolatedClass) {
+           super(isolatedClass.getClassLoader());
+           this.isolatedName = isolatedClass.getName();
+       }
+
+       @Override
+       protected synchronized Class<?> loadClass(String name, boolean resolve)
+               throws ClassNotFoundException {
+           if (!name.equals(isolatedName)
+                   && !name.startsWith(isolatedName + "$")) {
+               return super.loadClass(name, resolve);
+           }
+           Class<?> clazz = findLoadedClass(name);
+           if (clazz != null) {
+               return clazz;
+           }
+           try {
+               InputStream in = getParent().getResourceAsStream(name.replace('.', '/')
+                       + ".class");
+               ByteArrayOutputStream out = new ByteArrayOutputStream();
+               byte[] buffer = new byte[4096];
+               int length;
+               while ((length = in.read(buffer)) > 0) {
+                   out.write(buffer, 0, length);
+               }
+               in.close();
+               byte[] bytes = out.toByteArray();
+               return defineClass(name, bytes, 0, bytes.length);
+           } catch (Exception e) {
+               throw new ClassNotFoundException(name, e);
+           }
+       }
+   }
+
+   private PropertyAccessor getAccessor(Class<?> clazz, String propertyName) {
+       return new Schema(clazz).getProperties().get(propertyName).getAccessor();
+   }
+
+   /**
+    * Verifies generated accessors for primitive, boxed and reference properties
+    */
+   @Test
+   public void testGeneratedAccessors() {
+       Event event = new Event();
+
+       PropertyAccessor timestamp = getAccessor(Event.class, "timestamp");
+       assertFalse(timestamp instanceof PropertyAccessorGenerator.ReflectivePropertyAccessor);
+       timestamp.set(event, 1234567890123L);
+       assertEquals(1234567890123L, event.getTimestamp());
+       assertEquals(1234567890123L, timestamp.getLong(event));
+       assertEquals(Long.valueOf(1234567890123L), timestamp.get(event));
+       // numeric setters accept any Number, like the values parsed from JSON
+       timestamp.set(event, Integer.valueOf(42));
+       assertEquals(42L, timestamp.getLong(event));
+       assertEquals(42, timestamp.getInt(event));
+
+       PropertyAccessor count = getAccessor(Event.class, "count");
+       count.set(event, 7);
+       assertEquals(7L, count.getLong(event));
+       assertEquals(Integer.valueOf(7), count.get(event));
+
+       PropertyAccessor boxedTime = getAccessor(Event.class, "boxedTime");
+       assertNull(boxedTime.get(event));
+       boxedTime.set(event, 99L);
+       assertEquals(99L, boxedTime.getLong(event));
+
+       PropertyAccessor flag = getAccessor(Event.class, "flag");
+       flag.set(event, Boolean.TRUE);
+       assertTrue(event.getFlag());
+       assertEquals(Boolean.TRUE, flag.get(event));
+
+       PropertyAccessor name = getAccessor(Event.class, "name");
+       name.set(event, "abc");
+       assertEquals("abc", name.get(event));
+
+       List<String> names = new ArrayList<String>();
+       getAccessor(Event.class, "names").set(event, names);
+       assertSame(names, event.getNames());
+   }
+
+   /**
+    * Verifies that accessors are shared by schemas of the same class
+    */
+   @Test
+   public void testCache() {
+       assertSame(getAccessor(Event.class, "timestamp"),
+                  getAccessor(Event.class, "timestamp"));
+   }
+
+   /**
+    * Verifies that classes generated code cannot access use reflection
+    */
+   @Test
+   public void testNonPublicClass() {
+       HiddenEvent event = new HiddenEvent();
+       PropertyAccessor timestamp = getAccessor(HiddenEvent.class, "timestamp");
+       assertTrue(timestamp instanceof PropertyAccessorGenerator.ReflectivePropertyAccessor);
+       timestamp.set(event, 5L);
+       assertEquals(5L, timestamp.getLong(event));
+   }
+
+   /**
+    * Verifies that the accessors of a class do not keep its class loader from
+    * being collected once they are no longer used
+    */
+   @Test
+   public void testUnload() throws Exception {
+       WeakReference<ClassLoader> loader = useAccessorInNewLoader();
+       for (int i = 0; i < 50 && loader.get() != null; i++) {
+           System.gc();
+           Thread.sleep(10);
+       }
+       assertNull(loader.get());
+   }
+
+   // a separate method, so that no local variable keeps the loader reachable
+   private WeakReference<ClassLoader> useAccessorInNewLoader() throws Exception {
+       ClassLoader loader = new IsolatingClassLoader(TestPropertyAccessor.class);
+       Class<?> eventClass = loader.loadClass(Event.class.getName());
+       assertTrue(eventClass != Event.class);
+
+       Object event = eventClass.newInstance();
+       PropertyAccessor timestamp = getAccessor(eventClass, "timestamp");
+       assertFalse(timestamp instanceof PropertyAccessorGenerator.ReflectivePropertyAccessor);
+       timestamp.set(event, 5L);
+       assertEquals(5L, timestamp.getLong(event));
+       return new WeakReference<ClassLoader>(loader);
+   }
+}
@@ -0,0 +1,51 @@
+package io.s4.schema;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import io.s4.schema.Schema.Property;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+public class TestSchemaContainer
+{
+   public static class Event {
+       public long getTimestamp() { return 0; }
+       public void setTimestamp(long timestamp) {}
+       public String getA() { return null; }
+       public void setA(String a) {}
+       public int getCount() { return 0; }
+       public void setCount(int count) {}
+   }
+
+   /**
+    * Verifies that schemas are shared, including for bootstrap classes
+    */
+   @Test
+   public void testLookup() {
+       assertSame(SchemaContainer.lookup(Event.class),
+                  new SchemaContainer().getSchema(Event.class));
+       assertSame(SchemaContainer.lookup(HashMap.class),
+                  SchemaContainer.lookup(HashMap.class));
+   }
+
+   /**
+    * Verifies that ordinals index the properties in name order
+    */
+   @Test
+   public void testOrdinals() {
+       Schema schema = SchemaContainer.lookup(Event.class);
+       assertEquals(3, schema.getPropertyCount());
+       String[] names = { "a", "count", "timestamp" };
+       for (int i = 0; i < names.length; i++) {
+           Property property = schema.getProperty(i);
+           assertEquals(names[i], property.getName());
+           assertEquals(i, property.getOrdinal());
+           assertEquals(i, schema.getOrdinal(names[i]));
+       }
+       assertEquals(-1, schema.getOrdinal("missing"));
+       assertSame(schema.getProperties(), schema.getProperties());
+   }
+}
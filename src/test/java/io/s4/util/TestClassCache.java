@@ -0,0 +1,93 @@
+package io.s4.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+
+import org.junit.Test;
+
+public class TestClassCache
+{
+   public static class Value {
+   }
+
+   /**
+    * Defines copies of classes, so that they can be unloaded with this loader
+    */
+   private static class CopyingClassLoader extends ClassLoader {
+       CopyingClassLoader() {
+           super(CopyingClassLoader.class.getClassLoader());
+       }
+
+       Class<?> copy(Class<?> clazz) throws Exception {
+           String resource = clazz.getName().replace('.', '/') + ".class";
+           InputStream in = getParent().getResourceAsStream(resource);
+           ByteArrayOutputStream out = new ByteArrayOutputStream();
+           byte[] buffer = new byte[4096];
+           int length;
+           while ((length = in.read(buffer)) > 0) {
+               out.write(buffer, 0, length);
+           }
+           in.close();
+           byte[] bytes = out.toByteArray();
+           return defineClass(clazz.getName(), bytes, 0, bytes.length);
+       }
+   }
+
+   /**
+    * Verifies that values are kept per class, and that the first value cached
+    * for a class wins
+    */
+   @Test
+   public void testPutIfAbsent() throws Exception {
+       ClassCache<String> cache = new ClassCache<String>();
+       assertNull(cache.get(String.class));
+       assertEquals("string", cache.putIfAbsent(String.class, "string"));
+       assertEquals("other", cache.putIfAbsent(Integer.class, "other"));
+       assertEquals("string", cache.putIfAbsent(String.class, "replaced"));
+       assertEquals("string", cache.get(String.class));
+
+       // a class of the same name from another loader is another class
+       Class<?> copy = new CopyingClassLoader().copy(Value.class);
+       cache.putIfAbsent(Value.class, "value");
+       assertNull(cache.get(copy));
+       cache.putIfAbsent(copy, "copy");
+       assertEquals("value", cache.get(Value.class));
+       assertEquals("copy", cache.get(copy));
+       assertEquals(4, cache.size());
+   }
+
+   /**
+    * Verifies that a cached class does not keep its loader from being
+    * collected, and that its entry is then removed
+    */
+   @Test
+   public void testUnload() throws Exception {
+       ClassCache<Object> cache = new ClassCache<Object>();
+       WeakReference<ClassLoader> loader = cacheClassInNewLoader(cache);
+       assertEquals(1, cache.size());
+       for (int i = 0; i < 50 && loader.get() != null; i++) {
+           System.gc();
+           Thread.sleep(10);
+       }
+       assertNull(loader.get());
+       assertEquals(0, cache.size());
+   }
+
+   // a separate method, so that no local variable keeps the loader reachable
+   private WeakReference<ClassLoader> cacheClassInNewLoader(ClassCache<Object> cache)
+           throws Exception {
+       CopyingClassLoader loader = new CopyingClassLoader();
+       Class<?> copy = loader.copy(Value.class);
+       Object value = new Object();
+       assertSame(value, cache.putIfAbsent(copy, value));
+       assertSame(value, cache.get(copy));
+       assertTrue(copy != Value.class);
+       return new WeakReference<ClassLoader>(loader);
+   }
+}
@@ -0,0 +1,85 @@
+package io.s4.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestEvictionPolicy
+{
+   private static Set<String> fill(EvictionPolicy policy, Set<String> keys,
+                                   String key) {
+       keys.add(key);
+       String victim = policy.add(key);
+       if (victim != null) {
+           assertTrue(keys.remove(victim));
+       }
+       return keys;
+   }
+
+   /**
+    * Verifies that the least recently used key is evicted
+    */
+   @Test
+   public void testLru() {
+       EvictionPolicy policy = new LruEvictionPolicy(3);
+       assertNull(policy.add("a"));
+       assertNull(policy.add("b"));
+       assertNull(policy.add("c"));
+       policy.recordAccess("a");
+       assertEquals("b", policy.add("d"));
+       assertNull(policy.add("a"));
+       policy.remove("c");
+       assertNull(policy.add("e"));
+       assertEquals("d", policy.add("f"));
+       assertEquals(3, policy.size());
+   }
+
+   /**
+    * Verifies that keys in steady use survive a scan of keys seen once,
+    * and that the population stays within its capacity
+    */
+   @Test
+   public void testTinyLfu() {
+       EvictionPolicy policy = new TinyLfuEvictionPolicy(100);
+       Set<String> keys = new HashSet<String>();
+       for (int round = 0; round < 10; round++) {
+           for (int i = 0; i < 50; i++) {
+               fill(policy, keys, "hot" + i);
+           }
+       }
+       for (int i = 0; i < 10000; i++) {
+           fill(policy, keys, "cold" + i);
+           fill(policy, keys, "hot" + (i % 50));
+           assertEquals(keys.size(), policy.size());
+           assertTrue(policy.size() <= 100);
+       }
+
+       int hotCount = 0;
+       for (String key : keys) {
+           if (key.startsWith("hot")) {
+               hotCount++;
+           }
+       }
+       assertEquals(50, hotCount);
+   }
+
+   /**
+    * Verifies that a key seen once does not displace any key seen more often
+    */
+   @Test
+   public void testFrequencySketch() {
+       FrequencySketch sketch = new FrequencySketch(64);
+       for (int i = 0; i < 20; i++) {
+           sketch.increment("hot".hashCode());
+       }
+       sketch.increment("cold".hashCode());
+       assertEquals(15, sketch.frequency("hot".hashCode()));
+       assertEquals(1, sketch.frequency("cold".hashCode()));
+       assertEquals(0, sketch.frequency("none".hashCode()));
+   }
+}
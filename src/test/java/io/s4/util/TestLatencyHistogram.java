@@ -0,0 +1,111 @@
+package io.s4.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestLatencyHistogram
+{
+   /**
+    * Verifies that buckets are contiguous, that each bucket's bounds map
+    * back to it, and that a bucket is never wider than 1/16 of its values
+    */
+   @Test
+   public void testBucketBoundaries() {
+       int lastIndex = LatencyHistogram.getIndex(Long.MAX_VALUE);
+       assertEquals(0, LatencyHistogram.getIndex(0));
+       assertEquals(0, LatencyHistogram.getIndex(-5));
+       assertEquals(Long.MAX_VALUE, LatencyHistogram.getUpperBound(lastIndex));
+
+       for (int i = 0; i <= lastIndex; i++) {
+           long lower = LatencyHistogram.getLowerBound(i);
+           long upper = LatencyHistogram.getUpperBound(i);
+           assertEquals(i, LatencyHistogram.getIndex(lower));
+           assertEquals(i, LatencyHistogram.getIndex(upper));
+           if (i > 0) {
+               assertEquals(LatencyHistogram.getUpperBound(i - 1) + 1, lower);
+           }
+           if (lower >= 16) {
+               assertTrue(upper - lower < lower / 16 + 1);
+           } else {
+               assertEquals(lower, upper);
+           }
+       }
+
+       // exact below 16, then 16 sub-buckets per power of two
+       assertEquals(15, LatencyHistogram.getIndex(15));
+       assertEquals(16, LatencyHistogram.getIndex(16));
+       assertEquals(31, LatencyHistogram.getIndex(31));
+       assertEquals(32, LatencyHistogram.getIndex(32));
+       assertEquals(32, LatencyHistogram.getIndex(33));
+       assertEquals(33, LatencyHistogram.getIndex(34));
+   }
+
+   /**
+    * Verifies percentiles against exact percentiles of random values, within
+    * the resolution of a bucket
+    */
+   @Test
+   public void testPercentiles() {
+       Random random = new Random(3);
+       LatencyHistogram histogram = new LatencyHistogram();
+       long[] values = new long[100000];
+       for (int i = 0; i < values.length; i++) {
+           // log-uniform between 1 ns and about 1 s
+           values[i] = (long) Math.exp(random.nextDouble() * 21);
+           histogram.record(values[i]);
+       }
+       Arrays.sort(values);
+       assertEquals(values.length, histogram.getCount());
+
+       double[] percentiles = { 1, 50, 90, 99, 99.9, 100 };
+       for (double percentile : percentiles) {
+           long exact = values[(int) Math.ceil(values.length * percentile
+                   / 100.0) - 1];
+           long reported = histogram.getValueAtPercentile(percentile);
+           // the upper bound of the bucket holding the exact value
+           assertTrue(reported >= exact);
+           assertTrue(reported <= exact + exact / 16);
+       }
+       assertEquals(histogram.getValueAtPercentile(100), histogram.getMax());
+   }
+
+   /**
+    * Verifies the empty histogram, and that add, subtract and copy combine
+    * counts
+    */
+   @Test
+   public void testCombine() {
+       LatencyHistogram empty = new LatencyHistogram();
+       assertEquals(0, empty.getCount());
+       assertEquals(0, empty.getValueAtPercentile(50));
+       assertEquals(0, empty.getMax());
+
+       LatencyHistogram histogram = new LatencyHistogram();
+       for (int i = 0; i < 100; i++) {
+           histogram.record(10);
+       }
+       LatencyHistogram before = histogram.copy();
+       for (int i = 0; i < 100; i++) {
+           histogram.record(1000);
+       }
+       assertEquals(200, histogram.getCount());
+       assertEquals(10, histogram.getValueAtPercentile(50));
+       assertEquals(LatencyHistogram.getUpperBound(LatencyHistogram.getIndex(1000)),
+                    histogram.getValueAtPercentile(50.5));
+
+       LatencyHistogram since = histogram.copy();
+       since.subtract(before);
+       assertEquals(100, since.getCount());
+       assertEquals(LatencyHistogram.getUpperBound(LatencyHistogram.getIndex(1000)),
+                    since.getValueAtPercentile(1));
+
+       since.add(before);
+       assertEquals(200, since.getCount());
+       assertEquals(10, since.getValueAtPercentile(50));
+   }
+}
@@ -0,0 +1,133 @@
+package io.s4.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class TestRingBufferQueue
+{
+   private static final int PRODUCERS = 4;
+   private static final int PER_PRODUCER = 50000;
+
+   /**
+    * Verifies that with several producers and one consumer, every element
+    * arrives exactly once, and each producer's elements arrive in the order
+    * they were offered
+    */
+   @Test
+   public void testMultipleProducers() throws Exception {
+       for (RingBufferQueue.WaitStrategy waitStrategy : RingBufferQueue.WaitStrategy.values()) {
+           final RingBufferQueue<long[]> queue = new RingBufferQueue<long[]>(64,
+                                                                            waitStrategy);
+           final CountDownLatch start = new CountDownLatch(1);
+           Thread[] producers = new Thread[PRODUCERS];
+           for (int p = 0; p < PRODUCERS; p++) {
+               final int producer = p;
+               producers[p] = new Thread() {
+                   public void run() {
+                       try {
+                           start.await();
+                           for (int i = 0; i < PER_PRODUCER; i++) {
+                               queue.put(new long[] { producer, i });
+                           }
+                       } catch (InterruptedException ie) {
+                           Thread.currentThread().interrupt();
+                       }
+                   }
+               };
+               producers[p].start();
+           }
+
+           start.countDown();
+           int[] nextSequence = new int[PRODUCERS];
+           for (int count = 0; count < PRODUCERS * PER_PRODUCER; count++) {
+               long[] e = queue.poll(10, TimeUnit.SECONDS);
+               assertTrue("lost elements with " + waitStrategy, e != null);
+               int producer = (int) e[0];
+               // equal to the expected sequence: neither skipped (lost or out
+               // of order) nor seen before (duplicated)
+               assertEquals(nextSequence[producer], e[1]);
+               nextSequence[producer]++;
+           }
+           for (Thread producer : producers) {
+               producer.join();
+           }
+           assertNull(queue.poll());
+           assertEquals(0, queue.size());
+           for (int p = 0; p < PRODUCERS; p++) {
+               assertEquals(PER_PRODUCER, nextSequence[p]);
+           }
+       }
+   }
+
+   /**
+    * Verifies that offer fails once the queue is full, and succeeds again
+    * after the consumer frees a slot
+    */
+   @Test
+   public void testFull() throws Exception {
+       RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>(5);
+       // capacity is rounded up to a power of two
+       for (int i = 0; i < 8; i++) {
+           assertTrue(queue.offer(i));
+       }
+       assertEquals(8, queue.size());
+       assertEquals(0, queue.remainingCapacity());
+       assertFalse(queue.offer(8));
+       assertFalse(queue.offer(8, 5, TimeUnit.MILLISECONDS));
+
+       assertEquals(Integer.valueOf(0), queue.poll());
+       assertTrue(queue.offer(8));
+       for (int i = 1; i <= 8; i++) {
+           assertEquals(Integer.valueOf(i), queue.poll());
+       }
+       assertNull(queue.poll());
+   }
+
+   /**
+    * Verifies that a consumer blocked in take wakes up when an element is
+    * offered, and when interrupted
+    */
+   @Test
+   public void testTakeWakeUp() throws Exception {
+       for (RingBufferQueue.WaitStrategy waitStrategy : RingBufferQueue.WaitStrategy.values()) {
+           final RingBufferQueue<String> queue = new RingBufferQueue<String>(4,
+                                                                            waitStrategy);
+           final AtomicReference<String> taken = new AtomicReference<String>();
+           final boolean[] interrupted = new boolean[1];
+           Thread consumer = new Thread() {
+               public void run() {
+                   try {
+                       taken.set(queue.take());
+                       queue.take();
+                   } catch (InterruptedException ie) {
+                       interrupted[0] = true;
+                   }
+               }
+           };
+           consumer.start();
+
+           Thread.sleep(50);
+           assertTrue(consumer.isAlive());
+           queue.offer("event");
+           long deadline = System.currentTimeMillis() + 5000;
+           while (taken.get() == null && System.currentTimeMillis() < deadline) {
+               Thread.sleep(1);
+           }
+           assertEquals("event", taken.get());
+
+           // the consumer is now blocked in its second take
+           consumer.interrupt();
+           consumer.join(5000);
+           assertFalse(consumer.isAlive());
+           assertTrue(interrupted[0]);
+       }
+   }
+}
@@ -0,0 +1,59 @@
+package io.s4.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+public class TestSegmentStore
+{
+   private static byte[] value(int i) {
+       byte[] value = new byte[100];
+       for (int j = 0; j < value.length; j++) {
+           value[j] = (byte) (i + j);
+       }
+       return value;
+   }
+
+   /**
+    * Verifies that values survive the rolling, deletion and compaction of
+    * segments
+    */
+   @Test
+   public void testPutGetRemove() throws Exception {
+       File directory = new File(System.getProperty("java.io.tmpdir"));
+       SegmentStore store = new SegmentStore(directory, "test-segment-store-"
+               + System.nanoTime() + "-", 1024);
+       try {
+           for (int i = 0; i < 100; i++) {
+               store.put("key" + i, value(i));
+           }
+           assertEquals(100, store.size());
+           assertEquals(12, store.getSegmentCount());
+
+           // leave one value in each full segment, so they are compacted
+           for (int i = 0; i < 100; i++) {
+               if (i % 10 != 0) {
+                   store.remove("key" + i);
+               }
+           }
+           store.put("key0", value(1000));
+           assertFalse(store.remove("key1"));
+           assertNull(store.get("key1"));
+           assertEquals(10, store.size());
+           assertTrue(store.getSegmentCount() <= 3);
+           for (int i = 10; i < 100; i += 10) {
+               assertArrayEquals(value(i), store.get("key" + i));
+           }
+           assertArrayEquals(value(1000), store.get("key0"));
+       } finally {
+           store.close();
+       }
+       assertEquals(0, store.getSegmentCount());
+   }
+}
@@ -0,0 +1,129 @@
+package io.s4.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestSpaceSavingSketch
+{
+   /**
+    * Verifies the Space-Saving guarantees on a Zipf-like stream: every key
+    * occurring more than 1/capacity of the time is monitored, every reported
+    * count bounds the true count from above by at most its error, and no
+    * error exceeds the stream length divided by the capacity
+    */
+   @Test
+   public void testSkewedStream() {
+       int capacity = 20;
+       int keyCount = 10000;
+       int streamLength = 200000;
+
+       // cumulative Zipf(1) distribution over the keys
+       double[] cumulative = new double[keyCount];
+       double total = 0;
+       for (int k = 0; k < keyCount; k++) {
+           total += 1.0 / (k + 1);
+           cumulative[k] = total;
+       }
+
+       Random random = new Random(11);
+       SpaceSavingSketch sketch = new SpaceSavingSketch(capacity);
+       Map<String, Long> trueCounts = new HashMap<String, Long>();
+       for (int i = 0; i < streamLength; i++) {
+           double r = random.nextDouble() * total;
+           int k = 0;
+           int high = keyCount - 1;
+           while (k < high) {
+               int middle = (k + high) / 2;
+               if (cumulative[middle] < r) {
+                   k = middle + 1;
+               } else {
+                   high = middle;
+               }
+           }
+           String key = "key" + k;
+           sketch.offer(key);
+           Long count = trueCounts.get(key);
+           trueCounts.put(key, (count == null) ? 1 : count + 1);
+       }
+
+       List<SpaceSavingSketch.Counter> counters = sketch.getCounters();
+       assertEquals(capacity, counters.size());
+       Set<String> monitored = new HashSet<String>();
+       long lastCount = Long.MAX_VALUE;
+       for (SpaceSavingSketch.Counter counter : counters) {
+           monitored.add(counter.getKey());
+           long trueCount = trueCounts.get(counter.getKey());
+           assertTrue(counter.getCount() >= trueCount);
+           assertTrue(counter.getCount() - counter.getError() <= trueCount);
+           assertTrue(counter.getError() <= streamLength / capacity);
+           // highest count first
+           assertTrue(counter.getCount() <= lastCount);
+           lastCount = counter.getCount();
+       }
+
+       List<Long> sortedCounts = new ArrayList<Long>(trueCounts.values());
+       Collections.sort(sortedCounts, Collections.reverseOrder());
+       int heavyHitters = 0;
+       for (Map.Entry<String, Long> entry : trueCounts.entrySet()) {
+           if (entry.getValue() > streamLength / capacity) {
+               assertTrue(entry.getKey(), monitored.contains(entry.getKey()));
+               heavyHitters++;
+           }
+       }
+       assertTrue(heavyHitters > 0);
+
+       // the hottest key is reported first and exactly enough to rank it
+       assertEquals("key0", counters.get(0).getKey());
+       assertTrue(counters.get(0).getCount() - counters.get(0).getError() > sortedCounts.get(1));
+   }
+
+   /**
+    * Verifies that counts are exact while the sketch has room for every key
+    */
+   @Test
+   public void testExactBelowCapacity() {
+       SpaceSavingSketch sketch = new SpaceSavingSketch(3);
+       for (int i = 0; i < 5; i++) {
+           sketch.offer("a");
+       }
+       sketch.offer("b");
+       sketch.offer("c");
+       sketch.offer("c");
+
+       List<SpaceSavingSketch.Counter> counters = sketch.getCounters();
+       assertEquals("a", counters.get(0).getKey());
+       assertEquals(5, counters.get(0).getCount());
+       assertEquals("c", counters.get(1).getKey());
+       assertEquals(2, counters.get(1).getCount());
+       assertEquals("b", counters.get(2).getKey());
+       for (SpaceSavingSketch.Counter counter : counters) {
+           assertEquals(0, counter.getError());
+       }
+
+       // a new key replaces the least counted one and inherits its count
+       sketch.offer("d");
+       counters = sketch.getCounters();
+       assertEquals(3, counters.size());
+       SpaceSavingSketch.Counter d = null;
+       for (SpaceSavingSketch.Counter counter : counters) {
+           assertFalse(counter.getKey().equals("b"));
+           if (counter.getKey().equals("d")) {
+               d = counter;
+           }
+       }
+       assertEquals(2, d.getCount());
+       assertEquals(1, d.getError());
+   }
+}
@@ -0,0 +1,123 @@
+package io.s4.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSpillLog
+{
+   private SpillLog spillLog;
+
+   @Before
+   public void setUp() throws Exception {
+       File file = File.createTempFile("test-spill-", ".log");
+       spillLog = new SpillLog(file, 1000);
+   }
+
+   @After
+   public void tearDown() throws Exception {
+       spillLog.close();
+   }
+
+   private byte[] record(int id, int length) {
+       byte[] record = new byte[length];
+       for (int i = 0; i < length; i++) {
+           record[i] = (byte) (id + i);
+       }
+       return record;
+   }
+
+   /**
+    * Verifies that the space of records read is reused while other records
+    * are still in the log, including records split across the end of the
+    * mapped region
+    */
+   @Test
+   public void testReclaim() {
+       // 10 records of 96 + 4 bytes fill the log
+       for (int i = 0; i < 10; i++) {
+           assertTrue(spillLog.append(record(i, 96)));
+       }
+       assertFalse(spillLog.append(record(10, 1)));
+       assertEquals(1000, spillLog.getUsedBytes());
+
+       // never drained, yet reading frees room for the same amount of data
+       for (int i = 10; i < 100; i++) {
+           assertArrayEquals(record(i - 10, 96), spillLog.read());
+           assertTrue(spillLog.append(record(i, 96)));
+           assertEquals(10, spillLog.getRecordCount());
+       }
+
+       // a record size that does not divide the capacity wraps mid-record
+       for (int i = 100; i < 130; i++) {
+           spillLog.read();
+           assertTrue(spillLog.append(record(i, 57)));
+       }
+       while (spillLog.getRecordCount() > 10) {
+           spillLog.read();
+       }
+       for (int i = 120; i < 130; i++) {
+           assertArrayEquals(record(i, 57), spillLog.read());
+       }
+       assertTrue(spillLog.isEmpty());
+       assertEquals(0, spillLog.getUsedBytes());
+       assertNull(spillLog.read());
+   }
+
+   /**
+    * Verifies FIFO order and byte accounting against a list, over random
+    * record sizes and interleavings of appends and reads
+    */
+   @Test
+   public void testRandom() {
+       Random random = new Random(5);
+       LinkedList<byte[]> expected = new LinkedList<byte[]>();
+       int usedBytes = 0;
+       for (int i = 0; i < 20000; i++) {
+           if (random.nextBoolean()) {
+               byte[] record = record(i, random.nextInt(200));
+               boolean fits = usedBytes + record.length + 4 <= spillLog.getCapacity();
+               assertEquals(fits, spillLog.append(record));
+               if (fits) {
+                   expected.add(record);
+                   usedBytes += record.length + 4;
+               }
+           } else {
+               byte[] record = spillLog.read();
+               if (expected.isEmpty()) {
+                   assertNull(record);
+               } else {
+                   byte[] expectedRecord = expected.removeFirst();
+                   assertArrayEquals(expectedRecord, record);
+                   usedBytes -= expectedRecord.length + 4;
+               }
+           }
+           assertEquals(expected.size(), spillLog.getRecordCount());
+           assertEquals(usedBytes, spillLog.getUsedBytes());
+       }
+   }
+
+   /**
+    * Verifies that closing the log deletes the file, and that a closed log
+    * neither accepts nor returns records
+    */
+   @Test
+   public void testClose() throws Exception {
+       assertTrue(spillLog.append(record(0, 10)));
+       spillLog.close();
+       assertFalse(spillLog.getFile().exists());
+       assertFalse(spillLog.append(record(1, 10)));
+       assertNull(spillLog.read());
+       assertTrue(spillLog.isEmpty());
+   }
+}
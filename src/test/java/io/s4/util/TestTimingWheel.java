@@ -0,0 +1,85 @@
+package io.s4.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestTimingWheel
+{
+   /**
+    * Verifies timers expire exactly when due, in deadline order, over random
+    * deadlines and random jumps in time
+    */
+   @Test
+   public void testRandomSchedule() {
+       Random random = new Random(17);
+       TimingWheel<Integer> wheel = new TimingWheel<Integer>(1000);
+       List<TimingWheel.Timer<Integer>> timers = new ArrayList<TimingWheel.Timer<Integer>>();
+       List<Integer> pending = new ArrayList<Integer>();
+       long now = 1000;
+
+       for (int round = 0; round < 2000; round++) {
+           for (int i = 0; i < 5; i++) {
+               // deadlines from the past to several wheel levels ahead
+               long deadline = now - 10
+                       + (long) (Math.pow(random.nextDouble(), 4) * (1L << 30));
+               timers.add(wheel.schedule(deadline, timers.size()));
+               pending.add(timers.size() - 1);
+           }
+           if (random.nextInt(4) == 0) {
+               Integer id = timers.size() - 1
+                       - random.nextInt(Math.min(20, timers.size()));
+               if (wheel.cancel(timers.get(id))) {
+                   assertTrue(pending.remove(id));
+               }
+               assertFalse(timers.get(id).isPending());
+           }
+
+           now += (long) (Math.pow(random.nextDouble(), 8) * (1L << 28));
+           List<Integer> expired = new ArrayList<Integer>();
+           int count = wheel.advance(now, expired);
+           assertEquals(expired.size(), count);
+
+           long lastDeadline = 0;
+           for (Integer id : expired) {
+               long deadline = timers.get(id).getDeadline();
+               assertTrue(deadline <= now);
+               assertTrue(deadline >= lastDeadline);
+               lastDeadline = deadline;
+               assertTrue(pending.remove(id));
+           }
+           for (Integer id : pending) {
+               assertTrue(timers.get(id).getDeadline() > now);
+               assertTrue(timers.get(id).isPending());
+           }
+           assertEquals(pending.size(), wheel.size());
+       }
+   }
+
+   /**
+    * Verifies the handling of the current tick and of time moving backwards
+    */
+   @Test
+   public void testBoundaries() {
+       TimingWheel<String> wheel = new TimingWheel<String>(100);
+       List<String> expired = new ArrayList<String>();
+       wheel.schedule(100, "now");
+       wheel.schedule(164, "next block");
+       wheel.schedule(Long.MAX_VALUE, "never");
+
+       assertEquals(1, wheel.advance(50, expired));
+       assertEquals("now", expired.get(0));
+       assertEquals(100, wheel.getCurrentTime());
+
+       assertEquals(0, wheel.advance(163, expired));
+       assertEquals(1, wheel.advance(164, expired));
+       assertEquals("next block", expired.get(1));
+       assertEquals(1, wheel.size());
+   }
+}
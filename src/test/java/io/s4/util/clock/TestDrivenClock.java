@@ -0,0 +1,83 @@
+package io.s4.util.clock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import io.s4.util.TimingWheel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestDrivenClock
+{
+   private static class RecordingTask implements Runnable {
+       private List<Long> fired;
+       private long targetTime;
+
+       RecordingTask(List<Long> fired, long targetTime) {
+           this.fired = fired;
+           this.targetTime = targetTime;
+       }
+
+       public void run() {
+           fired.add(targetTime);
+       }
+   }
+
+   /**
+    * Verifies that one update runs every due task, in target time order
+    */
+   @Test
+   public void testSchedule() {
+       DrivenClock clock = new DrivenClock();
+       clock.updateTime(1000);
+       List<Long> fired = new ArrayList<Long>();
+       for (long targetTime : new long[] { 5000, 2000, 100000, 3000, 2000 }) {
+           clock.schedule(targetTime, new RecordingTask(fired, targetTime));
+       }
+       TimingWheel.Timer<Runnable> cancelled = clock.schedule(4000,
+                                                              new RecordingTask(fired, 4000));
+       assertNull(clock.schedule(1000, new RecordingTask(fired, 1000)));
+       assertEquals(Arrays.asList(1000L), fired);
+
+       clock.cancel(cancelled);
+       clock.updateTime(50000);
+       assertEquals(Arrays.asList(1000L, 2000L, 2000L, 3000L, 5000L), fired);
+       assertFalse(clock.cancel(cancelled));
+
+       clock.updateTime(100000);
+       assertEquals(100000L, (long) fired.get(fired.size() - 1));
+   }
+
+   /**
+    * Verifies that waiting threads are woken up
+    */
+   @Test
+   public void testWaitForTime() throws Exception {
+       final DrivenClock clock = new DrivenClock();
+       final long[] wokenAt = new long[2];
+       Thread[] waiters = new Thread[2];
+       for (int i = 0; i < waiters.length; i++) {
+           final int index = i;
+           waiters[i] = new Thread() {
+               public void run() {
+                   wokenAt[index] = clock.waitForTime(100 * (index + 1));
+               }
+           };
+           waiters[i].start();
+       }
+
+       // wait until both threads have registered their timers
+       Thread.sleep(200);
+       clock.updateTime(500);
+       for (Thread waiter : waiters) {
+           waiter.join(5000);
+       }
+       assertEquals(500, wokenAt[0]);
+       assertEquals(500, wokenAt[1]);
+   }
+}
@@ -0,0 +1,65 @@
+package io.s4.util.clock;
+
+import static org.junit.Assert.assertEquals;
+
+import io.s4.collector.EventWrapper;
+
+import org.junit.Test;
+
+public class TestEventClock
+{
+   public static class Event {
+       private long time;
+
+       public Event(long time) { this.time = time; }
+       public long getTime() { return time; }
+       public void setTime(long time) { this.time = time; }
+   }
+
+   private void send(EventClock clock, String streamName, long time) {
+       clock.update(new EventWrapper(streamName, new Event(time), null));
+   }
+
+   /**
+    * Verifies that by default the fastest stream drives the clock
+    */
+   @Test
+   public void testLatestTime() {
+       EventClock clock = new EventClock();
+       clock.addEventClockStream("fast", "time");
+       clock.addEventClockStream("slow", "time");
+
+       send(clock, "fast", 1000);
+       send(clock, "slow", 500);
+       assertEquals(1000, clock.getCurrentTime(false));
+   }
+
+   /**
+    * Verifies that in watermark mode the slowest stream drives the clock
+    */
+   @Test
+   public void testWatermark() {
+       EventClock clock = new EventClock();
+       clock.setWatermarkMode(true);
+       clock.setAllowedLateness(100);
+       clock.addEventClockStream("fast", "time");
+       clock.addEventClockStream("slow", "time");
+
+       send(clock, "fast", 1000);
+       // the slow stream has not started yet
+       assertEquals(0, clock.getCurrentTime(false));
+
+       send(clock, "slow", 500);
+       assertEquals(400, clock.getCurrentTime(false));
+       send(clock, "fast", 2000);
+       assertEquals(400, clock.getCurrentTime(false));
+       // out of order events do not move the watermark back
+       send(clock, "slow", 450);
+       assertEquals(400, clock.getCurrentTime(false));
+       send(clock, "slow", 3000);
+       assertEquals(1900, clock.getCurrentTime(false));
+       // events of other streams are ignored
+       send(clock, "other", 5000);
+       assertEquals(1900, clock.getCurrentTime(false));
+   }
+}
@@ -0,0 +1,51 @@
+package io.s4.util.clock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.s4.collector.EventWrapper;
+
+import org.junit.Test;
+
+public class TestReplayClock
+{
+   /**
+    * Verifies that a paced replay runs faster than real time and ignores
+    * event timestamps
+    */
+   @Test
+   public void testSpeedup() {
+       ReplayClock clock = new ReplayClock();
+       clock.setSpeedup(1000);
+       clock.addEventClockStream("events", "time");
+       clock.start(1000000);
+
+       long wallStart = System.currentTimeMillis();
+       // an hour of replay time takes a few wall clock seconds
+       long woken = clock.waitForTime(1000000 + 3600 * 1000);
+       long wallElapsed = System.currentTimeMillis() - wallStart;
+       assertTrue(woken >= 1000000 + 3600 * 1000);
+       assertTrue("took " + wallElapsed + " ms", wallElapsed < 30000);
+
+       long now = clock.getCurrentTime();
+       clock.update(new EventWrapper("events",
+                                     new TestEventClock.Event(now + 1000000000L),
+                                     null));
+       assertTrue(clock.getCurrentTime() < now + 1000000000L);
+   }
+
+   /**
+    * Verifies that an unpaced replay follows the event timestamps
+    */
+   @Test
+   public void testEventSpeed() {
+       ReplayClock clock = new ReplayClock();
+       clock.addEventClockStream("events", "time");
+       clock.start(1000000);
+       assertEquals(1000000, clock.getCurrentTime());
+       clock.update(new EventWrapper("events",
+                                     new TestEventClock.Event(5000000),
+                                     null));
+       assertEquals(5000000, clock.getCurrentTime());
+   }
+}